@@ -1,36 +1,57 @@
 package com.wmn.bluetoothmessenger;
 
 import android.bluetooth.BluetoothAdapter;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.provider.OpenableColumns;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.AppCompatTextView;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
+import androidx.recyclerview.widget.SimpleItemAnimator;
 
 import com.wmn.bluetoothmessenger.bluetooth.BluetoothService;
+import com.wmn.bluetoothmessenger.manager.ChangeSet;
 import com.wmn.bluetoothmessenger.manager.GroupManager;
 import com.wmn.bluetoothmessenger.manager.MessageManager;
+import com.wmn.bluetoothmessenger.manager.MessageStore;
 import com.wmn.bluetoothmessenger.manager.SessionManager;
 import com.wmn.bluetoothmessenger.model.ChatMessage;
+import com.wmn.bluetoothmessenger.model.FileTransfer;
+import com.wmn.bluetoothmessenger.model.ProtocolEvent;
 import com.wmn.bluetoothmessenger.util.Constants;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Real-time chat activity for the Bluetooth messaging group.
@@ -41,13 +62,14 @@ import java.util.Locale;
  * - Group terminates after 30 minutes of inactivity
  * - In-memory message storage only (ephemeral)
  * - Broadcast messaging to all connected peers
+ * - File / image sharing, streamed in chunks with live progress
  */
 public class ChatActivity extends AppCompatActivity {
 
     private RecyclerView rvMessages;
     private EditText etMessage;
     private Button btnSend;
-    private TextView tvGroupName, tvMemberCount, btnLeave, btnBack;
+    private TextView tvGroupName, tvMemberCount, btnLeave, btnBack, btnAttach;
 
     // ── Fields ────────────────────────────────────────────────────────────────
     // (bluetoothService is obtained from the singleton; no local new BluetoothService())
@@ -58,7 +80,9 @@ public class ChatActivity extends AppCompatActivity {
     private SessionManager sessionManager;
 
     private MessageAdapter messageAdapter;
-    private final List<ChatMessage> displayMessages = new ArrayList<>();
+    /** UI-thread mirror of the MessageManager store; the adapter reads its rows in place. */
+    private final MessageStore displayMessages =
+            new MessageStore(Constants.MESSAGE_STORE_CAPACITY, Long.MAX_VALUE);
 
     private String myDeviceName;
     private String groupName;
@@ -66,6 +90,19 @@ public class ChatActivity extends AppCompatActivity {
 
     private final Handler uiHandler = new Handler(Looper.getMainLooper());
 
+    /** Measures message text for the chat list; shared across activity instances. */
+    private static final Executor TEXT_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "chat-text");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Bodies measured on {@link #TEXT_EXECUTOR} ahead of binding, by message id. */
+    private final Map<Long, PrecomputedTextCompat> measuredBodies = new ConcurrentHashMap<>();
+    /** Text metrics per view type, taken from the first inflated row of each. */
+    private final AtomicReferenceArray<PrecomputedTextCompat.Params> bodyParams =
+            new AtomicReferenceArray<>(3);
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -86,6 +123,7 @@ public class ChatActivity extends AppCompatActivity {
         tvMemberCount = findViewById(R.id.tv_member_count);
         btnLeave      = findViewById(R.id.btn_leave);
         btnBack       = findViewById(R.id.btn_back);
+        btnAttach     = findViewById(R.id.btn_attach);
 
         tvGroupName.setText(groupName);
 
@@ -103,7 +141,20 @@ public class ChatActivity extends AppCompatActivity {
         layoutManager.setStackFromEnd(true);
         rvMessages.setLayoutManager(layoutManager);
         messageAdapter = new MessageAdapter();
+        messageAdapter.setHasStableIds(true);
         rvMessages.setAdapter(messageAdapter);
+        // Rows never change the list's own size; keep enough spare rows per
+        // type that a fling through a burst of messages doesn't inflate
+        rvMessages.setHasFixedSize(true);
+        rvMessages.setItemViewCacheSize(Constants.CHAT_VIEW_CACHE_SIZE);
+        RecyclerView.RecycledViewPool pool = rvMessages.getRecycledViewPool();
+        pool.setMaxRecycledViews(MessageAdapter.TYPE_RECEIVED, Constants.CHAT_POOL_SIZE_BUBBLE);
+        pool.setMaxRecycledViews(MessageAdapter.TYPE_SENT, Constants.CHAT_POOL_SIZE_BUBBLE);
+        pool.setMaxRecycledViews(MessageAdapter.TYPE_SYSTEM, Constants.CHAT_POOL_SIZE_SYSTEM);
+        // Progress updates rebind a row in place; a cross-fade per update is wasted work
+        if (rvMessages.getItemAnimator() instanceof SimpleItemAnimator) {
+            ((SimpleItemAnimator) rvMessages.getItemAnimator()).setSupportsChangeAnimations(false);
+        }
 
         // Setup managers
         setupGroupManager();
@@ -115,6 +166,7 @@ public class ChatActivity extends AppCompatActivity {
         btnSend.setOnClickListener(v -> sendMessage());
         btnLeave.setOnClickListener(v -> confirmLeave());
         btnBack.setOnClickListener(v -> confirmLeave());
+        btnAttach.setOnClickListener(v -> pickFile());
 
         // Handle IME send action
         etMessage.setOnEditorActionListener((v, actionId, event) -> {
@@ -145,36 +197,61 @@ public class ChatActivity extends AppCompatActivity {
 
     private void setupMessageManager() {
         messageManager = new MessageManager();
-        messageManager.setListener(new MessageManager.MessageListener() {
-            @Override
-            public void onMessageAdded(ChatMessage message, int position) {
-                uiHandler.post(() -> {
-                    displayMessages.add(message);
-                    messageAdapter.notifyItemInserted(displayMessages.size() - 1);
-                    rvMessages.scrollToPosition(displayMessages.size() - 1);
-                });
-            }
+        // Change sets arrive in order, so replaying them keeps displayMessages exact;
+        // the single text thread measures new bodies first and keeps that order
+        messageManager.setListener(changes -> TEXT_EXECUTOR.execute(() -> {
+            measureBodies(changes);
+            uiHandler.post(() -> applyChanges(changes));
+        }));
+        messageManager.startTTLCleanup();
+    }
 
-            @Override
-            public void onMessageRemoved(int position) {
-                uiHandler.post(() -> {
-                    if (position < displayMessages.size()) {
-                        displayMessages.remove(position);
-                        messageAdapter.notifyItemRemoved(position);
-                    }
-                });
+    /**
+     * Lay out the bodies of inserted messages so binding finds them ready.
+     * Rows of a type not yet inflated have no params and bind plain text.
+     */
+    private void measureBodies(ChangeSet changes) {
+        for (ChangeSet.Op op : changes.getOps()) {
+            if (op.getType() != ChangeSet.INSERT) {
+                continue;
             }
+            for (ChatMessage message : op.getItems()) {
+                PrecomputedTextCompat.Params params = bodyParams.get(messageAdapter.viewTypeOf(message));
+                if (params != null) {
+                    measuredBodies.put(message.getId(),
+                            PrecomputedTextCompat.create(messageAdapter.describe(message), params));
+                }
+            }
+        }
+    }
 
-            @Override
-            public void onMessagesChanged() {
-                uiHandler.post(() -> {
-                    displayMessages.clear();
-                    displayMessages.addAll(messageManager.getMessages());
-                    messageAdapter.notifyDataSetChanged();
-                });
+    /**
+     * Mirror a batch of store changes into the adapter with range
+     * notifications, so only the affected rows are bound.
+     */
+    private void applyChanges(ChangeSet changes) {
+        boolean appended = false;
+        for (ChangeSet.Op op : changes.getOps()) {
+            int position = op.getPosition();
+            int count = op.getCount();
+            if (op.getType() == ChangeSet.INSERT) {
+                // The manager only ever appends
+                for (ChatMessage message : op.getItems()) {
+                    displayMessages.append(message);
+                }
+                messageAdapter.notifyItemRangeInserted(position, count);
+                appended = true;
+            } else {
+                for (int i = position; i < position + count; i++) {
+                    measuredBodies.remove(displayMessages.getId(i));
+                }
+                displayMessages.removeRange(position, count);
+                messageAdapter.notifyItemRangeRemoved(position, count);
             }
-        });
-        messageManager.startTTLCleanup();
+        }
+        if (appended) {
+            rvMessages.scrollToPosition(displayMessages.size() - 1);
+        }
     }
 
     private void setupSessionManager() {
@@ -210,21 +287,39 @@ public class ChatActivity extends AppCompatActivity {
             @Override
             public void handleMessage(Message msg) {
                 switch (msg.what) {
-                    case Constants.MSG_READ:
-                        handleReceivedMessage((String) msg.obj);
+                    case Constants.MSG_EVENTS:
+                        @SuppressWarnings("unchecked")
+                        List<ProtocolEvent> events = (List<ProtocolEvent>) msg.obj;
+                        handleEvents(events);
                         break;
 
                     case Constants.MSG_CONNECTED:
-                        // Only the HOST receives this (new member finished auth)
-                        if (isHost) {
+                        // Only the host (or a mesh relay) receives this: a new member finished auth
+                        if (isHost || bluetoothService.isRelaying()) {
                             String deviceName = (String) msg.obj;
                             groupManager.addMember(deviceName);
-                            addSystemMessage("📱 " + deviceName + " joined");
+                            // arg1 = 1: back after a failover, never really gone
+                            if (msg.arg1 == 0) {
+                                addSystemMessage("📱 " + deviceName + " joined");
+                            }
                             updateMemberCount();
                             sessionManager.resetActivity();
                         }
                         break;
 
+                    case Constants.MSG_HOST_CHANGED:
+                        // The host left and the group re-formed around its successor
+                        isHost = bluetoothService.isHost();
+                        String newHost = (String) msg.obj;
+                        groupManager.addMember(newHost);
+                        addSystemMessage("👑 " + newHost + " is now hosting");
+                        updateMemberCount();
+                        break;
+
+                    case Constants.MSG_TOAST:
+                        Toast.makeText(ChatActivity.this, (String) msg.obj, Toast.LENGTH_SHORT).show();
+                        break;
+
                     case Constants.MSG_DISCONNECTED:
                         String leftDevice = (String) msg.obj;
                         groupManager.removeMember(leftDevice);
@@ -243,10 +338,14 @@ public class ChatActivity extends AppCompatActivity {
             return;
         }
         bluetoothService.setHandler(btHandler);
-
-        // Seed the groupManager with members that were already connected before
-        // this Activity started (e.g. members who joined during CreateGroupActivity).
-        for (String name : bluetoothService.getConnectedDeviceNames()) {
+        bluetoothService.getFileTransfers().setStorageDir(getCacheDir());
+        // Members who join later (through us as host or mesh relay) catch up on unexpired chat
+        bluetoothService.setHistorySource(messageManager::getMessages);
+
+        // Seed the groupManager with members that were already in the session before
+        // this Activity started: the roster a client joined with, or members who
+        // joined the host during CreateGroupActivity.
+        for (String name : bluetoothService.getMemberNames()) {
             groupManager.addMember(name);
         }
         updateMemberCount();
@@ -278,48 +377,86 @@ public class ChatActivity extends AppCompatActivity {
     }
 
     /**
-     * Process received Bluetooth protocol messages.
+     * Apply a batch of protocol events decoded off the UI thread.
+     * Parsing and ChatMessage creation already happened on the reader thread;
+     * this only updates state and renders.
      */
-    private void handleReceivedMessage(String rawMessage) {
-        if (rawMessage == null)
+    private void handleEvents(List<ProtocolEvent> events) {
+        if (events.isEmpty())
             return;
 
         sessionManager.resetActivity();
 
-        if (rawMessage.startsWith(Constants.PROTO_MSG)) {
-            // Chat message: MSG:SenderName:Content
-            String payload = rawMessage.substring(Constants.PROTO_MSG.length());
-            int colonIdx = payload.indexOf(":");
-            if (colonIdx > 0) {
-                String sender = payload.substring(0, colonIdx);
-                String content = payload.substring(colonIdx + 1);
+        boolean membersChanged = false;
+        boolean sessionEnded = false;
+        Map<FileTransfer, Boolean> progressed = null;
+        // Added in one go so the list gets a single range insert per batch
+        List<ChatMessage> added = new ArrayList<>();
+        for (ProtocolEvent event : events) {
+            switch (event.getType()) {
+                case ProtocolEvent.TYPE_CHAT:
+                    // Host relaying to the other clients already happened in BluetoothService
+                    added.add(event.getMessage());
+                    break;
+
+                case ProtocolEvent.TYPE_JOIN:
+                    // Members connected to this device arrive via MSG_CONNECTED; OP_JOIN
+                    // announces everyone else (on the host: members joining through a
+                    // mesh relay). Also skip self-join notifications.
+                    if (event.getSenderId() != bluetoothService.getLocalSenderId()) {
+                        groupManager.addMember(event.getDeviceName());
+                        added.add(ChatMessage.createSystemMessage("\uD83D\uDCF1 " + event.getDeviceName() + " joined"));
+                        membersChanged = true;
+                    }
+                    break;
+
+                case ProtocolEvent.TYPE_LEAVE:
+                    groupManager.removeMember(event.getDeviceName());
+                    added.add(ChatMessage.createSystemMessage("👋 " + event.getDeviceName() + " left"));
+                    membersChanged = true;
+                    break;
+
+                case ProtocolEvent.TYPE_SESSION_END:
+                    sessionEnded = true;
+                    break;
+
+                case ProtocolEvent.TYPE_FILE_OFFER:
+                    added.add(event.getMessage());
+                    break;
+
+                case ProtocolEvent.TYPE_HISTORY:
+                    // Chat from before we joined, with its original times and remaining TTL
+                    added.addAll(event.getHistory());
+                    break;
+
+                case ProtocolEvent.TYPE_FILE_PROGRESS:
+                    // Several updates for one transfer in a batch: redraw its row once
+                    if (progressed == null) {
+                        progressed = new IdentityHashMap<>();
+                    }
+                    progressed.put(event.getTransfer(), Boolean.TRUE);
+                    break;
+            }
+        }
 
-                ChatMessage msg = ChatMessage.createMessage(sender, content, false);
-                messageManager.addMessage(msg);
+        if (sessionEnded) {
+            added.add(ChatMessage.createSystemMessage("⏰ Group session ended by host"));
+        }
+        messageManager.addMessages(added);
 
-                // If host, rebroadcast to all other clients
-                if (isHost) {
-                    bluetoothService.broadcastMessage(rawMessage);
-                }
-            }
-        } else if (rawMessage.startsWith(Constants.PROTO_JOIN)) {
-            // BUG FIX: Host learns of new members via MSG_CONNECTED (not via PROTO_JOIN broadcast).
-            // Clients learn of OTHER members via PROTO_JOIN.  Also skip self-join notifications.
-            if (!isHost) {
-                String deviceName = rawMessage.substring(Constants.PROTO_JOIN.length());
-                if (!deviceName.equals(myDeviceName)) {
-                    groupManager.addMember(deviceName);
-                    addSystemMessage("\uD83D\uDCF1 " + deviceName + " joined");
-                    updateMemberCount();
+        if (progressed != null) {
+            for (int i = 0; i < displayMessages.size(); i++) {
+                FileTransfer transfer = displayMessages.get(i).getTransfer();
+                if (transfer != null && progressed.containsKey(transfer)) {
+                    messageAdapter.notifyItemChanged(i, MessageAdapter.PAYLOAD_TRANSFER);
                 }
             }
-        } else if (rawMessage.startsWith(Constants.PROTO_LEAVE)) {
-            String deviceName = rawMessage.substring(Constants.PROTO_LEAVE.length());
-            groupManager.removeMember(deviceName);
-            addSystemMessage("👋 " + deviceName + " left");
+        }
+
+        if (membersChanged) {
             updateMemberCount();
-        } else if (rawMessage.equals(Constants.PROTO_SESSION_END)) {
-            addSystemMessage("⏰ Group session ended by host");
+        }
+        if (sessionEnded) {
             Toast.makeText(this, R.string.session_timeout, Toast.LENGTH_LONG).show();
             new Handler(Looper.getMainLooper()).postDelayed(this::leaveGroup, 2000);
         }
@@ -333,12 +470,18 @@ public class ChatActivity extends AppCompatActivity {
         if (content.isEmpty())
             return;
 
-        // Add to local display
-        ChatMessage msg = ChatMessage.createMessage(myDeviceName, content, true);
-        messageManager.addMessage(msg);
-
         // Broadcast via Bluetooth
-        bluetoothService.sendChatMessage(myDeviceName, content);
+        long sequence = bluetoothService.sendChatMessage(content);
+        if (sequence < 0) {
+            // Keep the text so it can be shortened and sent again
+            Toast.makeText(this, R.string.message_too_long, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        // Add to local display; the sequence lets the host replay it to later joiners
+        ChatMessage msg = ChatMessage.createMessage(bluetoothService.getLocalSenderId(), sequence,
+                content, true);
+        messageManager.addMessage(msg);
 
         // Reset session timer
         sessionManager.resetActivity();
@@ -347,6 +490,50 @@ public class ChatActivity extends AppCompatActivity {
         etMessage.setText("");
     }
 
+    /**
+     * Let the user pick any file or image to send to the group.
+     */
+    private void pickFile() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("*/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        startActivityForResult(intent, Constants.REQUEST_PICK_FILE);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == Constants.REQUEST_PICK_FILE && resultCode == RESULT_OK
+                && data != null && data.getData() != null) {
+            sendFile(data.getData());
+        }
+    }
+
+    /**
+     * Stream the picked file to all peers. The message appears once the
+     * transfer has started (TYPE_FILE_OFFER) and then tracks its progress.
+     */
+    private void sendFile(Uri uri) {
+        String name = uri.getLastPathSegment();
+        long size = -1;
+        try (Cursor cursor = getContentResolver().query(uri,
+                new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int nameIdx = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                int sizeIdx = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (nameIdx >= 0 && !cursor.isNull(nameIdx)) name = cursor.getString(nameIdx);
+                if (sizeIdx >= 0 && !cursor.isNull(sizeIdx)) size = cursor.getLong(sizeIdx);
+            }
+        } catch (Exception ignored) {
+            // Fall back to the URI's last segment and a mapped size
+        }
+        if (name == null) name = "file";
+
+        bluetoothService.getFileTransfers().sendFile(getContentResolver(), uri, name,
+                getContentResolver().getType(uri), size);
+        sessionManager.resetActivity();
+    }
+
     private void addSystemMessage(String text) {
         ChatMessage msg = ChatMessage.createSystemMessage(text);
         messageManager.addMessage(msg);
@@ -369,7 +556,7 @@ public class ChatActivity extends AppCompatActivity {
     private void leaveGroup() {
         // Notify peers we are leaving
         if (bluetoothService != null) {
-            bluetoothService.broadcastMessage(Constants.PROTO_LEAVE + myDeviceName);
+            bluetoothService.broadcastLeave();
         }
 
         // Shut down managers
@@ -403,67 +590,165 @@ public class ChatActivity extends AppCompatActivity {
 
     // ========== Message Adapter ==========
 
+    /**
+     * One view type per row kind, so binding never toggles visibility.
+     * Message bodies are measured off the main thread with
+     * {@link PrecomputedTextCompat} before their rows are inserted; times are
+     * formatted once per minute.
+     */
     private class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.ViewHolder> {
 
+        static final int TYPE_RECEIVED = 0;
+        static final int TYPE_SENT = 1;
+        static final int TYPE_SYSTEM = 2;
+
+        /** Partial rebind: only a file transfer's progress / state changed. */
+        static final String PAYLOAD_TRANSFER = "transfer";
+
         private final SimpleDateFormat timeFormat = new SimpleDateFormat("hh:mm a", Locale.getDefault());
+        /** Formatted time per epoch minute; chat bursts share a handful of minutes. */
+        private final Map<Long, String> timeCache = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > Constants.CHAT_TIME_CACHE_SIZE;
+            }
+        };
 
         class ViewHolder extends RecyclerView.ViewHolder {
-            // Received
-            View layoutReceived;
-            TextView tvSenderName, tvMessageReceived, tvTimeReceived;
-            // Sent
-            View layoutSent;
-            TextView tvMessageSent, tvTimeSent;
-            // System
-            TextView tvSystemMessage;
-
-            ViewHolder(View v) {
+            final AppCompatTextView tvMessage;
+            TextView tvSenderName, tvTime;
+            ProgressBar pbTransfer;
+
+            ViewHolder(View v, int viewType) {
                 super(v);
-                layoutReceived = v.findViewById(R.id.layout_received);
-                tvSenderName = v.findViewById(R.id.tv_sender_name);
-                tvMessageReceived = v.findViewById(R.id.tv_message_received);
-                tvTimeReceived = v.findViewById(R.id.tv_time_received);
-                layoutSent = v.findViewById(R.id.layout_sent);
-                tvMessageSent = v.findViewById(R.id.tv_message_sent);
-                tvTimeSent = v.findViewById(R.id.tv_time_sent);
-                tvSystemMessage = v.findViewById(R.id.tv_system_message);
+                switch (viewType) {
+                    case TYPE_RECEIVED:
+                        tvSenderName = v.findViewById(R.id.tv_sender_name);
+                        tvMessage = v.findViewById(R.id.tv_message_received);
+                        tvTime = v.findViewById(R.id.tv_time_received);
+                        pbTransfer = v.findViewById(R.id.pb_transfer_received);
+                        break;
+                    case TYPE_SENT:
+                        tvMessage = v.findViewById(R.id.tv_message_sent);
+                        tvTime = v.findViewById(R.id.tv_time_sent);
+                        pbTransfer = v.findViewById(R.id.pb_transfer_sent);
+                        break;
+                    default:
+                        tvMessage = v.findViewById(R.id.tv_system_message);
+                        break;
+                }
+            }
+        }
+
+        @Override
+        public int getItemViewType(int position) {
+            if (displayMessages.getType(position) == ChatMessage.TYPE_SYSTEM) {
+                return TYPE_SYSTEM;
             }
+            return displayMessages.isMine(position) ? TYPE_SENT : TYPE_RECEIVED;
+        }
+
+        int viewTypeOf(ChatMessage msg) {
+            if (msg.getType() == ChatMessage.TYPE_SYSTEM) {
+                return TYPE_SYSTEM;
+            }
+            return msg.isMine() ? TYPE_SENT : TYPE_RECEIVED;
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return displayMessages.getId(position);
         }
 
         @NonNull
         @Override
         public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
-            View view = LayoutInflater.from(parent.getContext())
-                    .inflate(R.layout.item_message, parent, false);
-            return new ViewHolder(view);
+            int layout = viewType == TYPE_RECEIVED ? R.layout.item_message_received
+                    : viewType == TYPE_SENT ? R.layout.item_message_sent
+                    : R.layout.item_message_system;
+            View view = LayoutInflater.from(parent.getContext()).inflate(layout, parent, false);
+            ViewHolder holder = new ViewHolder(view, viewType);
+            bodyParams.set(viewType, holder.tvMessage.getTextMetricsParamsCompat());
+            return holder;
         }
 
         @Override
         public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
             ChatMessage msg = displayMessages.get(position);
-            String time = timeFormat.format(new Date(msg.getTimestamp()));
+            setBody(holder.tvMessage, msg.getId(), describe(msg));
+            if (holder.getItemViewType() == TYPE_SYSTEM) {
+                return;
+            }
+            holder.tvTime.setText(formatTime(displayMessages.getTimestamp(position)));
+            if (holder.tvSenderName != null) {
+                holder.tvSenderName.setText(bluetoothService.getSenderTable().nameOf(msg.getSenderId()));
+            }
+            bindProgress(holder.pbTransfer, msg.getTransfer());
+        }
 
-            // Hide all layouts first
-            holder.layoutReceived.setVisibility(View.GONE);
-            holder.layoutSent.setVisibility(View.GONE);
-            holder.tvSystemMessage.setVisibility(View.GONE);
+        @Override
+        public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+            if (!payloads.contains(PAYLOAD_TRANSFER) || holder.pbTransfer == null) {
+                onBindViewHolder(holder, position);
+                return;
+            }
+            ChatMessage msg = displayMessages.get(position);
+            FileTransfer transfer = msg.getTransfer();
+            bindProgress(holder.pbTransfer, transfer);
+            if (transfer != null && transfer.getState() == FileTransfer.STATE_FAILED) {
+                setBody(holder.tvMessage, msg.getId(), describe(msg));
+            }
+        }
 
-            if (msg.getType() == ChatMessage.TYPE_SYSTEM) {
-                // System message
-                holder.tvSystemMessage.setVisibility(View.VISIBLE);
-                holder.tvSystemMessage.setText(msg.getContent());
-            } else if (msg.isMine()) {
-                // Sent message
-                holder.layoutSent.setVisibility(View.VISIBLE);
-                holder.tvMessageSent.setText(msg.getContent());
-                holder.tvTimeSent.setText(time);
+        /** Use the body measured ahead of time if it still matches; otherwise plain text, never a wait. */
+        private void setBody(AppCompatTextView view, long id, CharSequence text) {
+            PrecomputedTextCompat measured = measuredBodies.get(id);
+            if (measured != null && TextUtils.equals(measured, text)
+                    && measured.getParams().equals(view.getTextMetricsParamsCompat())) {
+                TextViewCompat.setPrecomputedText(view, measured);
             } else {
-                // Received message
-                holder.layoutReceived.setVisibility(View.VISIBLE);
-                holder.tvSenderName.setText(msg.getSenderName());
-                holder.tvMessageReceived.setText(msg.getContent());
-                holder.tvTimeReceived.setText(time);
+                view.setText(text);
+            }
+        }
+
+        private String formatTime(long timestamp) {
+            Long minute = timestamp / 60000;
+            String text = timeCache.get(minute);
+            if (text == null) {
+                text = timeFormat.format(new Date(timestamp));
+                timeCache.put(minute, text);
+            }
+            return text;
+        }
+
+        /** Message text; file messages show name, size and outcome. */
+        String describe(ChatMessage msg) {
+            FileTransfer transfer = msg.getTransfer();
+            if (transfer == null) {
+                return msg.getContent();
+            }
+            String text = (transfer.isImage() ? "🖼 " : "📎 ") + transfer.getFileName()
+                    + " · " + formatSize(transfer.getSize());
+            if (transfer.getState() == FileTransfer.STATE_FAILED) {
+                text += "\n" + getString(R.string.file_failed);
             }
+            return text;
+        }
+
+        /** Progress bar while a transfer is running; hidden otherwise. */
+        private void bindProgress(ProgressBar bar, FileTransfer transfer) {
+            if (transfer == null || transfer.getState() != FileTransfer.STATE_ACTIVE) {
+                bar.setVisibility(View.GONE);
+                return;
+            }
+            bar.setVisibility(View.VISIBLE);
+            bar.setProgress(transfer.getProgress());
+        }
+
+        private String formatSize(long bytes) {
+            if (bytes < 1024) return bytes + " B";
+            if (bytes < 1024 * 1024) return String.format(Locale.getDefault(), "%.1f KB", bytes / 1024f);
+            return String.format(Locale.getDefault(), "%.1f MB", bytes / (1024f * 1024f));
         }
 
         @Override
@@ -7,6 +7,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.ProgressBar;
 import android.widget.TextView;
@@ -33,6 +34,7 @@ public class CreateGroupActivity extends AppCompatActivity {
     private Button btnCreate, btnStartChat;
     private TextView tvStatus, tvMemberCount;
     private ProgressBar progressBar;
+    private CheckBox cbMesh;
 
     private BluetoothAdapter bluetoothAdapter;
     private GroupManager groupManager;
@@ -55,6 +57,7 @@ public class CreateGroupActivity extends AppCompatActivity {
         progressBar   = findViewById(R.id.progress_bar);
         btnStartChat  = findViewById(R.id.btn_start_chat);
         tvMemberCount = findViewById(R.id.tv_member_count_create);
+        cbMesh        = findViewById(R.id.cb_mesh);
 
         TextView btnBack = findViewById(R.id.btn_back);
         btnBack.setOnClickListener(v -> finish());
@@ -122,6 +125,7 @@ public class CreateGroupActivity extends AppCompatActivity {
         // Configure the singleton service with auth details
         BluetoothService svc = BluetoothService.getInstance();
         svc.setPasswordHash(passwordHash);
+        svc.setMeshEnabled(cbMesh.isChecked());
         svc.setAuthCallback(new BluetoothService.AuthCallback() {
             @Override
             public boolean onAuthRequest(String receivedHash) {
@@ -159,6 +163,7 @@ public class CreateGroupActivity extends AppCompatActivity {
         btnCreate.setEnabled(false);
         etGroupName.setEnabled(false);
         etPassword.setEnabled(false);
+        cbMesh.setEnabled(false);
         tvStatus.setText(R.string.waiting_for_members);
         tvStatus.setVisibility(View.VISIBLE);
         progressBar.setVisibility(View.VISIBLE);
@@ -14,6 +14,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.TextView;
@@ -43,6 +44,7 @@ public class JoinGroupActivity extends AppCompatActivity {
     private LinearLayout scanningLayout;
     private RecyclerView rvDevices;
     private TextView tvEmpty, tvStatus;
+    private CheckBox cbMeshRelay;
 
     private BluetoothAdapter bluetoothAdapter;
     private Handler handler;
@@ -62,6 +64,7 @@ public class JoinGroupActivity extends AppCompatActivity {
         rvDevices = findViewById(R.id.rv_devices);
         tvEmpty = findViewById(R.id.tv_empty);
         tvStatus = findViewById(R.id.tv_status);
+        cbMeshRelay = findViewById(R.id.cb_mesh_relay);
 
         TextView btnBack = findViewById(R.id.btn_back);
         btnBack.setOnClickListener(v -> finish());
@@ -208,7 +211,9 @@ public class JoinGroupActivity extends AppCompatActivity {
         } catch (SecurityException ignored) {
         }
 
-        BluetoothService.getInstance().connectToHost(device, password);
+        BluetoothService svc = BluetoothService.getInstance();
+        svc.setMeshEnabled(cbMeshRelay.isChecked());
+        svc.connectToHost(device, password);
     }
 
     @SuppressWarnings("MissingPermission")
@@ -1,44 +1,53 @@
 package com.wmn.bluetoothmessenger.bluetooth;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
 import android.util.Log;
 
-import com.wmn.bluetoothmessenger.util.Constants;
+import com.wmn.bluetoothmessenger.transport.Transport;
 
 import java.io.IOException;
+import java.util.concurrent.Future;
 
 /**
- * Thread that runs a BluetoothServerSocket to accept incoming connections.
- * The host device runs this thread to allow clients to join the group.
- * For each accepted connection, a new ConnectedThread is created.
+ * Runs a {@link Transport.Listener} (an RFCOMM server socket on devices) to
+ * accept incoming connections.
+ * The host device runs this accept loop (on a pooled {@link ConnectionEngine}
+ * worker) to allow clients to join the group.
+ * Each accepted connection is handed to the service's {@link AdmissionControl},
+ * which runs its handshake; a PeerConnection takes over once it is admitted.
  */
-public class AcceptThread extends Thread {
+public class AcceptThread implements Runnable {
 
     private static final String TAG = "AcceptThread";
 
-    private final BluetoothServerSocket serverSocket;
+    private final Transport.Listener listener;
     private final Handler handler;
     private final BluetoothService bluetoothService;
     private volatile boolean running = true;
+    private volatile Future<?> future;
 
-    @SuppressWarnings("MissingPermission")
-    public AcceptThread(BluetoothAdapter adapter, Handler handler, BluetoothService bluetoothService) {
+    public AcceptThread(Transport transport, Handler handler, BluetoothService bluetoothService) {
         this.handler = handler;
         this.bluetoothService = bluetoothService;
 
-        BluetoothServerSocket tmp = null;
+        Transport.Listener tmp = null;
         try {
-            tmp = adapter.listenUsingRfcommWithServiceRecord(
-                    Constants.BT_SERVICE_NAME, Constants.BT_UUID);
+            tmp = transport.listen();
         } catch (IOException e) {
             Log.e(TAG, "Failed to create server socket", e);
         } catch (SecurityException e) {
             Log.e(TAG, "Bluetooth permission missing", e);
         }
-        this.serverSocket = tmp;
+        this.listener = tmp;
+    }
+
+    /**
+     * Start the accept loop on the service's engine.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the engine is exhausted
+     */
+    public void start() {
+        future = bluetoothService.getEngine().submit(ConnectionEngine.Role.ACCEPT, null, this);
     }
 
     @Override
@@ -47,18 +56,16 @@ public class AcceptThread extends Thread {
 
         while (running) {
             try {
-                if (serverSocket == null) {
+                if (listener == null) {
                     Log.e(TAG, "Server socket is null, stopping accept thread");
                     break;
                 }
-                // This call blocks until a connection is accepted or the socket is closed
-                BluetoothSocket socket = serverSocket.accept();
+                // This call blocks until a connection is accepted or the listener is closed
+                Transport.Connection connection = listener.accept();
 
-                if (socket != null) {
-                    Log.d(TAG, "Connection accepted from: " + getDeviceName(socket));
-                    // Hand off to BluetoothService for auth + registration
-                    bluetoothService.onConnectionAccepted(socket);
-                }
+                Log.d(TAG, "Connection accepted from: " + connection.getRemoteName());
+                // Hand off to BluetoothService for auth + registration
+                bluetoothService.onConnectionAccepted(connection);
             } catch (IOException e) {
                 if (running) {
                     Log.e(TAG, "Accept failed", e);
@@ -68,13 +75,9 @@ public class AcceptThread extends Thread {
         }
     }
 
-    @SuppressWarnings("MissingPermission")
-    private String getDeviceName(BluetoothSocket socket) {
-        try {
-            return socket.getRemoteDevice().getName();
-        } catch (SecurityException e) {
-            return socket.getRemoteDevice().getAddress();
-        }
+    /** Address clients connect to, or null if listening failed. */
+    public String getAddress() {
+        return listener != null ? listener.getAddress() : null;
     }
 
     /**
@@ -83,11 +86,15 @@ public class AcceptThread extends Thread {
     public void cancel() {
         running = false;
         try {
-            if (serverSocket != null) {
-                serverSocket.close();
+            if (listener != null) {
+                listener.close();
             }
         } catch (IOException e) {
             Log.e(TAG, "Error closing server socket", e);
         }
+        Future<?> f = future;
+        if (f != null) {
+            f.cancel(true);
+        }
     }
 }
@@ -0,0 +1,453 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.wmn.bluetoothmessenger.transport.Transport;
+import com.wmn.bluetoothmessenger.util.Constants;
+import com.wmn.bluetoothmessenger.util.TimerService;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Host (or mesh relay) side of an incoming connection until it becomes a
+ * member or is turned away, as a state machine:
+ *
+ * <pre>
+ * WAITING ─slot─▶ READING ─first frame─▶ CHECKING ─────────room─────────▶ ADMITTED
+ *    │               │                      └─full─▶ QUEUED ─room─▶ CHECKING
+ *    └───────────────┴──── deadline / refused / failed (any phase) ────▶ CLOSED
+ * </pre>
+ *
+ * A slow or silent joiner costs no thread: READING polls the socket every
+ * {@link Constants#HANDSHAKE_POLL_MS}, timed by the shared {@link TimerService}
+ * and run on the engine's link thread, taking only the bytes already there;
+ * a QUEUED joiner just sits in a list. Only CHECKING (authorising, building the
+ * welcome) runs on a {@link ConnectionEngine} worker, once the first frame is
+ * complete. Each phase has its own deadline; missing it closes the socket.
+ *
+ * At most {@link Constants#HANDSHAKE_MAX_CONCURRENT} joiners are read and
+ * checked at once; later ones wait their turn, up to
+ * {@link Constants#HANDSHAKE_BACKLOG}. Worker steps (checking, admitting a
+ * queued joiner) are capped the same way and otherwise wait for one of ours to
+ * finish, so the engine, sized for them, never has to turn a joiner away. An address that keeps failing to
+ * authenticate is refused outright for {@link Constants#HANDSHAKE_LOCKOUT_MS}.
+ * A joiner that authenticates while the group is full waits, first come first
+ * served, until a member leaves.
+ *
+ * The checks themselves (password, resume token, roster) stay in
+ * {@link BluetoothService}; this class only decides who gets to them, when,
+ * and for how long.
+ */
+final class AdmissionControl {
+
+    private static final String TAG = "AdmissionControl";
+
+    enum Phase {
+        WAITING, READING, CHECKING, QUEUED, ADMITTED, CLOSED
+    }
+
+    /** One incoming connection on its way in. */
+    static final class Joiner {
+        final Transport.Connection socket;
+        final String name;
+        final String address;                        // rate-limit key
+        final FrameDecoder decoder = new FrameDecoder();
+        /** Set by the service once authorised, for the admission step. */
+        int caps;
+        int previousId = -1;
+
+        // Guarded by the AdmissionControl
+        private Phase phase = Phase.WAITING;
+        private boolean holdsSlot;                   // counted in active
+        private boolean holdsPlace;                  // counted in admitting
+        private TimerService.Timeout deadline;
+        private TimerService.Timeout poll;
+        private Runnable step;                       // waiting in ready for a worker
+
+        Joiner(Transport.Connection socket) {
+            this.socket = socket;
+            this.name = socket.getRemoteName();
+            this.address = addressOf(socket);
+        }
+    }
+
+    /** Recent failed attempts from one address. */
+    private static final class Failures {
+        long windowStart;
+        int count;
+        long lockedUntil;
+    }
+
+    private final BluetoothService service;
+
+    // Guarded by this
+    private final Set<Joiner> open = new HashSet<>();  // every joiner not yet ADMITTED or CLOSED
+    private final ArrayDeque<Joiner> waiting = new ArrayDeque<>();
+    private final ArrayDeque<Joiner> queued = new ArrayDeque<>();
+    private final ArrayDeque<Joiner> ready = new ArrayDeque<>();  // CHECKING, step not yet on a worker
+    private final Map<String, Failures> failures = new HashMap<>();
+    private int active = 0;       // joiners READING or CHECKING
+    private int admitting = 0;    // places promised to joiners still being admitted
+    private int working = 0;      // handshake steps running on engine workers
+
+    AdmissionControl(BluetoothService service) {
+        this.service = service;
+    }
+
+    // ========== ENTRY ==========
+
+    /** A connection was accepted: start its handshake, or line it up for one. */
+    void offer(Transport.Connection socket) {
+        Joiner joiner = new Joiner(socket);
+        synchronized (this) {
+            if (isLockedOut(joiner.address)) {
+                Log.w(TAG, "Too many failed attempts from " + joiner.address + ", refusing " + joiner.name);
+                closeQuietly(socket);
+                return;
+            }
+            if (active >= Constants.HANDSHAKE_MAX_CONCURRENT && waiting.size() >= Constants.HANDSHAKE_BACKLOG) {
+                Log.w(TAG, "Handshake backlog full, refusing " + joiner.name);
+                closeQuietly(socket);
+                return;
+            }
+            // The first frame is due this long after connecting, however long the wait for a slot
+            joiner.deadline = TimerService.get().schedule(() -> execute(() -> expire(joiner)),
+                    Constants.HANDSHAKE_AUTH_TIMEOUT_MS);
+            joiner.poll = TimerService.get().newTimeout(() -> execute(() -> poll(joiner)));
+            open.add(joiner);
+            waiting.addLast(joiner);
+            startWaiting();
+        }
+    }
+
+    /** Move waiting joiners into free slots. Caller holds the lock. */
+    private void startWaiting() {
+        while (active < Constants.HANDSHAKE_MAX_CONCURRENT && !waiting.isEmpty()) {
+            Joiner joiner = waiting.pollFirst();
+            joiner.phase = Phase.READING;
+            joiner.holdsSlot = true;
+            active++;
+            joiner.poll.reschedule(0);
+        }
+    }
+
+    // ========== READING ==========
+
+    /**
+     * Take what the joiner sent so far; hand a complete first frame on. Only
+     * one poll per joiner is ever pending, and the socket is read outside the
+     * lock.
+     */
+    private void poll(Joiner joiner) {
+        synchronized (this) {
+            if (joiner.phase != Phase.READING) {
+                return;
+            }
+        }
+        byte[] frame;
+        IOException error = null;
+        try {
+            frame = joiner.decoder.pollFrame(joiner.socket.getInputStream());
+        } catch (IOException e) {
+            frame = null;
+            error = e;
+        }
+        synchronized (this) {
+            if (joiner.phase != Phase.READING) {
+                return;  // Timed out or cleared while reading; the socket is closed
+            }
+            if (error != null) {
+                fail(joiner, error.getMessage());
+                return;
+            }
+            if (frame == null) {
+                joiner.poll.reschedule(Constants.HANDSHAKE_POLL_MS);
+                return;
+            }
+            joiner.phase = Phase.CHECKING;
+            joiner.deadline.reschedule(Constants.HANDSHAKE_CHECK_TIMEOUT_MS);
+            byte[] first = frame;
+            submit(joiner, () -> service.onHandshakeFrame(joiner, first));
+        }
+    }
+
+    // ========== CHECKING ==========
+
+    /**
+     * The joiner is authorised: claim a place for it. {@code ownsPlace} is
+     * for a member coming back to a place held for it.
+     *
+     * @return true to admit it now, false if it was queued until room frees up
+     */
+    boolean reserve(Joiner joiner, boolean ownsPlace) {
+        int members = service.countMembers();
+        synchronized (this) {
+            return reserve(joiner, ownsPlace, members);
+        }
+    }
+
+    private boolean reserve(Joiner joiner, boolean ownsPlace, int members) {
+        if (joiner.phase != Phase.CHECKING) {
+            return false;  // Timed out meanwhile; the socket is closed
+        }
+        releaseSlot(joiner);
+        if (ownsPlace || (queued.isEmpty() && hasRoom(members))) {
+            joiner.holdsPlace = true;
+            admitting++;
+            return true;
+        }
+        if (queued.size() >= Constants.ADMISSION_QUEUE_CAPACITY) {
+            Log.w(TAG, "Group full and admission queue full, refusing " + joiner.name);
+            close(joiner);
+            return false;
+        }
+        Log.d(TAG, "Group full, " + joiner.name + " waits for a place (" + (queued.size() + 1) + " queued)");
+        joiner.phase = Phase.QUEUED;
+        joiner.deadline.reschedule(Constants.ADMISSION_WAIT_MS);
+        queued.addLast(joiner);
+        return false;
+    }
+
+    /**
+     * Whether another joiner fits. {@code members} is counted before taking
+     * this lock, as counting takes the service's; places promised since are
+     * in {@code admitting}. Caller holds the lock.
+     */
+    private boolean hasRoom(int members) {
+        return members + admitting < service.getMemberCapacity();
+    }
+
+    /** A place may have freed up: admit queued joiners, oldest first. */
+    void onRoom() {
+        int members = service.countMembers();
+        synchronized (this) {
+            while (!queued.isEmpty() && hasRoom(members)) {
+                Joiner joiner = queued.pollFirst();
+                joiner.phase = Phase.CHECKING;
+                joiner.holdsPlace = true;
+                admitting++;
+                joiner.deadline.reschedule(Constants.HANDSHAKE_CHECK_TIMEOUT_MS);
+                submit(joiner, () -> admitQueued(joiner));
+            }
+        }
+    }
+
+    /** Worker: a queued joiner's turn came. It may have timed out, or been cleared, on the way. */
+    private void admitQueued(Joiner joiner) {
+        synchronized (this) {
+            if (joiner.phase != Phase.CHECKING) {
+                return;  // Its place was released when it closed
+            }
+        }
+        service.admit(joiner);
+    }
+
+    /** The joiner is a member now (its connection is registered). */
+    synchronized void admitted(Joiner joiner) {
+        joiner.deadline.cancel();
+        open.remove(joiner);
+        if (joiner.phase != Phase.CLOSED) {
+            joiner.phase = Phase.ADMITTED;
+        }
+        releasePlace(joiner);
+    }
+
+    /**
+     * Turn the joiner away: AUTH_FAIL, then the socket is closed once that had
+     * a moment to go out. Counts against its address.
+     */
+    void reject(Joiner joiner, String reason) {
+        synchronized (this) {
+            if (joiner.phase == Phase.CLOSED) {
+                return;
+            }
+            Log.d(TAG, "Refusing " + joiner.name + ": " + reason);
+            recordFailure(joiner.address);
+            finish(joiner);
+        }
+        try {
+            FrameEncoder.writeFrame(joiner.socket.getOutputStream(), ProtocolCodec.encodeAuthFail());
+        } catch (IOException e) {
+            closeQuietly(joiner.socket);
+            return;
+        }
+        TimerService.get().schedule(() -> execute(() -> closeQuietly(joiner.socket)),
+                Constants.HANDSHAKE_REJECT_LINGER_MS);
+    }
+
+    /** Give up on the joiner without an answer (I/O error, engine stopped). */
+    synchronized void abort(Joiner joiner, String reason) {
+        if (joiner.phase != Phase.CLOSED) {
+            Log.w(TAG, "Handshake with " + joiner.name + " failed: " + reason);
+            close(joiner);
+        }
+    }
+
+    // ========== ENDINGS ==========
+
+    /** Deadline of the joiner's current phase passed. */
+    private synchronized void expire(Joiner joiner) {
+        Phase phase = joiner.phase;
+        if (phase == Phase.ADMITTED || phase == Phase.CLOSED) {
+            return;
+        }
+        Log.w(TAG, "Handshake with " + joiner.name + " timed out in " + phase);
+        // Connecting and then saying nothing is what an idle or hostile peer does
+        if (phase == Phase.READING) {
+            recordFailure(joiner.address);
+        }
+        close(joiner);
+    }
+
+    /** Caller holds the lock. */
+    private void fail(Joiner joiner, String reason) {
+        Log.w(TAG, "Handshake with " + joiner.name + " failed: " + reason);
+        recordFailure(joiner.address);
+        close(joiner);
+    }
+
+    /** Caller holds the lock. */
+    private void close(Joiner joiner) {
+        finish(joiner);
+        closeQuietly(joiner.socket);
+    }
+
+    /** Leave the state machine for good and free what the joiner held. Caller holds the lock. */
+    private void finish(Joiner joiner) {
+        joiner.phase = Phase.CLOSED;
+        joiner.deadline.cancel();
+        joiner.poll.cancel();
+        open.remove(joiner);
+        waiting.remove(joiner);
+        queued.remove(joiner);
+        if (ready.remove(joiner)) {
+            joiner.step = null;
+        }
+        releaseSlot(joiner);
+        releasePlace(joiner);
+    }
+
+    private void releaseSlot(Joiner joiner) {
+        if (joiner.holdsSlot) {
+            joiner.holdsSlot = false;
+            active--;
+            startWaiting();
+        }
+    }
+
+    private void releasePlace(Joiner joiner) {
+        if (joiner.holdsPlace) {
+            joiner.holdsPlace = false;
+            admitting--;
+        }
+    }
+
+    /** Close every joiner still in progress, whatever its phase; failure counts are forgotten too. */
+    synchronized void clear() {
+        for (Joiner joiner : open.toArray(new Joiner[0])) {
+            close(joiner);
+        }
+        failures.clear();
+    }
+
+    /** Run a timer follow-up on the engine's link thread. */
+    private void execute(Runnable task) {
+        service.getEngine().execute(task);
+    }
+
+    /** Run the joiner's next step on a worker once fewer than the cap are busy. Caller holds the lock. */
+    private void submit(Joiner joiner, Runnable step) {
+        joiner.step = step;
+        ready.addLast(joiner);
+        startReady();
+    }
+
+    /** Hand ready steps to workers while under the cap. Caller holds the lock. */
+    private void startReady() {
+        while (working < Constants.HANDSHAKE_MAX_CONCURRENT && !ready.isEmpty()) {
+            Joiner joiner = ready.pollFirst();
+            Runnable step = joiner.step;
+            joiner.step = null;
+            working++;
+            try {
+                service.getEngine().submit(ConnectionEngine.Role.HANDSHAKE, joiner.name, () -> {
+                    try {
+                        step.run();
+                    } finally {
+                        stepDone();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Only once the engine has shut down: the pool has room for every step
+                working--;
+                abort(joiner, "engine stopped");
+            }
+        }
+    }
+
+    private synchronized void stepDone() {
+        working--;
+        startReady();
+    }
+
+    // ========== RATE LIMITING ==========
+
+    /** Caller holds the lock. */
+    private void recordFailure(String address) {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Failures> it = failures.values().iterator();
+        while (it.hasNext()) {
+            Failures stale = it.next();
+            if (now - stale.windowStart > Constants.HANDSHAKE_FAILURE_WINDOW_MS && now >= stale.lockedUntil) {
+                it.remove();
+            }
+        }
+        Failures recent = failures.get(address);
+        if (recent == null) {
+            recent = new Failures();
+            recent.windowStart = now;
+            failures.put(address, recent);
+        }
+        if (++recent.count >= Constants.HANDSHAKE_MAX_FAILURES) {
+            Log.w(TAG, recent.count + " failed attempts from " + address + ", locking it out");
+            recent.lockedUntil = now + Constants.HANDSHAKE_LOCKOUT_MS;
+            recent.windowStart = now;
+            recent.count = 0;
+        }
+    }
+
+    /** Caller holds the lock. */
+    private boolean isLockedOut(String address) {
+        Failures recent = failures.get(address);
+        return recent != null && SystemClock.elapsedRealtime() < recent.lockedUntil;
+    }
+
+    /**
+     * Stable key for a peer: the address it hosts under where the transport
+     * has one (a Bluetooth MAC), else its remote address without the port.
+     */
+    private static String addressOf(Transport.Connection socket) {
+        String address = socket.getHostingAddress();
+        if (address != null) {
+            return address;
+        }
+        address = socket.getRemoteAddress();
+        int port = address != null ? address.lastIndexOf(':') : -1;
+        return port > 0 ? address.substring(0, port) : String.valueOf(address);
+    }
+
+    private static void closeQuietly(Transport.Connection socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
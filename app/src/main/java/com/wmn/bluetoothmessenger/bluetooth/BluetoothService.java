@@ -2,25 +2,48 @@ package com.wmn.bluetoothmessenger.bluetooth;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.wmn.bluetoothmessenger.model.ChatMessage;
+import com.wmn.bluetoothmessenger.model.ProtocolEvent;
+import com.wmn.bluetoothmessenger.model.SenderTable;
+import com.wmn.bluetoothmessenger.transport.RfcommTransport;
+import com.wmn.bluetoothmessenger.transport.Transport;
 import com.wmn.bluetoothmessenger.util.Constants;
+import com.wmn.bluetoothmessenger.util.TimerService;
 
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Core Bluetooth service that manages:
- * - Server socket (for hosts accepting connections)
- * - Client socket connections (for joining groups)
- * - All active ConnectedThread instances
- * - Broadcasting messages to all connected peers
+ * - Listening for connections (hosts) and connecting to a host (clients),
+ *   both through a {@link Transport}: RFCOMM on devices, loopback or TCP in tests
+ * - All active PeerConnection instances, run on one bounded {@link ConnectionEngine}
+ * - Broadcasting messages to all connected peers (non-blocking enqueue onto
+ *   each peer's own {@link PeerWriter})
+ * - Host failover: the host names a successor, which takes over hosting when
+ *   the host goes while the other members reconnect to it
+ * - Resuming after a dropout: a member reconnects with the token it was issued
+ *   and both sides resend only the frames the other missed
  *
- * Uses Handler to relay events back to the UI thread.
+ * Uses Handler to relay events back to the UI thread: connection changes as
+ * individual messages, decoded protocol traffic as batched
+ * {@link Constants#MSG_EVENTS} (see {@link EventDispatcher}).
  */
 public class BluetoothService {
 
@@ -34,7 +57,12 @@ public class BluetoothService {
      * that starts the Bluetooth session (CreateGroupActivity / JoinGroupActivity).
      */
     public static BluetoothService init(BluetoothAdapter adapter, Handler handler) {
-        instance = new BluetoothService(adapter, handler);
+        return init(new RfcommTransport(adapter), handler);
+    }
+
+    /** Same as above over any {@link Transport}, e.g. a loopback network in tests. */
+    public static BluetoothService init(Transport transport, Handler handler) {
+        instance = new BluetoothService(transport, handler);
         return instance;
     }
 
@@ -43,15 +71,13 @@ public class BluetoothService {
         return instance;
     }
 
-    /** Swap the UI handler when moving between Activities. */
+    /**
+     * Swap the UI handler when moving between Activities. Events since a
+     * fresh join (its history included) are held until this is called.
+     */
     public void setHandler(Handler newHandler) {
         this.handler = newHandler;
-        // Also update every live ConnectedThread so in-flight messages reach the new handler
-        synchronized (connectedThreads) {
-            for (ConnectedThread thread : connectedThreads) {
-                thread.setHandler(newHandler);
-            }
-        }
+        eventDispatcher.setHandler(newHandler);
     }
 
     /**
@@ -67,14 +93,80 @@ public class BluetoothService {
     }
     // ──────────────────────────────────────────────────────────────────────────
 
-    private final BluetoothAdapter adapter;
+    private final Transport transport;
     private volatile Handler handler;
 
-    private AcceptThread acceptThread;
-    private final List<ConnectedThread> connectedThreads = Collections.synchronizedList(new ArrayList<>());
+    /** Shared worker pool for accept, read, write and handshake tasks. */
+    private final ConnectionEngine engine = new ConnectionEngine();
+    /** Batches decoded protocol events from all connections for the UI. */
+    private final EventDispatcher eventDispatcher;
 
-    private boolean isHost = false;
+    private volatile AcceptThread acceptThread;
+    private final List<PeerConnection> peerConnections = Collections.synchronizedList(new ArrayList<>());
+
+    private volatile boolean isHost = false;
     private String passwordHash = "";
+    private volatile PeerWriter.OverflowPolicy overflowPolicy = PeerWriter.OverflowPolicy.DISCONNECT;
+    private volatile long batchWindowMs = Constants.WRITE_BATCH_WINDOW_MS;
+    private volatile int batchMaxBytes = Constants.WRITE_BATCH_MAX_BYTES;
+    private volatile long heartbeatIntervalMs = Constants.HEARTBEAT_INTERVAL_MS;
+    private volatile int heartbeatMissLimit = Constants.HEARTBEAT_MISS_LIMIT;
+    private volatile boolean compressionEnabled = true;
+    /** Session sender IDs; the host assigns them, clients learn them from the host. */
+    private final SenderTable senderTable = new SenderTable();
+    private volatile int localSenderId = Constants.HOST_SENDER_ID;
+    private final Object joinLock = new Object();
+    /** This device's next chat sequence number; kept across reconnects. */
+    private final AtomicLong chatSequence = new AtomicLong();
+    /** Chat frames already delivered, by (sender ID, sequence). */
+    private final DuplicateFilter duplicateFilter = new DuplicateFilter();
+    /** Whether to offer / request {@link Constants#CAP_MESH} in future handshakes. */
+    private volatile boolean meshEnabled = false;
+    /** Mesh relay: a client that also accepts members of its own. */
+    private volatile boolean relaying = false;
+    private final AtomicInteger meshChildren = new AtomicInteger();
+    private final MeshRouter meshRouter = new MeshRouter();
+    /**
+     * Who takes over hosting if the host goes: elected here on the host,
+     * announced by the host to everyone else; -1 for nobody.
+     */
+    private volatile int successorId = -1;
+    private volatile String successorAddress;
+    /**
+     * This device is the successor but the host went without leaving: we
+     * rejoin it as a member, and take over only if it cannot be reached.
+     */
+    private volatile boolean standingBy = false;
+    /** The host ended the session, or this device is leaving: losing the host is final then. */
+    private volatile boolean sessionEnded = false;
+    /** Host: the resume token issued to each member in AUTH_OK. */
+    private final Map<Integer, byte[]> resumeTokens = new ConcurrentHashMap<>();
+    /**
+     * Members whose link dropped, held for a resume: on the host the members,
+     * on a client the host while we resume. Also the lock that keeps a
+     * broadcast from slipping between the held frames and the new connection.
+     */
+    private final Map<Integer, ParkedMember> parked = new HashMap<>();
+    /** Client: where we joined and the token to resume with. */
+    private volatile String hostAddress;
+    private volatile byte[] resumeToken;
+    private volatile int hostSenderId = Constants.HOST_SENDER_ID;
+    private final SecureRandom random = new SecureRandom();
+
+    /** A peer whose link dropped without it leaving; see {@link #park}. */
+    private static final class ParkedMember {
+        final PeerConnection link;
+        final List<byte[]> missed = new ArrayList<>();  // session frames broadcast meanwhile
+        TimerService.Timeout expiry;                     // host side only
+
+        ParkedMember(PeerConnection link) {
+            this.link = link;
+        }
+    }
+    /** Chunked file / image transfers over the same connections. */
+    private final FileTransferManager fileTransfers = new FileTransferManager(this);
+    /** Host / relay: incoming connections on their way to becoming members. */
+    private final AdmissionControl admission = new AdmissionControl(this);
 
     // Callback interface for authentication on the host side
     public interface AuthCallback {
@@ -87,19 +179,111 @@ public class BluetoothService {
 
     private AuthCallback authCallback;
 
-    private BluetoothService(BluetoothAdapter adapter, Handler handler) {
-        this.adapter = adapter;
+    /** Host side: the chat a new member should catch up on. */
+    public interface HistorySource {
+        /** Messages currently held, oldest first; must be safe to call from any thread. */
+        List<ChatMessage> getMessages();
+    }
+
+    private volatile HistorySource historySource;
+
+    private BluetoothService(Transport transport, Handler handler) {
+        this.transport = transport;
         this.handler = handler;
+        this.eventDispatcher = new EventDispatcher(handler);
     }
 
     public void setAuthCallback(AuthCallback callback) {
         this.authCallback = callback;
     }
 
+    /** Where the host takes the snapshot of unexpired chat it replays to each new member. */
+    public void setHistorySource(HistorySource source) {
+        this.historySource = source;
+    }
+
     public void setPasswordHash(String hash) {
         this.passwordHash = hash;
     }
 
+    /**
+     * Choose what happens when a peer's outbound queue fills up.
+     * Applies to existing and future connections.
+     */
+    public void setOverflowPolicy(PeerWriter.OverflowPolicy policy) {
+        this.overflowPolicy = policy;
+        for (PeerConnection peer : snapshotConnections()) {
+            peer.getWriter().setOverflowPolicy(policy);
+        }
+    }
+
+    public PeerWriter.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Tune write coalescing: frames queued within {@code windowMs}, up to
+     * {@code maxBytes}, go out as one socket write. Applies to existing and
+     * future connections.
+     */
+    public void setWriteBatching(long windowMs, int maxBytes) {
+        this.batchWindowMs = windowMs;
+        this.batchMaxBytes = maxBytes;
+        for (PeerConnection peer : snapshotConnections()) {
+            peer.getWriter().setBatching(windowMs, maxBytes);
+        }
+    }
+
+    /**
+     * Tune dead-peer detection: every link pings its peer each
+     * {@code intervalMs} and is dropped after {@code missLimit} intervals
+     * without hearing from it. An interval of 0 turns the heartbeat off.
+     * Applies to existing and future connections.
+     */
+    public void setHeartbeat(long intervalMs, int missLimit) {
+        this.heartbeatIntervalMs = intervalMs;
+        this.heartbeatMissLimit = missLimit;
+        for (PeerConnection peer : snapshotConnections()) {
+            peer.setHeartbeat(intervalMs, missLimit);
+        }
+    }
+
+    /**
+     * Whether to offer / accept Deflate frame compression in future handshakes.
+     * Existing connections keep what they negotiated.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        this.compressionEnabled = enabled;
+    }
+
+    /**
+     * Mesh mode: as host, let members relay for others out of its range; as a
+     * client, offer to be such a relay. Takes effect from the next handshake.
+     */
+    public void setMeshEnabled(boolean enabled) {
+        this.meshEnabled = enabled;
+    }
+
+    public boolean isMeshEnabled() {
+        return meshEnabled;
+    }
+
+    long getBatchWindowMs() {
+        return batchWindowMs;
+    }
+
+    int getBatchMaxBytes() {
+        return batchMaxBytes;
+    }
+
+    long getHeartbeatIntervalMs() {
+        return heartbeatIntervalMs;
+    }
+
+    int getHeartbeatMissLimit() {
+        return heartbeatMissLimit;
+    }
+
     // ========== HOST MODE ==========
 
     /**
@@ -107,87 +291,254 @@ public class BluetoothService {
      */
     public void startHosting() {
         isHost = true;
+        localSenderId = Constants.HOST_SENDER_ID;
+        senderTable.put(Constants.HOST_SENDER_ID, localDeviceName());
         if (acceptThread != null) {
             acceptThread.cancel();
+            acceptThread = null;
         }
-        acceptThread = new AcceptThread(adapter, handler, this);
-        acceptThread.start();
-        Log.d(TAG, "Started hosting, awaiting connections");
+        if (startAcceptLoop()) {
+            Log.d(TAG, "Started hosting, awaiting connections");
+        }
+    }
+
+    /** Open the listener and start accepting; false if no worker is left for it. */
+    private boolean startAcceptLoop() {
+        AcceptThread accept = new AcceptThread(transport, handler, this);
+        try {
+            accept.start();
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Cannot start accept loop", e);
+            accept.cancel();
+            return false;
+        }
+        acceptThread = accept;
+        return true;
     }
 
     /**
-     * Called by AcceptThread when a new connection is accepted.
-     * Starts a ConnectedThread that will first handle authentication.
+     * Called by AcceptThread when a new connection is accepted. The
+     * {@link AdmissionControl} takes it from here: it reads the joiner's first
+     * frame without holding a thread, then hands it to
+     * {@link #onHandshakeFrame} on a pooled worker.
      */
-    @SuppressWarnings("MissingPermission")
-    public void onConnectionAccepted(BluetoothSocket socket) {
-        String deviceName;
+    public void onConnectionAccepted(Transport.Connection socket) {
+        Log.d(TAG, "New connection from: " + socket.getRemoteName());
+        admission.offer(socket);
+    }
+
+    /**
+     * Host side of the handshake, on a pooled worker: check the joiner's
+     * first frame, AUTH [version][hash][caps]([previousId]) or RESUME, and
+     * admit it now or once the group has room.
+     */
+    void onHandshakeFrame(AdmissionControl.Joiner joiner, byte[] auth) {
         try {
-            deviceName = socket.getRemoteDevice().getName();
-            if (deviceName == null)
-                deviceName = socket.getRemoteDevice().getAddress();
-        } catch (SecurityException e) {
-            deviceName = socket.getRemoteDevice().getAddress();
+            if (ProtocolCodec.opcode(auth, 0, auth.length) == Constants.OP_RESUME) {
+                acceptResume(joiner, auth);
+                return;
+            }
+            if (ProtocolCodec.opcode(auth, 0, auth.length) != Constants.OP_AUTH) {
+                admission.reject(joiner, "not an auth frame");
+                return;
+            }
+            ProtocolCodec.Reader reader = new ProtocolCodec.Reader(auth, 0, auth.length);
+            int version = reader.readByte();
+            String clientHash = reader.readString();
+            int clientCaps = reader.readVarint();
+            // Only sent by a member reconnecting after a host failover
+            int previousId = reader.hasRemaining() ? reader.readVarint() : -1;
+
+            if (version != Constants.PROTOCOL_VERSION || !authorize(clientHash)) {
+                // Wrong password or incompatible protocol version
+                admission.reject(joiner, "authentication failed");
+                if (authCallback != null) {
+                    authCallback.onAuthFail(joiner.name);
+                }
+                return;
+            }
+            // Echo back the capabilities both sides support
+            joiner.caps = clientCaps & offeredCaps();
+            joiner.previousId = previousId;
+            boolean ownsPlace;
+            synchronized (parked) {
+                ownsPlace = previousId >= 0 && parked.containsKey(previousId);
+            }
+            if (admission.reserve(joiner, ownsPlace)) {
+                admit(joiner);
+            }
+        } catch (IOException e) {
+            admission.abort(joiner, e.toString());
         }
+    }
 
-        Log.d(TAG, "New connection from: " + deviceName);
+    /**
+     * Make an authorised joiner a member, on a pooled worker: assign its
+     * sender ID, send the welcome and tell the group.
+     */
+    void admit(AdmissionControl.Joiner joiner) {
+        String deviceName = joiner.name;
+        // Shares the handshake's decoder so frames the client pipelined behind AUTH are not lost
+        PeerConnection peer = new PeerConnection(joiner.socket, deviceName, joiner.decoder, this);
+        int caps = joiner.caps;
+        peer.setCompressionEnabled((caps & Constants.CAP_DEFLATE) != 0);
+        peer.setMeshEnabled((caps & Constants.CAP_MESH) != 0);
+        // Encoded outside joinLock so a long history never holds up other joins
+        List<byte[]> history = encodeHistory();
 
-        // Create a temporary thread to handle auth
-        final String finalDeviceName = deviceName;
-        ConnectedThread thread = new ConnectedThread(socket, handler, deviceName);
+        // Admit under joinLock so concurrent handshakes can't interleave:
+        // every member either is in the newcomer's roster or sees its JOIN
+        int senderId;
+        boolean resumed;
+        try {
+            synchronized (joinLock) {
+                senderId = allocateSenderId(deviceName, joiner.previousId);
+                resumed = senderId == joiner.previousId;
+                if (senderId < 0) {
+                    admission.abort(joiner, "no sender ID left");
+                    return;
+                }
+                peer.setSenderId(senderId);
+                meshRouter.learn(senderId, peer);
+                byte[] token = new byte[Constants.RESUME_TOKEN_BYTES];
+                random.nextBytes(token);
+                resumeTokens.put(senderId, token);
 
-        // Start a separate thread for the auth handshake on the host side
-        new Thread(() -> {
-            try {
-                // Read the auth message from the client
-                byte[] buffer = new byte[1024];
-                int bytes = socket.getInputStream().read(buffer);
-                String authMessage = new String(buffer, 0, bytes);
+                // One frame with everything the newcomer starts from: who is
+                // here, names for replayed chat, who takes over, and the first
+                // part of the chat it missed. Queued rather than written here
+                // (no socket I/O under the lock), before the writer starts so
+                // it precedes any chat
+                Map<Integer, String> members = new TreeMap<>();
+                Map<Integer, String> former = new TreeMap<>();
+                for (Map.Entry<Integer, String> member : senderTable.snapshot().entrySet()) {
+                    if (member.getKey() != senderId) {
+                        (isPresent(member.getKey()) ? members : former)
+                                .put(member.getKey(), member.getValue());
+                    }
+                }
+                int successor = isHost && successorId > 0 ? successorId : 0;
+                // A frame holding one oversized entry goes on its own instead
+                boolean carried = !history.isEmpty()
+                        && history.get(0).length <= Constants.HISTORY_FRAME_BYTES;
+                peer.write(ProtocolCodec.encodeAuthOk(caps, senderId, localSenderId, token,
+                        successor, successorAddress, members, former,
+                        carried ? history.get(0) : null));
+                // Then the rest of that chat. Anything sent from here on is relayed
+                // live once the connection is registered; a message in both is
+                // delivered once, by (sender ID, sequence)
+                for (int i = carried ? 1 : 0; i < history.size(); i++) {
+                    peer.write(history.get(i));
+                }
 
-                if (authMessage.startsWith(Constants.PROTO_AUTH)) {
-                    String clientHash = authMessage.substring(Constants.PROTO_AUTH.length());
+                // Register the connection and start its reader / writer
+                try {
+                    startConnection(peer);
+                } catch (IOException e) {
+                    meshRouter.forget(senderId);
+                    resumeTokens.remove(senderId);
+                    throw e;
+                }
+                admission.admitted(joiner);
 
-                    if (authCallback != null && authCallback.onAuthRequest(clientHash)) {
-                        // Auth successful
-                        socket.getOutputStream().write(Constants.PROTO_AUTH_OK.getBytes());
-                        socket.getOutputStream().flush();
+                // Notify all existing members about the new member; one coming
+                // back after a failover is known to them already
+                byte[] announcement = resumed
+                        ? ProtocolCodec.encodeSender(senderId, deviceName)
+                        : ProtocolCodec.encodeJoin(senderId, deviceName);
+                sendFrame(OutboundFrame.of(announcement), peer);
+                electSuccessor();
+            }
+        } catch (IOException e) {
+            admission.abort(joiner, e.toString());
+            return;
+        }
 
-                        // Register the connected thread
-                        connectedThreads.add(thread);
-                        thread.start();
+        // arg1 = 1 for a member returning after a failover
+        handler.obtainMessage(Constants.MSG_CONNECTED, resumed ? 1 : 0, 0, deviceName)
+                .sendToTarget();
+
+        if (authCallback != null) {
+            authCallback.onAuthSuccess(deviceName);
+        }
+    }
+
+    /** Members connected to this device, counting places held for a resume. */
+    int countMembers() {
+        int members = countChildren();
+        synchronized (parked) {
+            for (ParkedMember member : parked.values()) {
+                if (member.expiry != null) {
+                    members++;
+                }
+            }
+        }
+        return members;
+    }
 
-                        handler.obtainMessage(Constants.MSG_CONNECTED, finalDeviceName).sendToTarget();
+    /** Most members this device takes: a piconet's worth, fewer on a mesh relay. */
+    int getMemberCapacity() {
+        return relaying ? Constants.MESH_MAX_CHILDREN : Constants.MAX_PEERS;
+    }
 
-                        if (authCallback != null) {
-                            authCallback.onAuthSuccess(finalDeviceName);
-                        }
+    /**
+     * Check a joiner's password: the host asks its callback, a relay or a
+     * member that took over hosting compares with the one it joined with.
+     */
+    private boolean authorize(String clientHash) {
+        AuthCallback callback = authCallback;
+        if (callback != null) {
+            return callback.onAuthRequest(clientHash);
+        }
+        return (relaying || isHost) && passwordHash.equals(clientHash);
+    }
 
-                        // Notify all existing members about the new member
-                        broadcastMessage(Constants.PROTO_JOIN + finalDeviceName);
-                    } else {
-                        // Auth failed
-                        socket.getOutputStream().write(Constants.PROTO_AUTH_FAIL.getBytes());
-                        socket.getOutputStream().flush();
+    /** Capabilities this device grants a joiner. */
+    private int offeredCaps() {
+        int caps = compressionEnabled ? Constants.CAP_DEFLATE : 0;
+        // The joiner may relay in turn if its children stay within the depth limit
+        if (meshEnabled && MeshRouter.depthOf(localSenderId) + 1 < Constants.MESH_MAX_DEPTH) {
+            caps |= Constants.CAP_MESH;
+        }
+        return caps;
+    }
 
-                        if (authCallback != null) {
-                            authCallback.onAuthFail(finalDeviceName);
-                        }
+    /**
+     * Sender ID for a joiner: the next session ID on the host, the next ID of
+     * its block on a mesh relay. A member rejoining (after a failover, or when
+     * its resume came too late) keeps its {@code previousId} if it is one the
+     * session knows and nobody connected holds it.
+     *
+     * @return -1 if no ID is left; the caller holds joinLock
+     */
+    private int allocateSenderId(String name, int previousId) {
+        int id;
+        if (relaying) {
+            id = MeshRouter.childId(localSenderId, meshChildren.incrementAndGet());
+        } else if (previousId > Constants.HOST_SENDER_ID && previousId != localSenderId
+                && MeshRouter.depthOf(previousId) == 1 && senderTable.get(previousId) != null
+                && meshRouter.routeTo(previousId) == null) {
+            id = previousId;
+            unpark(previousId);
+        } else {
+            // Below the first relay block, so depth checks hold with or without mesh
+            id = senderTable.assign(name);
+        }
+        if (id >= 0) {
+            senderTable.put(id, name);
+        }
+        return id;
+    }
 
-                        Thread.sleep(500);
-                        socket.close();
-                    }
-                } else {
-                    // Invalid protocol, close connection
-                    socket.close();
-                }
-            } catch (IOException | InterruptedException e) {
-                Log.e(TAG, "Auth handshake failed for " + finalDeviceName, e);
-                try {
-                    socket.close();
-                } catch (IOException ignored) {
-                }
+    /** Connections to members below this device (everything but the upstream link). */
+    private int countChildren() {
+        int children = 0;
+        for (PeerConnection peer : snapshotConnections()) {
+            if (!peer.isUpstream() && peer.isConnected()) {
+                children++;
             }
-        }).start();
+        }
+        return children;
     }
 
     // ========== CLIENT MODE ==========
@@ -195,88 +546,734 @@ public class BluetoothService {
     /**
      * Connect to a host device as a client.
      */
-    @SuppressWarnings("MissingPermission")
     public void connectToHost(BluetoothDevice device, String password) {
+        connectToHost(device.getAddress(), password);
+    }
+
+    /**
+     * Connect to the host at {@code address}, in whatever form the transport
+     * uses (a Bluetooth MAC, a loopback name, "host:port").
+     */
+    public void connectToHost(String address, String password) {
         isHost = false;
+        String hash = com.wmn.bluetoothmessenger.model.GroupInfo.hashPassword(password);
+        connect(address, hash, -1, Collections.emptyList(), 1);
+    }
 
-        new Thread(() -> {
-            BluetoothSocket socket = null;
+    /**
+     * Join through {@code address}. When rejoining (after a failover, or when
+     * a resume was refused) {@code previousId} is the sender ID to keep (-1 for
+     * a fresh join), {@code unsent} the frames the old link never had
+     * acknowledged, and a refused connection is retried while the successor
+     * opens its listener.
+     */
+    private void connect(String address, String hash, int previousId, List<byte[]> unsent, int attempts) {
+        Runnable connect = () -> {
+            Transport.Connection socket = null;
             try {
-                socket = device.createRfcommSocketToServiceRecord(Constants.BT_UUID);
-                adapter.cancelDiscovery();
-                socket.connect();
+                socket = transport.connect(address);
 
                 // Send auth
-                String hash = com.wmn.bluetoothmessenger.model.GroupInfo.hashPassword(password);
-                socket.getOutputStream().write((Constants.PROTO_AUTH + hash).getBytes());
-                socket.getOutputStream().flush();
+                int offeredCaps = (compressionEnabled ? Constants.CAP_DEFLATE : 0)
+                        | (meshEnabled ? Constants.CAP_MESH : 0);
+                FrameEncoder.writeFrame(socket.getOutputStream(), previousId >= 0
+                        ? ProtocolCodec.encodeAuth(hash, offeredCaps, previousId)
+                        : ProtocolCodec.encodeAuth(hash, offeredCaps));
+
+                // Wait for the auth response, however the transport splits it; keep
+                // the decoder since the host may already have queued more history or
+                // a JOIN right behind AUTH_OK
+                FrameDecoder frameDecoder = new FrameDecoder();
+                Transport.Connection connection = socket;
+                TimerService.Timeout authTimeout = TimerService.get().schedule(
+                        () -> engine.execute(() -> closeTimedOut(connection, address)), Constants.HANDSHAKE_TIMEOUT_MS);
+                byte[] response;
+                try {
+                    response = frameDecoder.readFrame(socket.getInputStream());
+                } finally {
+                    authTimeout.cancel();
+                }
 
-                // Wait for auth response
-                byte[] buffer = new byte[1024];
-                int bytes = socket.getInputStream().read(buffer);
-                String response = new String(buffer, 0, bytes);
+                // AUTH_OK [version][caps][yourId][hostId][token][successor][roster][former][history]
+                if (ProtocolCodec.opcode(response, 0, response.length) == Constants.OP_AUTH_OK) {
+                    ProtocolCodec.Reader reader = new ProtocolCodec.Reader(response, 0, response.length);
+                    reader.readByte(); // version; the host already rejected a mismatch
+                    int hostCaps = reader.readVarint();
+                    localSenderId = reader.readVarint();
+                    int hostId = reader.readVarint();
+                    resumeToken = reader.readBytes();
+                    int successor = reader.readVarint();
+                    String successorAddress = reader.readString();
+                    Map<Integer, String> members = ProtocolDecoder.decodeRoster(reader);
+                    Map<Integer, String> former = ProtocolDecoder.decodeRoster(reader);
+                    List<ChatMessage> history = ProtocolDecoder.decodeHistory(reader, duplicateFilter);
+                    boolean hostChanged = previousId >= 0 && hostId != hostSenderId;
+                    standingBy = false;
+                    hostSenderId = hostId;
+                    hostAddress = address;
+                    senderTable.put(localSenderId, localDeviceName());
+                    // Children, and a failover, authenticate against the password we joined with
+                    passwordHash = hash;
 
-                if (Constants.PROTO_AUTH_OK.equals(response)) {
-                    String deviceName;
-                    try {
-                        deviceName = device.getName();
-                        if (deviceName == null)
-                            deviceName = device.getAddress();
-                    } catch (SecurityException e) {
-                        deviceName = device.getAddress();
+                    String deviceName = socket.getRemoteName();
+
+                    PeerConnection peer = new PeerConnection(socket, deviceName, frameDecoder, this);
+                    peer.setCompressionEnabled((offeredCaps & hostCaps & Constants.CAP_DEFLATE) != 0);
+                    peer.setUpstream(true);
+                    peer.setSenderId(hostId);
+                    for (Map.Entry<Integer, String> member : former.entrySet()) {
+                        senderTable.put(member.getKey(), member.getValue());
+                    }
+                    for (Map.Entry<Integer, String> member : members.entrySet()) {
+                        senderTable.put(member.getKey(), member.getValue());
+                        meshRouter.learn(member.getKey(), peer);
+                    }
+                    if (successor > 0) {
+                        setSuccessor(successor, successorAddress);
+                    }
+                    if (previousId < 0) {
+                        // The join screen is about to hand over to the chat screen: keep
+                        // the history, and whatever follows it, for whichever attaches next
+                        eventDispatcher.hold();
+                    }
+                    if (!history.isEmpty()) {
+                        eventDispatcher.post(ProtocolEvent.history(history));
+                    }
+                    // Whatever the old host never acknowledged; chat already seen is dropped by sequence
+                    for (byte[] frame : unsent) {
+                        peer.write(frame);
                     }
+                    startConnection(peer);
 
-                    ConnectedThread thread = new ConnectedThread(socket, handler, deviceName);
-                    connectedThreads.add(thread);
-                    thread.start();
+                    if (previousId < 0) {
+                        handler.obtainMessage(Constants.MSG_CONNECTED, deviceName).sendToTarget();
+                    } else if (hostChanged) {
+                        handler.obtainMessage(Constants.MSG_HOST_CHANGED, deviceName).sendToTarget();
+                    }
 
-                    handler.obtainMessage(Constants.MSG_CONNECTED, deviceName).sendToTarget();
+                    if ((offeredCaps & hostCaps & Constants.CAP_MESH) != 0) {
+                        startRelaying();
+                    }
                 } else {
-                    handler.obtainMessage(Constants.MSG_CONNECTION_FAILED, "Authentication failed").sendToTarget();
                     socket.close();
+                    onConnectFailed("Authentication failed", previousId);
                 }
             } catch (IOException e) {
-                Log.e(TAG, "Connection failed", e);
-                handler.obtainMessage(Constants.MSG_CONNECTION_FAILED, e.getMessage()).sendToTarget();
                 if (socket != null) {
                     try {
                         socket.close();
                     } catch (IOException ignored) {
                     }
                 }
+                if (attempts > 1 && !sessionEnded) {
+                    Log.d(TAG, "Cannot reach " + address + " yet (" + e.getMessage() + "), retrying");
+                    TimerService.get().schedule(() -> connect(address, hash, previousId, unsent, attempts - 1),
+                            Constants.FAILOVER_RETRY_MS);
+                    return;
+                }
+                Log.e(TAG, "Connection failed", e);
+                if (standingBy && socket == null) {
+                    // Not even a connection: the old host is gone, take over as named
+                    standingBy = false;
+                    takeOverHosting();
+                    return;
+                }
+                onConnectFailed(e.getMessage(), previousId);
             } catch (SecurityException e) {
                 Log.e(TAG, "Bluetooth permission missing", e);
-                handler.obtainMessage(Constants.MSG_CONNECTION_FAILED, "Permission denied").sendToTarget();
+                onConnectFailed("Permission denied", previousId);
+            }
+        };
+        try {
+            engine.submit(ConnectionEngine.Role.HANDSHAKE, null, connect);
+        } catch (RejectedExecutionException e) {
+            onConnectFailed("Too many connections", previousId);
+        }
+    }
+
+    /** A join failed for good; for a member rejoining that means the group is gone. */
+    private void onConnectFailed(String reason, int previousId) {
+        standingBy = false;
+        if (previousId >= 0) {
+            Log.w(TAG, "Could not rejoin after the host left: " + reason);
+            eventDispatcher.post(ProtocolEvent.sessionEnd());
+        } else {
+            handler.obtainMessage(Constants.MSG_CONNECTION_FAILED, reason).sendToTarget();
+        }
+    }
+
+    /**
+     * Mesh relay: accept members of our own on top of the link to the host.
+     * They get IDs from our block and reach the group through us.
+     */
+    private void startRelaying() {
+        relaying = true;
+        meshChildren.set(0);
+        if (!startAcceptLoop()) {
+            relaying = false;
+            return;
+        }
+        Log.d(TAG, "Relaying for up to " + Constants.MESH_MAX_CHILDREN + " members as ID " + localSenderId);
+    }
+
+    /** Stop accepting members of our own; the ones we had were sent SESSION_END. */
+    private void stopRelaying() {
+        relaying = false;
+        AcceptThread accept = acceptThread;
+        if (accept != null) {
+            accept.cancel();
+            acceptThread = null;
+        }
+    }
+
+    /**
+     * A connection went down. A member that dropped out without leaving gets
+     * {@link Constants#RESUME_GRACE_MS} to resume before anyone hears of it,
+     * and a member that lost the host resumes the same way; a host that left
+     * or stays unreachable starts a failover. A relay that lost its own way to
+     * the host can no longer carry its children.
+     */
+    void onLinkLost(PeerConnection link) {
+        List<Integer> lost = meshRouter.dropLink(link);
+        if (link.isUpstream()) {
+            boolean resuming = !sessionEnded && !link.hasPeerLeft() && resumeToken != null;
+            synchronized (parked) {
+                // Hold what we send meanwhile, like the host does for us; taken
+                // out of the connections in the same step, so no broadcast slips
+                // between the two (the link itself keeps what reaches it)
+                peerConnections.remove(link);
+                if (resuming) {
+                    parked.put(link.getSenderId(), new ParkedMember(link));
+                }
+            }
+            if (relaying) {
+                sendFrame(OutboundFrame.of(ProtocolCodec.encodeSessionEnd()), link);
+                stopRelaying();
+            }
+            if (sessionEnded) {
+                handler.obtainMessage(Constants.MSG_DISCONNECTED, link.getDeviceName()).sendToTarget();
+            } else if (!resuming) {
+                onHostLost(link);
+            } else {
+                handler.obtainMessage(Constants.MSG_TOAST, "Connection lost, reconnecting…").sendToTarget();
+                scheduleResume(link, 0, SystemClock.elapsedRealtime() + Constants.RESUME_GRACE_MS);
             }
-        }).start();
+            return;
+        }
+        fileTransfers.onDisconnected(link);
+        // Relays are not held: their children lost their way in anyway
+        if (!sessionEnded && !link.hasPeerLeft() && !link.isMeshEnabled()
+                && resumeTokens.containsKey(link.getSenderId())) {
+            park(link);
+            return;
+        }
+        peerConnections.remove(link);
+        dropMembers(link, lost);
+    }
+
+    /**
+     * {@code link} is gone for good: report its peer locally, and in a mesh
+     * tell this device and the rest of the group that the members behind it
+     * left too. Losing the successor makes the host elect another.
+     */
+    private void dropMembers(PeerConnection link, List<Integer> lost) {
+        resumeTokens.remove(link.getSenderId());
+        handler.obtainMessage(Constants.MSG_DISCONNECTED, link.getDeviceName()).sendToTarget();
+        electSuccessor();
+        for (int id : lost) {
+            if (id != link.getSenderId()) {
+                // The peer itself is reported locally by MSG_DISCONNECTED
+                eventDispatcher.post(ProtocolEvent.leave(id, senderTable.nameOf(id)));
+            } else if (!relaying) {
+                continue; // The host's own members have always left silently
+            }
+            sendFrame(OutboundFrame.of(ProtocolCodec.encodeLeave(id)), link);
+        }
+        // Its place is free for whoever waits to join
+        admission.onRoom();
+    }
+
+    /** Timer follow-up: give up on a host that has not answered our handshake. Unblocks the read. */
+    private static void closeTimedOut(Transport.Connection connection, String name) {
+        Log.w(TAG, "Handshake with " + name + " timed out");
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Register an authenticated connection and start its reader and writer.
+     *
+     * @throws IOException if the engine has no worker left for it
+     */
+    private void startConnection(PeerConnection peer) throws IOException {
+        peerConnections.add(peer);
+        try {
+            peer.start();
+        } catch (RejectedExecutionException e) {
+            peerConnections.remove(peer);
+            throw new IOException("No worker available for " + peer.getDeviceName(), e);
+        }
+        if (peer.isUpstream()) {
+            fileTransfers.onConnected(peer);
+        }
+    }
+
+    // ========== RESUME ==========
+
+    /**
+     * Host: hold the place of a member that dropped out. Session frames
+     * broadcast meanwhile are kept for it, and nobody hears it left unless
+     * {@link Constants#RESUME_GRACE_MS} runs out first. It leaves the
+     * connections and is parked in one step; frames that reached its link
+     * before that are kept by the link and resent with its unacknowledged ones.
+     */
+    private void park(PeerConnection link) {
+        int id = link.getSenderId();
+        ParkedMember member = new ParkedMember(link);
+        synchronized (parked) {
+            peerConnections.remove(link);
+            member.expiry = TimerService.get().schedule(() -> engine.execute(() -> expire(id, member)),
+                    Constants.RESUME_GRACE_MS);
+            ParkedMember previous = parked.put(id, member);
+            if (previous != null) {
+                previous.expiry.cancel();
+            }
+        }
+        Log.d(TAG, link.getDeviceName() + " dropped out, holding its place");
+        electSuccessor();
+    }
+
+    /** Timer follow-up: a member that dropped out did not come back in time. */
+    private void expire(int id, ParkedMember member) {
+        synchronized (parked) {
+            if (parked.get(id) != member) {
+                return;
+            }
+            parked.remove(id);
+        }
+        Log.d(TAG, member.link.getDeviceName() + " did not come back");
+        dropMembers(member.link, Collections.singletonList(id));
+    }
+
+    /** A held member rejoined in full instead: let its place go without announcing a leave. */
+    private void unpark(int id) {
+        ParkedMember member;
+        synchronized (parked) {
+            member = parked.remove(id);
+        }
+        if (member != null && member.expiry != null) {
+            member.expiry.cancel();
+        }
+    }
+
+    /**
+     * Client: stop holding frames for the host we were resuming with and
+     * return everything it has yet to get, oldest first: the old link's
+     * unacknowledged tail past {@code hostReceived}, then what was sent since.
+     */
+    private List<byte[]> takeHeldFrames(PeerConnection lost, long hostReceived) {
+        synchronized (parked) {
+            ParkedMember held = parked.remove(lost.getSenderId());
+            List<byte[]> frames = lost.takeUnacknowledged(hostReceived);
+            if (held != null) {
+                frames.addAll(held.missed);
+            }
+            return frames;
+        }
+    }
+
+    /** Keep a session frame for every held member; the caller holds {@code parked}. */
+    private void holdForParked(OutboundFrame frame) {
+        byte[] payload = frame.payload();
+        if (!ProtocolCodec.isReliableOpcode(ProtocolCodec.opcode(payload, 0, payload.length))) {
+            return; // File transfers resume on their own
+        }
+        for (ParkedMember member : parked.values()) {
+            if (member.missed.size() < Constants.RESUME_HOLD_FRAMES) {
+                member.missed.add(payload);
+            } else if (member.missed.size() == Constants.RESUME_HOLD_FRAMES && member.expiry != null) {
+                // Too much to replay: let the place go, a full rejoin catches up from history
+                member.missed.add(payload);
+                member.expiry.reschedule(0);
+            }
+        }
+    }
+
+    /**
+     * Host: a member that dropped out is back with its token. It skips the
+     * password, roster and history, and gets only what it missed: the frames
+     * the old link never delivered and whatever was broadcast while it was
+     * away. It tells us how much of ours arrived, and we tell it how much of
+     * its own did.
+     */
+    private void acceptResume(AdmissionControl.Joiner joiner, byte[] request) throws IOException {
+        ProtocolCodec.Reader reader = new ProtocolCodec.Reader(request, 0, request.length);
+        int version = reader.readByte();
+        int senderId = reader.readVarint();
+        byte[] token = reader.readBytes();
+        int clientCaps = reader.readVarint();
+        long clientReceived = reader.readVarlong();
+
+        // Its place is held for it, so a resume never waits for room
+        if (!admission.reserve(joiner, true)) {
+            return;
+        }
+        PeerConnection peer = new PeerConnection(joiner.socket, joiner.name, joiner.decoder, this);
+        ParkedMember member;
+        synchronized (parked) {
+            member = parked.get(senderId);
+            byte[] expected = resumeTokens.get(senderId);
+            if (version != Constants.PROTOCOL_VERSION || member == null || expected == null
+                    || !MessageDigest.isEqual(expected, token)) {
+                member = null;
+            } else {
+                parked.remove(senderId);
+                member.expiry.cancel();
+                PeerConnection old = member.link;
+                int caps = clientCaps & offeredCaps() & ~Constants.CAP_MESH;
+                peer.setCompressionEnabled((caps & Constants.CAP_DEFLATE) != 0);
+                peer.setSenderId(senderId);
+                peer.write(ProtocolCodec.encodeResumeOk(caps, old.getReceivedCount()));
+                for (byte[] frame : old.takeUnacknowledged(clientReceived)) {
+                    peer.write(frame);
+                }
+                for (byte[] frame : member.missed) {
+                    peer.write(frame);
+                }
+                meshRouter.learn(senderId, peer);
+                // Registered under the lock, so the next broadcast reaches it after the frames above
+                try {
+                    startConnection(peer);
+                } catch (IOException e) {
+                    meshRouter.forget(senderId);
+                    engine.execute(() -> dropMembers(old, Collections.singletonList(senderId)));
+                    throw e;
+                }
+            }
+        }
+        if (member == null) {
+            // Unknown, or held too long: the member falls back to a full rejoin
+            admission.reject(joiner, "cannot resume ID " + senderId);
+            return;
+        }
+        admission.admitted(joiner);
+        Log.d(TAG, peer.getDeviceName() + " resumed as ID " + senderId + ", "
+                + member.missed.size() + " frames held");
+        electSuccessor();
+    }
+
+    /** Client: try resuming after a jittered delay that doubles with every attempt. */
+    private void scheduleResume(PeerConnection lost, int attempt, long deadline) {
+        long backoff = Math.min(Constants.RECONNECT_MAX_DELAY_MS,
+                Constants.RECONNECT_BASE_DELAY_MS << Math.min(attempt, 16));
+        // Equal jitter: members that dropped out together don't retry in step
+        long delay = backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+        TimerService.get().schedule(() -> resume(lost, attempt, deadline), delay);
+    }
+
+    /**
+     * Client: reconnect to the host and resume with our token. If the host
+     * let our place go we rejoin in full under the same ID; if it is still
+     * unreachable at {@code deadline} it is taken to be gone.
+     */
+    private void resume(PeerConnection lost, int attempt, long deadline) {
+        Runnable task = () -> {
+            if (sessionEnded) {
+                return;
+            }
+            String address = hostAddress;
+            Transport.Connection socket = null;
+            try {
+                socket = transport.connect(address);
+                int caps = compressionEnabled ? Constants.CAP_DEFLATE : 0;
+                FrameEncoder.writeFrame(socket.getOutputStream(), ProtocolCodec.encodeResume(
+                        localSenderId, resumeToken, caps, lost.getReceivedCount()));
+
+                FrameDecoder frameDecoder = new FrameDecoder();
+                Transport.Connection connection = socket;
+                TimerService.Timeout timeout = TimerService.get().schedule(
+                        () -> engine.execute(() -> closeTimedOut(connection, address)), Constants.HANDSHAKE_TIMEOUT_MS);
+                byte[] response;
+                try {
+                    response = frameDecoder.readFrame(socket.getInputStream());
+                } finally {
+                    timeout.cancel();
+                }
+
+                // RESUME_OK [version][caps][received]
+                if (ProtocolCodec.opcode(response, 0, response.length) != Constants.OP_RESUME_OK) {
+                    socket.close();
+                    Log.d(TAG, "Resume refused by " + lost.getDeviceName() + ", rejoining");
+                    connect(address, passwordHash, localSenderId, takeHeldFrames(lost, 0), 1);
+                    return;
+                }
+                ProtocolCodec.Reader reader = new ProtocolCodec.Reader(response, 0, response.length);
+                reader.readByte(); // version
+                int hostCaps = reader.readVarint();
+                long hostReceived = reader.readVarlong();
+
+                PeerConnection peer = new PeerConnection(socket, lost.getDeviceName(), frameDecoder, this);
+                peer.setCompressionEnabled((caps & hostCaps & Constants.CAP_DEFLATE) != 0);
+                peer.setUpstream(true);
+                peer.setSenderId(lost.getSenderId());
+                synchronized (parked) {
+                    for (byte[] frame : takeHeldFrames(lost, hostReceived)) {
+                        peer.write(frame);
+                    }
+                    startConnection(peer);
+                }
+                Log.d(TAG, "Resumed with " + lost.getDeviceName() + " after " + (attempt + 1) + " attempts");
+            } catch (IOException e) {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                retryResume(lost, attempt, deadline, e.getMessage());
+            }
+        };
+        try {
+            engine.submit(ConnectionEngine.Role.HANDSHAKE, null, task);
+        } catch (RejectedExecutionException e) {
+            retryResume(lost, attempt, deadline, "no worker available");
+        }
+    }
+
+    private void retryResume(PeerConnection lost, int attempt, long deadline, String reason) {
+        if (sessionEnded) {
+            return;
+        }
+        if (SystemClock.elapsedRealtime() < deadline) {
+            scheduleResume(lost, attempt + 1, deadline);
+        } else {
+            Log.w(TAG, "Could not resume with " + lost.getDeviceName() + ": " + reason);
+            onHostLost(lost);
+        }
+    }
+
+    // ========== FAILOVER ==========
+
+    /**
+     * Client: the host is gone for good, it left or could not be resumed.
+     * Members of the host itself know the successor and can reach it; below a
+     * mesh relay there is no way back.
+     */
+    private void onHostLost(PeerConnection link) {
+        handler.obtainMessage(Constants.MSG_DISCONNECTED, link.getDeviceName()).sendToTarget();
+        if (MeshRouter.depthOf(localSenderId) == 1) {
+            failOver(link);
+        } else {
+            eventDispatcher.post(ProtocolEvent.sessionEnd());
+        }
+    }
+
+    /**
+     * Host: name the member that takes over if this device leaves, the
+     * earliest joiner still connected directly (lowest ID) that the transport
+     * can give an address for, and tell everyone where it can be reached.
+     * Announced only when the choice changes; a newcomer learns the current
+     * one from its AUTH_OK.
+     */
+    private void electSuccessor() {
+        if (!isHost) {
+            return;
+        }
+        synchronized (joinLock) {
+            PeerConnection elected = null;
+            for (PeerConnection peer : snapshotConnections()) {
+                if (!peer.isUpstream() && peer.isConnected() && peer.getHostingAddress() != null
+                        && (elected == null || peer.getSenderId() < elected.getSenderId())) {
+                    elected = peer;
+                }
+            }
+            if (elected == null) {
+                successorId = -1;
+                successorAddress = null;
+                return;
+            }
+            byte[] announcement = ProtocolCodec.encodeSuccessor(elected.getSenderId(), elected.getHostingAddress());
+            if (elected.getSenderId() != successorId) {
+                successorId = elected.getSenderId();
+                successorAddress = elected.getHostingAddress();
+                Log.d(TAG, "Successor is " + elected.getDeviceName() + " (ID " + successorId + ")");
+                broadcastMessage(announcement);
+            }
+        }
+    }
+
+    /** Client: the host named who takes over if it goes. */
+    void setSuccessor(int senderId, String address) {
+        successorId = senderId;
+        successorAddress = address;
+    }
+
+    /** Client: the host ended the session on purpose; losing it is not a failover. */
+    void onSessionEnded() {
+        sessionEnded = true;
+    }
+
+    /**
+     * The link to the host went down while the session was still on. The
+     * successor it named starts hosting; everyone else reconnects to it under
+     * their own sender ID, so names, history and duplicate filtering carry
+     * over, and resends whatever the old host never acknowledged. Without a
+     * successor the group is gone. A successor whose host went without
+     * leaving may only have lost its own link, so it first rejoins the host
+     * as a member; two hosts would split the group.
+     */
+    private void failOver(PeerConnection lost) {
+        List<byte[]> unsent = takeHeldFrames(lost, 0);
+        int successor = successorId;
+        String address = successorAddress;
+        successorId = -1;
+        successorAddress = null;
+
+        if (successor == localSenderId && !lost.hasPeerLeft()) {
+            Log.d(TAG, "Host lost without leaving, rejoining it before taking over");
+            standingBy = true;
+            connect(hostAddress, passwordHash, localSenderId, unsent, Constants.SUCCESSOR_REJOIN_ATTEMPTS);
+        } else if (successor == localSenderId) {
+            takeOverHosting();
+        } else if (successor >= 0 && address != null) {
+            Log.d(TAG, "Host lost, rejoining through " + senderTable.nameOf(successor) + " at " + address);
+            connect(address, passwordHash, localSenderId, unsent, Constants.FAILOVER_CONNECT_ATTEMPTS);
+        } else {
+            Log.w(TAG, "Host lost and no successor named, session over");
+            eventDispatcher.post(ProtocolEvent.sessionEnd());
+        }
+    }
+
+    /**
+     * This device is the successor: start accepting the other members. They
+     * keep their IDs and catch up from our history, which also carries the
+     * chat the old host never acknowledged from us.
+     */
+    private void takeOverHosting() {
+        isHost = true;
+        if (!startAcceptLoop()) {
+            eventDispatcher.post(ProtocolEvent.sessionEnd());
+            return;
+        }
+        Log.d(TAG, "Took over hosting as ID " + localSenderId);
+        handler.obtainMessage(Constants.MSG_HOST_CHANGED, localDeviceName()).sendToTarget();
+    }
+
+    /** Sender ID of the member that takes over if the host goes, or -1. */
+    public int getSuccessorId() {
+        return successorId;
     }
 
     // ========== MESSAGING ==========
 
     /**
-     * Broadcast a message to ALL connected peers.
+     * Broadcast an encoded protocol payload (see {@link ProtocolCodec}) to ALL
+     * connected peers. The frame is encoded once per wire variant
+     * (plain / compressed) and the same bytes are queued for every peer.
      */
-    public void broadcastMessage(String message) {
-        synchronized (connectedThreads) {
-            List<ConnectedThread> deadThreads = new ArrayList<>();
-            for (ConnectedThread thread : connectedThreads) {
-                if (thread.isConnected()) {
-                    thread.write(message);
-                } else {
-                    deadThreads.add(thread);
+    public void broadcastMessage(byte[] payload) {
+        sendFrame(OutboundFrame.of(payload), null);
+    }
+
+    /**
+     * Host or mesh relay: forward a frame received from {@code source} to every
+     * other peer. Called directly from the source's PeerConnection; file frames keep
+     * the bytes exactly as they arrived, session frames their unwrapped payload
+     * (each peer's link numbers them). The message is never echoed back to its
+     * sender.
+     */
+    void relayFrame(OutboundFrame frame, PeerConnection source) {
+        sendFrame(frame, source);
+    }
+
+    /** Queue an already-built frame for every connected peer. */
+    void broadcastFrame(OutboundFrame frame) {
+        sendFrame(frame, null);
+    }
+
+    /**
+     * Queue a frame for every live peer except {@code exclude}
+     * (may be null) and drop connections that have gone away.
+     * Who gets it is decided under {@code parked}, so each peer either is
+     * sent the frame or has it held; the frames are queued after the lock is
+     * released, since a full queue may block or tear the connection down.
+     */
+    private void sendFrame(OutboundFrame frame, PeerConnection exclude) {
+        PeerConnection[] peers;
+        synchronized (parked) {
+            peers = snapshotConnections();
+            if (!parked.isEmpty()) {
+                holdForParked(frame);
+            }
+        }
+        List<PeerConnection> deadPeers = null;
+        for (PeerConnection peer : peers) {
+            if (peer == exclude) {
+                continue;
+            }
+            if (peer.isConnected()) {
+                peer.writeFrame(frame);
+            } else {
+                if (deadPeers == null) {
+                    deadPeers = new ArrayList<>();
                 }
+                deadPeers.add(peer);
+            }
+        }
+        // Clean up dead connections
+        if (deadPeers != null) {
+            peerConnections.removeAll(deadPeers);
+        }
+    }
+
+    PeerConnection[] snapshotConnections() {
+        synchronized (peerConnections) {
+            return peerConnections.toArray(new PeerConnection[0]);
+        }
+    }
+
+    /**
+     * Send a chat message to all peers under this device's session sender ID.
+     * It is recorded as seen, so a history replay after a failover or a new
+     * join does not show it again as someone else's.
+     *
+     * @return the sequence number it went out with, or -1 if {@code content} is
+     *         longer than {@link Constants#CHAT_MAX_LENGTH} and was not sent
+     */
+    public long sendChatMessage(String content) {
+        if (content.length() > Constants.CHAT_MAX_LENGTH) {
+            Log.w(TAG, "Chat message of " + content.length() + " characters not sent");
+            return -1;
+        }
+        long sequence = chatSequence.getAndIncrement();
+        duplicateFilter.accept(localSenderId, sequence);
+        broadcastMessage(ProtocolCodec.encodeChat(localSenderId, sequence, content));
+        return sequence;
+    }
+
+    /** HISTORY frames for a new member: unexpired chat messages, oldest first. */
+    private List<byte[]> encodeHistory() {
+        HistorySource source = historySource;
+        if (source == null) {
+            return Collections.emptyList();
+        }
+        List<ChatMessage> chat = new ArrayList<>();
+        for (ChatMessage message : source.getMessages()) {
+            // System lines are local and file rows need their transfer; neither replays
+            if (message.getType() == ChatMessage.TYPE_NORMAL && message.getSequence() >= 0) {
+                chat.add(message);
             }
-            // Clean up dead connections
-            connectedThreads.removeAll(deadThreads);
         }
+        return ProtocolCodec.encodeHistory(chat);
     }
 
     /**
-     * Send a chat message to all peers (wraps with protocol prefix).
+     * Tell all peers this device is leaving the group.
      */
-    public void sendChatMessage(String senderName, String content) {
-        String protocolMessage = Constants.PROTO_MSG + senderName + ":" + content;
-        broadcastMessage(protocolMessage);
+    public void broadcastLeave() {
+        broadcastMessage(ProtocolCodec.encodeLeave(localSenderId));
     }
 
     // ========== LIFECYCLE ==========
@@ -285,26 +1282,54 @@ public class BluetoothService {
      * Get the count of active connections.
      */
     public int getConnectedCount() {
-        synchronized (connectedThreads) {
+        synchronized (peerConnections) {
             int count = 0;
-            for (ConnectedThread thread : connectedThreads) {
-                if (thread.isConnected())
+            for (PeerConnection peer : peerConnections) {
+                if (peer.isConnected())
                     count++;
             }
             return count;
         }
     }
 
+    /**
+     * Whether {@code id} is in the session: this device, a member reachable
+     * now, or one holding its place for a resume.
+     */
+    private boolean isPresent(int id) {
+        if (id == localSenderId || meshRouter.routeTo(id) != null) {
+            return true;
+        }
+        synchronized (parked) {
+            return parked.containsKey(id);
+        }
+    }
+
+    /**
+     * Names of everyone in the session but this device, by sender ID. On a
+     * client this starts from the roster in AUTH_OK and follows JOIN / LEAVE.
+     * Used by ChatActivity to seed the groupManager.
+     */
+    public List<String> getMemberNames() {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<Integer, String> member : senderTable.snapshot().entrySet()) {
+            if (member.getKey() != localSenderId && isPresent(member.getKey())) {
+                names.add(member.getValue());
+            }
+        }
+        return names;
+    }
+
     /**
      * Get the device names of all currently active connections.
      * Used by ChatActivity to seed the groupManager with pre-joined members.
      */
     public List<String> getConnectedDeviceNames() {
-        synchronized (connectedThreads) {
+        synchronized (peerConnections) {
             List<String> names = new ArrayList<>();
-            for (ConnectedThread thread : connectedThreads) {
-                if (thread.isConnected()) {
-                    names.add(thread.getDeviceName());
+            for (PeerConnection peer : peerConnections) {
+                if (peer.isConnected()) {
+                    names.add(peer.getDeviceName());
                 }
             }
             return names;
@@ -315,27 +1340,139 @@ public class BluetoothService {
         return isHost;
     }
 
+    /** Whether this client accepts members of its own (mesh mode). */
+    public boolean isRelaying() {
+        return relaying;
+    }
+
+    /** Reachability of the other members; populated in mesh mode. */
+    public MeshRouter getMeshRouter() {
+        return meshRouter;
+    }
+
+    /** Sender ID -> name mapping for the current session. */
+    public SenderTable getSenderTable() {
+        return senderTable;
+    }
+
+    /** This device's session sender ID (the host's is {@link Constants#HOST_SENDER_ID}). */
+    public int getLocalSenderId() {
+        return localSenderId;
+    }
+
+    private String localDeviceName() {
+        return transport.getLocalName();
+    }
+
+    /** Where the host is listening, in the transport's address form; null when not hosting. */
+    public String getListenAddress() {
+        AcceptThread accept = acceptThread;
+        return accept != null ? accept.getAddress() : null;
+    }
+
+    ConnectionEngine getEngine() {
+        return engine;
+    }
+
+    EventDispatcher getEventDispatcher() {
+        return eventDispatcher;
+    }
+
+    Handler getHandler() {
+        return handler;
+    }
+
+    /** Send, receive and track file / image transfers. */
+    public FileTransferManager getFileTransfers() {
+        return fileTransfers;
+    }
+
+    DuplicateFilter getDuplicateFilter() {
+        return duplicateFilter;
+    }
+
+    /** Number of pooled Bluetooth worker threads currently alive. */
+    public int getWorkerThreadCount() {
+        return engine.getThreadCount();
+    }
+
+    /** Highest number of pooled Bluetooth worker threads alive at once. */
+    public int getPeakWorkerThreadCount() {
+        return engine.getPeakThreadCount();
+    }
+
+    /**
+     * Outbound queue and write-batch statistics for every active connection,
+     * keyed by device name.
+     */
+    public Map<String, PeerWriter.Stats> getWriterStats() {
+        Map<String, PeerWriter.Stats> stats = new LinkedHashMap<>();
+        for (PeerConnection peer : snapshotConnections()) {
+            stats.put(peer.getDeviceName(), peer.getWriter().getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Round-trip time and liveness for every active connection, keyed by
+     * device name.
+     */
+    public Map<String, Heartbeat.Stats> getHeartbeatStats() {
+        Map<String, Heartbeat.Stats> stats = new LinkedHashMap<>();
+        for (PeerConnection peer : snapshotConnections()) {
+            stats.put(peer.getDeviceName(), peer.getHeartbeatStats());
+        }
+        return stats;
+    }
+
     /**
      * Disconnect all connections and stop all threads.
      */
     public void disconnect() {
-        // Send session end to all peers
-        try {
-            broadcastMessage(Constants.PROTO_SESSION_END);
-        } catch (Exception ignored) {
+        sessionEnded = true;
+        // Send session end to all peers; a host that named a successor only
+        // leaves, and the group re-forms around it
+        if (!isHost || successorId < 0) {
+            try {
+                broadcastMessage(ProtocolCodec.encodeSessionEnd());
+            } catch (Exception ignored) {
+            }
         }
 
         if (acceptThread != null) {
             acceptThread.cancel();
             acceptThread = null;
         }
+        relaying = false;
 
-        synchronized (connectedThreads) {
-            for (ConnectedThread thread : connectedThreads) {
-                thread.cancel();
+        // Give every writer a bounded chance to flush SESSION_END before closing
+        PeerConnection[] peers = snapshotConnections();
+        for (PeerConnection peer : peers) {
+            peer.finishWrites();
+        }
+        long deadline = System.currentTimeMillis() + Constants.WRITE_DRAIN_TIMEOUT_MS;
+        for (PeerConnection peer : peers) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining > 0) {
+                peer.awaitWrites(remaining);
+            }
+            peer.cancel();
+        }
+        peerConnections.clear();
+        synchronized (parked) {
+            for (ParkedMember member : parked.values()) {
+                if (member.expiry != null) {
+                    member.expiry.cancel();
+                }
             }
-            connectedThreads.clear();
+            parked.clear();
         }
+        resumeTokens.clear();
+        admission.clear();
+        engine.shutdown();
+        fileTransfers.shutdown();
+        duplicateFilter.clear();
+        meshRouter.clear();
 
         Log.d(TAG, "All connections closed");
     }
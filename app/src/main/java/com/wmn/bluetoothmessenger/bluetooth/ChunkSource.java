@@ -0,0 +1,211 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fixed-size chunks of an outgoing file, read on demand so a transfer never
+ * holds the whole file in memory.
+ *
+ * Sources backed by a regular file are memory-mapped and can serve any chunk
+ * at any time. Sources backed by a plain stream (pipes, some content providers)
+ * are read sequentially and only keep the chunks that are still in the send
+ * window; asking for a chunk before {@link #release}'s mark fails.
+ */
+public abstract class ChunkSource implements Closeable {
+
+    private static final String TAG = "ChunkSource";
+
+    protected final long size;
+    protected final int chunkSize;
+
+    ChunkSource(long size, int chunkSize) {
+        this.size = size;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Open {@code uri} for sending: memory-mapped when the provider hands out a
+     * regular file, otherwise streamed.
+     *
+     * @param size byte length of the content, or -1 to take it from the descriptor
+     * @throws TooLargeException if the content is over {@link Constants#FILE_MAX_SIZE};
+     *         nothing is mapped or read then
+     */
+    public static ChunkSource open(ContentResolver resolver, Uri uri, long size, int chunkSize,
+            int window) throws IOException {
+        ParcelFileDescriptor pfd = null;
+        long length = -1;
+        try {
+            pfd = resolver.openFileDescriptor(uri, "r");
+            if (pfd != null) {
+                length = pfd.getStatSize();
+            }
+        } catch (IOException | SecurityException e) {
+            Log.d(TAG, "Cannot map " + uri + ", streaming instead", e);
+        }
+        if (Math.max(length, size) > Constants.FILE_MAX_SIZE) {
+            if (pfd != null) {
+                pfd.close();
+            }
+            throw new TooLargeException(Math.max(length, size));
+        }
+        if (length >= 0) {
+            try {
+                return new Mapped(pfd, length, chunkSize);
+            } catch (IOException e) {
+                Log.d(TAG, "Cannot map " + uri + ", streaming instead", e);
+            }
+        }
+        if (pfd != null) {
+            pfd.close();
+        }
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null || size < 0) {
+            if (in != null) {
+                in.close();
+            }
+            throw new IOException("Cannot open " + uri);
+        }
+        return new Streamed(in, size, chunkSize, window);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkCount() {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    /** Byte length of chunk {@code index}; only the last one can be short. */
+    public int chunkLength(int index) {
+        return (int) Math.min(chunkSize, size - (long) index * chunkSize);
+    }
+
+    /**
+     * Copy chunk {@code index} into {@code dst}.
+     *
+     * @return number of bytes copied
+     * @throws IOException if the chunk can no longer be read
+     */
+    public abstract int read(int index, byte[] dst) throws IOException;
+
+    /** Chunks below {@code index} are acknowledged by everyone and won't be asked for again. */
+    public void release(int index) {
+    }
+
+    /** The content is bigger than a transfer may be. */
+    public static final class TooLargeException extends IOException {
+
+        TooLargeException(long size) {
+            super(size + " bytes is over the " + Constants.FILE_MAX_SIZE + "-byte limit");
+        }
+    }
+
+    // ========== IMPLEMENTATIONS ==========
+
+    /** A regular file, mapped read-only; pages are loaded and evicted by the kernel. */
+    static final class Mapped extends ChunkSource {
+
+        private final ParcelFileDescriptor pfd;
+        private final MappedByteBuffer map;
+
+        Mapped(ParcelFileDescriptor pfd, long size, int chunkSize) throws IOException {
+            super(size, chunkSize);
+            this.pfd = pfd;
+            // The channel borrows pfd's descriptor; pfd closes it, the mapping outlives both
+            FileChannel channel = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+            try {
+                this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Cannot map " + size + " bytes", e);
+            }
+        }
+
+        @Override
+        public int read(int index, byte[] dst) {
+            int length = chunkLength(index);
+            ByteBuffer view = map.duplicate();
+            view.position((int) ((long) index * chunkSize));
+            view.get(dst, 0, length);
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            pfd.close();
+        }
+    }
+
+    /** A sequential stream; keeps a ring of the last {@code window} chunks for resends. */
+    static final class Streamed extends ChunkSource {
+
+        private final InputStream in;
+        private final byte[][] ring;
+        private int nextToRead = 0;   // first chunk not yet pulled from the stream
+        private int released = 0;     // chunks below this are gone
+
+        Streamed(InputStream in, long size, int chunkSize, int window) {
+            super(size, chunkSize);
+            this.in = in;
+            this.ring = new byte[window][];
+        }
+
+        @Override
+        public int read(int index, byte[] dst) throws IOException {
+            if (index < released) {
+                throw new IOException("Chunk " + index + " is no longer buffered");
+            }
+            while (nextToRead <= index) {
+                if (nextToRead - released >= ring.length) {
+                    throw new IOException("Chunk " + index + " is beyond the send window");
+                }
+                byte[] chunk = new byte[chunkLength(nextToRead)];
+                readFully(chunk);
+                ring[nextToRead % ring.length] = chunk;
+                nextToRead++;
+            }
+            byte[] chunk = ring[index % ring.length];
+            System.arraycopy(chunk, 0, dst, 0, chunk.length);
+            return chunk.length;
+        }
+
+        @Override
+        public void release(int index) {
+            for (int i = released; i < Math.min(index, nextToRead); i++) {
+                ring[i % ring.length] = null;
+            }
+            released = Math.max(released, index);
+        }
+
+        private void readFully(byte[] chunk) throws IOException {
+            int done = 0;
+            while (done < chunk.length) {
+                int n = in.read(chunk, done, chunk.length - done);
+                if (n < 0) {
+                    throw new EOFException("Stream ended early");
+                }
+                done += n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
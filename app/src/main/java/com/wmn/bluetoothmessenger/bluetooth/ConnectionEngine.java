@@ -0,0 +1,153 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import android.util.Log;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single bounded worker pool that runs every blocking Bluetooth task:
+ * the accept loop, one reader and one writer per peer, and auth handshakes.
+ *
+ * Workers are reused across connections (idle ones linger for
+ * {@link Constants#ENGINE_KEEP_ALIVE_MS}), so join storms don't create and
+ * destroy a thread per socket. The pool never grows past
+ * {@link Constants#ENGINE_MAX_THREADS}; when it is exhausted {@link #submit}
+ * throws {@link RejectedExecutionException} and the caller refuses the
+ * connection instead of piling up threads.
+ *
+ * While a task runs, its worker is renamed after its {@link Role} (e.g.
+ * "bt-read-Pixel 7") so thread dumps stay readable.
+ *
+ * Timer follow-ups for the connections (retransmits, heartbeats, handshake
+ * polls, links found dead) run one at a time on a separate "bt-link" thread,
+ * see {@link #execute}, so the shared TimerService only keeps time for them.
+ */
+public class ConnectionEngine {
+
+    private static final String TAG = "ConnectionEngine";
+
+    /** What a pooled worker is doing; used for thread names and metrics. */
+    public enum Role {
+        ACCEPT("bt-accept"),
+        READ("bt-read"),
+        WRITE("bt-write"),
+        HANDSHAKE("bt-handshake");
+
+        final String threadPrefix;
+
+        Role(String threadPrefix) {
+            this.threadPrefix = threadPrefix;
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Map<Role, AtomicInteger> activeByRole = new EnumMap<>(Role.class);
+    private final AtomicInteger peakThreads = new AtomicInteger();
+    private final ExecutorService linkWorker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "bt-link");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ConnectionEngine() {
+        for (Role role : Role.values()) {
+            activeByRole.put(role, new AtomicInteger());
+        }
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "bt-worker-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        // SynchronousQueue: every task gets a worker immediately or is rejected;
+        // blocking tasks must never sit in a queue behind each other.
+        executor = new ThreadPoolExecutor(0, Constants.ENGINE_MAX_THREADS,
+                Constants.ENGINE_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(), factory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Run {@code task} on a pooled worker.
+     *
+     * @param label appended to the worker's name while the task runs (e.g. device name)
+     * @return a Future whose {@code cancel(true)} interrupts the task
+     * @throws RejectedExecutionException if the pool is exhausted or shut down
+     */
+    public Future<?> submit(Role role, String label, Runnable task) {
+        final AtomicInteger active = activeByRole.get(role);
+        final String name = label == null ? role.threadPrefix : role.threadPrefix + "-" + label;
+        Future<?> future = executor.submit(() -> {
+            Thread worker = Thread.currentThread();
+            String idleName = worker.getName();
+            worker.setName(name);
+            active.incrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Task " + name + " crashed", e);
+            } finally {
+                active.decrementAndGet();
+                worker.setName(idleName);
+                Thread.interrupted(); // Don't leak a cancel interrupt into the next task
+            }
+        });
+        int threads = executor.getPoolSize();
+        int peak;
+        while (threads > (peak = peakThreads.get()) && !peakThreads.compareAndSet(peak, threads)) {
+            // retry
+        }
+        return future;
+    }
+
+    /**
+     * Run a short connection task handed over by a timer, in order with the
+     * others; dropped once the engine is shut down.
+     */
+    public void execute(Runnable task) {
+        try {
+            linkWorker.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Engine stopped, dropping link task");
+        }
+    }
+
+    /** Number of worker threads currently alive (busy or idle). */
+    public int getThreadCount() {
+        return executor.getPoolSize();
+    }
+
+    /** Highest number of worker threads alive at once. */
+    public int getPeakThreadCount() {
+        return peakThreads.get();
+    }
+
+    /** Number of tasks of the given role currently running. */
+    public int getActiveCount(Role role) {
+        return activeByRole.get(role).get();
+    }
+
+    /**
+     * Interrupt all running tasks and stop accepting new ones. Tasks blocked in
+     * socket I/O only exit once their sockets are closed, so close those first.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        linkWorker.shutdownNow();
+    }
+}
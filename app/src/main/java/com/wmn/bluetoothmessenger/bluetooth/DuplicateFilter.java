@@ -0,0 +1,84 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Drops chat frames this device has already seen, keyed by the
+ * (sender ID, sequence) pair every sender stamps on its messages.
+ *
+ * Per sender it keeps the highest sequence seen and a bitmap of the
+ * {@link Constants#DEDUP_WINDOW} sequences below it, the same sliding window
+ * IPsec uses against replays. A check is O(1); sliding forward clears at most
+ * one window's worth of bits. Sequences older than the window are treated as
+ * duplicates: by then the original has long been delivered.
+ *
+ * Shared by every connection of the service, so a message that arrives twice
+ * over different paths (relays, reconnects) is delivered once.
+ */
+public final class DuplicateFilter {
+
+    private static final int WORDS = Constants.DEDUP_WINDOW / 64;
+
+    /** One sender's window; guarded by its own monitor. */
+    private static final class Window {
+        long highest = -1;
+        final long[] bits = new long[WORDS];   // bit (seq % DEDUP_WINDOW) set = seen
+    }
+
+    private final ConcurrentHashMap<Integer, Window> windows = new ConcurrentHashMap<>();
+
+    /**
+     * Record {@code sequence} from {@code senderId}.
+     *
+     * @return true the first time a pair is seen, false for duplicates
+     */
+    public boolean accept(int senderId, long sequence) {
+        if (sequence < 0) {
+            return false;
+        }
+        Window window = windows.get(senderId);
+        if (window == null) {
+            Window created = new Window();
+            window = windows.putIfAbsent(senderId, created);
+            if (window == null) {
+                window = created;
+            }
+        }
+        synchronized (window) {
+            if (sequence > window.highest) {
+                slide(window, sequence);
+            } else if (window.highest - sequence >= Constants.DEDUP_WINDOW) {
+                return false;
+            }
+            int bit = (int) (sequence % Constants.DEDUP_WINDOW);
+            long mask = 1L << (bit & 63);
+            if ((window.bits[bit >>> 6] & mask) != 0) {
+                return false;
+            }
+            window.bits[bit >>> 6] |= mask;
+            return true;
+        }
+    }
+
+    /** Forget every sender, e.g. when the session ends. */
+    public void clear() {
+        windows.clear();
+    }
+
+    /** Advance {@code window} to {@code sequence}, clearing the bits of the skipped sequences. */
+    private static void slide(Window window, long sequence) {
+        long gap = sequence - window.highest;
+        if (window.highest < 0 || gap >= Constants.DEDUP_WINDOW) {
+            Arrays.fill(window.bits, 0L);
+        } else {
+            for (long s = window.highest + 1; s <= sequence; s++) {
+                int bit = (int) (s % Constants.DEDUP_WINDOW);
+                window.bits[bit >>> 6] &= ~(1L << (bit & 63));
+            }
+        }
+        window.highest = sequence;
+    }
+}
@@ -0,0 +1,94 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.wmn.bluetoothmessenger.model.ProtocolEvent;
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects decoded events from every connection's reader and hands them to the
+ * UI Handler in batches, at most once per {@link Constants#UI_DISPATCH_INTERVAL_MS}.
+ * A burst of frames therefore costs the main thread one
+ * {@link Constants#MSG_EVENTS} message per frame interval instead of one per
+ * frame.
+ */
+public class EventDispatcher {
+
+    private volatile Handler handler;
+
+    private final Object lock = new Object();
+    private List<ProtocolEvent> pending = new ArrayList<>();
+    private boolean flushScheduled = false;
+    private boolean held = false;
+    private long lastFlushTime = 0;
+
+    /** Runs on the UI looper: swaps out the pending batch and delivers it. */
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            List<ProtocolEvent> batch;
+            synchronized (lock) {
+                batch = pending;
+                pending = new ArrayList<>();
+                flushScheduled = false;
+                lastFlushTime = SystemClock.uptimeMillis();
+            }
+            if (!batch.isEmpty()) {
+                Handler h = handler;
+                h.dispatchMessage(h.obtainMessage(Constants.MSG_EVENTS, batch));
+            }
+        }
+    };
+
+    public EventDispatcher(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Swap the UI handler; a batch already scheduled, or held back by
+     * {@link #hold()}, is delivered to the new one.
+     */
+    public void setHandler(Handler newHandler) {
+        this.handler = newHandler;
+        boolean release;
+        synchronized (lock) {
+            release = held && !pending.isEmpty() && !flushScheduled;
+            held = false;
+            flushScheduled |= release;
+        }
+        if (release) {
+            newHandler.post(flush);
+        }
+    }
+
+    /**
+     * Queue events without delivering them until the next
+     * {@link #setHandler}, e.g. while the UI moves to another screen.
+     */
+    public void hold() {
+        synchronized (lock) {
+            held = true;
+        }
+    }
+
+    /**
+     * Queue an event for the UI. Safe to call from any thread.
+     */
+    public void post(ProtocolEvent event) {
+        long delay;
+        synchronized (lock) {
+            pending.add(event);
+            if (flushScheduled || held) {
+                return;
+            }
+            flushScheduled = true;
+            long nextSlot = lastFlushTime + Constants.UI_DISPATCH_INTERVAL_MS;
+            delay = Math.max(0, nextSlot - SystemClock.uptimeMillis());
+        }
+        handler.postDelayed(flush, delay);
+    }
+}
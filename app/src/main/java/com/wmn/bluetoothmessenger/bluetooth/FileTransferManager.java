@@ -0,0 +1,623 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.util.Log;
+
+import com.wmn.bluetoothmessenger.model.FileTransfer;
+import com.wmn.bluetoothmessenger.model.ProtocolEvent;
+import com.wmn.bluetoothmessenger.util.Constants;
+import com.wmn.bluetoothmessenger.util.TimerService;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams files and images between members in fixed-size chunks.
+ *
+ * The originator announces a transfer with FILE_OFFER and then broadcasts
+ * FILE_CHUNKs, keeping at most {@link Constants#FILE_WINDOW_CHUNKS} beyond the
+ * slowest receiver's cumulative FILE_ACK in flight. Chunks are read from a
+ * {@link ChunkSource} on demand, so only the window is ever in memory.
+ *
+ * Receivers write each chunk straight to its offset in a cache file (so
+ * chunks may arrive in any order) and acknowledge every chunk. On the host,
+ * chunks from a client are relayed to the other peers by the client's
+ * PeerConnection the moment they arrive; the host's own copy is what it uses
+ * to answer FILE_RESUME from a peer that reconnected mid-transfer. A relay
+ * acknowledges upstream only what it and every member it relays to have
+ * acknowledged, so the originator's window keeps pace with the slowest of
+ * them and no relay queue grows past it.
+ * A receiver that cannot take a transfer answers FILE_CANCEL, which only
+ * removes it from the originator's window.
+ *
+ * Transfers follow chat TTL semantics (see {@link FileTransfer#isExpired}):
+ * expired ones are cancelled and their files deleted.
+ *
+ * All transfer state lives on one worker thread; reader threads only parse
+ * frames and hand them over.
+ */
+public class FileTransferManager {
+
+    private static final String TAG = "FileTransferManager";
+
+    private final BluetoothService service;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "bt-transfer");
+        t.setDaemon(true);
+        return t;
+    });
+    /** TTL sweep, armed only while there are transfers to sweep. */
+    private final TimerService.Timeout sweep = TimerService.get().newTimeout(() -> execute(this::expireTransfers));
+    private final AtomicInteger nextSequence = new AtomicInteger();
+    private volatile File storageDir;
+
+    // Worker thread only
+    private final Map<Long, Outgoing> outgoing = new HashMap<>();
+    private final Map<Long, Incoming> incoming = new HashMap<>();
+    private final byte[] chunkBuffer = new byte[Constants.FILE_CHUNK_SIZE];
+
+    /** A transfer this device originated. */
+    private static final class Outgoing {
+        final FileTransfer transfer;
+        final ChunkSource source;
+        /** Cumulative ack per receiver; receivers that drop out are removed. */
+        final Map<PeerConnection, Integer> acked = new HashMap<>();
+        int nextToSend = 0;
+        int base = 0;
+        int lastPostedProgress = -1;
+
+        Outgoing(FileTransfer transfer, ChunkSource source) {
+            this.transfer = transfer;
+            this.source = source;
+        }
+    }
+
+    /** A transfer received from another member (on the host: also relayed). */
+    private static final class Incoming {
+        final FileTransfer transfer;
+        final int chunkSize;
+        final BitSet received = new BitSet();
+        /** Relayed transfers: cumulative ack per member the chunks are passed on to. */
+        final Map<PeerConnection, Integer> downstream = new HashMap<>();
+        RandomAccessFile file;   // null once complete or failed
+        PeerConnection upstream;
+        int nextIndex = 0;
+        int ackedUpstream = 0;
+        int lastPostedProgress = -1;
+
+        Incoming(FileTransfer transfer, int chunkSize) {
+            this.transfer = transfer;
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    FileTransferManager(BluetoothService service) {
+        this.service = service;
+    }
+
+    /**
+     * Where received files are written ({@link Constants#FILE_CACHE_DIR} under
+     * {@code cacheDir}). Offers are refused until this is set.
+     */
+    public void setStorageDir(File cacheDir) {
+        File dir = new File(cacheDir, Constants.FILE_CACHE_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Cannot create " + dir);
+            return;
+        }
+        storageDir = dir;
+    }
+
+    // ========== SENDING ==========
+
+    /**
+     * Start sending {@code uri} to every connected member. Opening the source
+     * happens on the transfer worker; the new transfer is reported as a
+     * {@link ProtocolEvent#TYPE_FILE_OFFER} event (or a toast on failure).
+     *
+     * @param size byte length if known, -1 otherwise (then the file must be mappable)
+     */
+    public void sendFile(ContentResolver resolver, Uri uri, String name, String mimeType, long size) {
+        execute(() -> {
+            ChunkSource source;
+            try {
+                source = ChunkSource.open(resolver, uri, size, Constants.FILE_CHUNK_SIZE,
+                        Constants.FILE_WINDOW_CHUNKS);
+            } catch (ChunkSource.TooLargeException e) {
+                Log.w(TAG, "Not sending " + name + ": " + e.getMessage());
+                toast(name + " is too large to send");
+                return;
+            } catch (IOException | SecurityException e) {
+                Log.e(TAG, "Cannot open " + uri, e);
+                toast("Cannot read " + name);
+                return;
+            }
+            int senderId = service.getLocalSenderId();
+            long transferId = ProtocolCodec.transferId(senderId, nextSequence.getAndIncrement());
+            FileTransfer transfer = new FileTransfer(transferId, senderId, name, mimeType,
+                    source.getSize(), Constants.FILE_CHUNK_SIZE, true);
+            Outgoing out = new Outgoing(transfer, source);
+            for (PeerConnection peer : service.snapshotConnections()) {
+                if (peer.isConnected()) {
+                    out.acked.put(peer, 0);
+                }
+            }
+            outgoing.put(transferId, out);
+            armSweep();
+
+            service.broadcastMessage(ProtocolCodec.encodeFileOffer(transferId, name, mimeType,
+                    source.getSize(), Constants.FILE_CHUNK_SIZE));
+            service.getEventDispatcher().post(ProtocolEvent.fileOffer(transfer,
+                    service.getSenderTable().nameOf(senderId)));
+            pump(out);
+        });
+    }
+
+    /** Send chunks until the window is full; finish or fail the transfer when due. */
+    private void pump(Outgoing out) {
+        FileTransfer transfer = out.transfer;
+        if (transfer.getState() != FileTransfer.STATE_ACTIVE) {
+            return;
+        }
+        int base = updateBase(out);
+        if (base < 0) {
+            Log.w(TAG, "No receivers left for " + transfer.getFileName());
+            finishOutgoing(out, FileTransfer.STATE_FAILED);
+            return;
+        }
+        if (base >= transfer.getChunkCount()) {
+            finishOutgoing(out, FileTransfer.STATE_COMPLETE);
+            return;
+        }
+        try {
+            while (out.nextToSend < transfer.getChunkCount()
+                    && out.nextToSend - base < Constants.FILE_WINDOW_CHUNKS) {
+                service.broadcastFrame(chunkFrame(out, out.nextToSend));
+                out.nextToSend++;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read " + transfer.getFileName(), e);
+            service.broadcastMessage(ProtocolCodec.encodeFileCancel(transfer.getTransferId()));
+            finishOutgoing(out, FileTransfer.STATE_FAILED);
+        }
+    }
+
+    /**
+     * Slowest live receiver's cumulative ack; -1 if none is left. Releases
+     * acknowledged chunks from the source and reports progress.
+     */
+    private int updateBase(Outgoing out) {
+        int base = Integer.MAX_VALUE;
+        Iterator<Map.Entry<PeerConnection, Integer>> it = out.acked.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<PeerConnection, Integer> entry = it.next();
+            if (!entry.getKey().isConnected()) {
+                it.remove();
+            } else {
+                base = Math.min(base, entry.getValue());
+            }
+        }
+        if (base == Integer.MAX_VALUE) {
+            return -1;
+        }
+        if (base > out.base) {
+            out.base = base;
+            out.source.release(base);
+            out.transfer.setChunksDone(base);
+            postProgress(out.transfer, out.lastPostedProgress);
+            out.lastPostedProgress = out.transfer.getProgress();
+        }
+        return out.base;
+    }
+
+    private OutboundFrame chunkFrame(Outgoing out, int index) throws IOException {
+        int length = out.source.read(index, chunkBuffer);
+        // File data is rarely compressible; don't spend a Deflate pass per chunk
+        return OutboundFrame.of(ProtocolCodec.encodeFileChunk(
+                out.transfer.getTransferId(), index, chunkBuffer, 0, length)).skipCompression();
+    }
+
+    private void finishOutgoing(Outgoing out, int state) {
+        outgoing.remove(out.transfer.getTransferId());
+        closeQuietly(out.source);
+        out.transfer.setState(state);
+        service.getEventDispatcher().post(ProtocolEvent.fileProgress(out.transfer));
+    }
+
+    // ========== RECEIVING ==========
+
+    /**
+     * Handle a file frame from {@code from}. Called on its reader thread; the
+     * payload is copied before it is handed to the worker.
+     */
+    void onFrame(PeerConnection from, byte[] buffer, int offset, int length) {
+        ProtocolCodec.Reader reader = new ProtocolCodec.Reader(buffer, offset, length);
+        try {
+            int opcode = ProtocolCodec.opcode(buffer, offset, length);
+            long transferId = reader.readVarlong();
+            switch (opcode) {
+                case Constants.OP_FILE_OFFER: {
+                    String name = reader.readString();
+                    String mime = reader.readString();
+                    long size = reader.readVarlong();
+                    int chunkSize = reader.readVarint();
+                    execute(() -> onOffer(from, transferId, name, mime, size, chunkSize));
+                    break;
+                }
+                case Constants.OP_FILE_CHUNK: {
+                    int index = reader.readVarint();
+                    byte[] data = reader.readRemaining();
+                    execute(() -> onChunk(from, transferId, index, data));
+                    break;
+                }
+                case Constants.OP_FILE_ACK: {
+                    int next = reader.readVarint();
+                    execute(() -> onAck(from, transferId, next));
+                    break;
+                }
+                case Constants.OP_FILE_RESUME: {
+                    int next = reader.readVarint();
+                    execute(() -> onResume(from, transferId, next));
+                    break;
+                }
+                case Constants.OP_FILE_CANCEL:
+                    execute(() -> onCancel(from, transferId));
+                    break;
+            }
+        } catch (ProtocolException e) {
+            Log.w(TAG, "Malformed file frame from " + from.getDeviceName(), e);
+        }
+    }
+
+    private void onOffer(PeerConnection from, long transferId, String name, String mime,
+            long size, int chunkSize) {
+        if (incoming.containsKey(transferId)) {
+            return; // Re-announced after a reconnect; the chunks will follow
+        }
+        File dir = storageDir;
+        if (dir == null || size < 0 || size > Constants.FILE_MAX_SIZE
+                || chunkSize <= 0 || chunkSize > Constants.FILE_CHUNK_SIZE) {
+            Log.w(TAG, "Refusing " + name + " (" + size + " bytes)");
+            from.write(ProtocolCodec.encodeFileCancel(transferId));
+            return;
+        }
+        int senderId = ProtocolCodec.transferSender(transferId);
+        FileTransfer transfer = new FileTransfer(transferId, senderId, name, mime, size, chunkSize, false);
+        Incoming in = new Incoming(transfer, chunkSize);
+        try {
+            File file = new File(dir, Long.toHexString(transferId));
+            in.file = new RandomAccessFile(file, "rw");
+            in.file.setLength(size);
+            transfer.setFile(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot store " + name, e);
+            from.write(ProtocolCodec.encodeFileCancel(transferId));
+            return;
+        }
+        in.upstream = from;
+        // The offer went on to everyone else connected now if this device relays it
+        if (!from.isUpstream() || service.isRelaying()) {
+            for (PeerConnection peer : service.snapshotConnections()) {
+                if (peer != from && peer.isConnected()) {
+                    in.downstream.put(peer, 0);
+                }
+            }
+        }
+        incoming.put(transferId, in);
+        armSweep();
+        service.getEventDispatcher().post(ProtocolEvent.fileOffer(transfer,
+                service.getSenderTable().nameOf(senderId)));
+        if (transfer.getChunkCount() == 0) {
+            finishIncoming(in, FileTransfer.STATE_COMPLETE);
+        }
+    }
+
+    private void onChunk(PeerConnection from, long transferId, int index, byte[] data) {
+        Incoming in = incoming.get(transferId);
+        if (in == null) {
+            return;
+        }
+        FileTransfer transfer = in.transfer;
+        if (in.file != null && index >= 0 && index < transfer.getChunkCount() && !in.received.get(index)) {
+            long position = (long) index * in.chunkSize;
+            if (data.length != Math.min(in.chunkSize, transfer.getSize() - position)) {
+                Log.w(TAG, "Chunk " + index + " of " + transfer.getFileName() + " has the wrong size");
+                return;
+            }
+            try {
+                in.file.getChannel().write(ByteBuffer.wrap(data), position);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot write " + transfer.getFileName(), e);
+                from.write(ProtocolCodec.encodeFileCancel(transferId));
+                finishIncoming(in, FileTransfer.STATE_FAILED);
+                return;
+            }
+            in.received.set(index);
+            in.nextIndex = in.received.nextClearBit(in.nextIndex);
+            transfer.setChunksDone(in.nextIndex);
+            postProgress(transfer, in.lastPostedProgress);
+            in.lastPostedProgress = transfer.getProgress();
+        }
+        // Acknowledge duplicates too, so a resending originator catches up
+        in.ackedUpstream = ackableIndex(in);
+        from.write(ProtocolCodec.encodeFileAck(transferId, in.ackedUpstream));
+        if (in.file != null && in.nextIndex >= transfer.getChunkCount()) {
+            finishIncoming(in, FileTransfer.STATE_COMPLETE);
+        }
+    }
+
+    private void finishIncoming(Incoming in, int state) {
+        closeQuietly(in.file);
+        in.file = null;
+        in.transfer.setState(state);
+        service.getEventDispatcher().post(ProtocolEvent.fileProgress(in.transfer));
+    }
+
+    // ========== ACKS, RESUME, CANCEL ==========
+
+    private void onAck(PeerConnection from, long transferId, int next) {
+        Outgoing out = outgoing.get(transferId);
+        if (out == null) {
+            onRelayedAck(from, transferId, next);
+            return;
+        }
+        Integer previous = out.acked.get(from);
+        if (previous != null && next > previous) {
+            out.acked.put(from, Math.min(next, out.transfer.getChunkCount()));
+            pump(out);
+        }
+    }
+
+    /** A member we relay a transfer to acknowledged chunks: pass the progress on upstream. */
+    private void onRelayedAck(PeerConnection from, long transferId, int next) {
+        Incoming in = incoming.get(transferId);
+        if (in == null) {
+            return;
+        }
+        Integer previous = in.downstream.get(from);
+        if (previous != null && next > previous) {
+            in.downstream.put(from, Math.min(next, in.transfer.getChunkCount()));
+            advanceUpstream(in);
+        }
+    }
+
+    /**
+     * Chunks this device may acknowledge upstream: the ones it holds, and on a
+     * relay only those every live downstream member acknowledged too. Members
+     * that dropped out no longer hold it back.
+     */
+    private int ackableIndex(Incoming in) {
+        int next = in.nextIndex;
+        Iterator<Map.Entry<PeerConnection, Integer>> it = in.downstream.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<PeerConnection, Integer> entry = it.next();
+            if (!entry.getKey().isConnected()) {
+                it.remove();
+            } else {
+                next = Math.min(next, entry.getValue());
+            }
+        }
+        return next;
+    }
+
+    /** Acknowledge upstream whatever downstream progress now allows. */
+    private void advanceUpstream(Incoming in) {
+        if (in.upstream == null || in.transfer.getState() == FileTransfer.STATE_FAILED) {
+            return;
+        }
+        int next = ackableIndex(in);
+        if (next > in.ackedUpstream) {
+            in.ackedUpstream = next;
+            in.upstream.write(ProtocolCodec.encodeFileAck(in.transfer.getTransferId(), next));
+        }
+    }
+
+    /**
+     * A receiver (re)connected partway through: resend everything it is missing.
+     * The originator resends from its source; the host can also serve a
+     * transfer it relays from its own copy.
+     */
+    private void onResume(PeerConnection from, long transferId, int next) {
+        Outgoing out = outgoing.get(transferId);
+        if (out != null) {
+            out.acked.put(from, next);
+            try {
+                for (int i = next; i < out.nextToSend; i++) {
+                    from.writeFrame(chunkFrame(out, i));
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot resume " + out.transfer.getFileName() + " for " + from.getDeviceName(), e);
+                out.acked.remove(from);
+                from.write(ProtocolCodec.encodeFileCancel(transferId));
+            }
+            pump(out);
+            return;
+        }
+        Incoming in = incoming.get(transferId);
+        if (in != null && in.transfer.getState() != FileTransfer.STATE_FAILED) {
+            if (from != in.upstream && !in.downstream.isEmpty()) {
+                // Back on a new connection: pace upstream by it again
+                in.downstream.put(from, Math.min(next, in.transfer.getChunkCount()));
+            }
+            serveFromCopy(in, from, next);
+        }
+    }
+
+    /** Resend the chunks we hold of a received transfer to {@code to}. */
+    private void serveFromCopy(Incoming in, PeerConnection to, int next) {
+        FileTransfer transfer = in.transfer;
+        try (RandomAccessFile copy = new RandomAccessFile(transfer.getFile(), "r")) {
+            for (int i = in.received.nextSetBit(next); i >= 0; i = in.received.nextSetBit(i + 1)) {
+                long position = (long) i * in.chunkSize;
+                int length = (int) Math.min(in.chunkSize, transfer.getSize() - position);
+                copy.seek(position);
+                copy.readFully(chunkBuffer, 0, length);
+                to.writeFrame(OutboundFrame.of(ProtocolCodec.encodeFileChunk(
+                        transfer.getTransferId(), i, chunkBuffer, 0, length)).skipCompression());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot serve " + transfer.getFileName() + " to " + to.getDeviceName(), e);
+        }
+    }
+
+    /**
+     * From the upstream of an incoming transfer: the originator gave up.
+     * From a receiver of an outgoing one: it opted out.
+     */
+    private void onCancel(PeerConnection from, long transferId) {
+        Outgoing out = outgoing.get(transferId);
+        if (out != null) {
+            out.acked.remove(from);
+            pump(out);
+            return;
+        }
+        Incoming in = incoming.get(transferId);
+        if (in == null) {
+            return;
+        }
+        if (in.file != null && from == in.upstream) {
+            Log.d(TAG, in.transfer.getFileName() + " cancelled by its sender");
+            finishIncoming(in, FileTransfer.STATE_FAILED);
+        } else if (in.downstream.remove(from) != null) {
+            advanceUpstream(in);
+        }
+    }
+
+    /**
+     * A connection to the host came up (client side): ask it for whatever is
+     * missing from transfers that were cut off, and restart our own sends from
+     * the last acknowledged chunk.
+     */
+    void onConnected(PeerConnection peer) {
+        execute(() -> {
+            for (Incoming in : incoming.values()) {
+                if (in.file != null) {
+                    in.upstream = peer;
+                    peer.write(ProtocolCodec.encodeFileResume(in.transfer.getTransferId(), in.nextIndex));
+                }
+            }
+            for (Outgoing out : outgoing.values()) {
+                if (!out.acked.containsKey(peer)) {
+                    out.acked.put(peer, out.base);
+                    out.nextToSend = out.base;
+                    pump(out);
+                }
+            }
+        });
+    }
+
+    /** A member's connection went away: relayed transfers stop waiting for its acks. */
+    void onDisconnected(PeerConnection peer) {
+        execute(() -> {
+            for (Incoming in : incoming.values()) {
+                if (in.downstream.remove(peer) != null) {
+                    advanceUpstream(in);
+                }
+            }
+        });
+    }
+
+    // ========== TTL / LIFECYCLE ==========
+
+    /** Cancel and delete transfers whose TTL ran out. Runs on the worker. */
+    private void expireTransfers() {
+        Iterator<Outgoing> outIt = outgoing.values().iterator();
+        while (outIt.hasNext()) {
+            Outgoing out = outIt.next();
+            if (out.transfer.isExpired()) {
+                outIt.remove();
+                service.broadcastMessage(ProtocolCodec.encodeFileCancel(out.transfer.getTransferId()));
+                closeQuietly(out.source);
+                out.transfer.setState(FileTransfer.STATE_FAILED);
+                service.getEventDispatcher().post(ProtocolEvent.fileProgress(out.transfer));
+            }
+        }
+        Iterator<Incoming> inIt = incoming.values().iterator();
+        while (inIt.hasNext()) {
+            Incoming in = inIt.next();
+            if (in.transfer.isExpired()) {
+                inIt.remove();
+                if (in.file != null) {
+                    finishIncoming(in, FileTransfer.STATE_FAILED);
+                }
+                deleteQuietly(in.transfer.getFile());
+            }
+        }
+        if (!outgoing.isEmpty() || !incoming.isEmpty()) {
+            sweep.reschedule(Constants.TTL_CHECK_INTERVAL_MS);
+        }
+    }
+
+    /** Start the TTL sweep if it isn't already running. Runs on the worker. */
+    private void armSweep() {
+        if (!sweep.isPending()) {
+            sweep.reschedule(Constants.TTL_CHECK_INTERVAL_MS);
+        }
+    }
+
+    /** Stop all transfers and delete every received file. */
+    void shutdown() {
+        execute(() -> {
+            for (Outgoing out : outgoing.values()) {
+                closeQuietly(out.source);
+            }
+            outgoing.clear();
+            for (Incoming in : incoming.values()) {
+                closeQuietly(in.file);
+                deleteQuietly(in.transfer.getFile());
+            }
+            incoming.clear();
+        });
+        sweep.cancel();
+        worker.shutdown();
+    }
+
+    // ========== HELPERS ==========
+
+    /** Post progress to the UI when the whole-percent value changed. */
+    private void postProgress(FileTransfer transfer, int lastPosted) {
+        if (transfer.getProgress() != lastPosted) {
+            service.getEventDispatcher().post(ProtocolEvent.fileProgress(transfer));
+        }
+    }
+
+    private void toast(String text) {
+        service.getHandler().obtainMessage(Constants.MSG_TOAST, text).sendToTarget();
+    }
+
+    private void execute(Runnable task) {
+        try {
+            worker.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Transfer worker stopped, dropping task");
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void deleteQuietly(File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            Log.w(TAG, "Cannot delete " + file);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-frame Deflate compression with a preset dictionary.
+ * Each frame is compressed independently (no shared stream state), so frames
+ * can be relayed, dropped or reordered across peers without breaking decoding.
+ * The preset dictionary primes the compressor with common chat words, which
+ * is what makes compressing short frames worthwhile.
+ *
+ * Compressed payload layout: [4-byte big-endian original length][raw deflate data].
+ * Only used with peers that negotiated {@link Constants#CAP_DEFLATE}.
+ */
+final class FrameCompressor {
+
+    /**
+     * Shared by both ends; changing it breaks compatibility with older peers.
+     * Deflate favours recent dictionary bytes, so the most common strings go last.
+     */
+    private static final byte[] DICTIONARY = ("http:// https:// www. .com "
+            + "would could should about there their where which because really think "
+            + "going doing something anyone everyone please thanks thank okay sorry "
+            + "what when how who why yes no not but just can will have with this that "
+            + "here now see you later meet at the and for are is it to of in on me my we ")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final int LENGTH_PREFIX = 4;
+
+    /** Deflater is not thread-safe and costly to create; keep one per sending thread. */
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private final Inflater inflater = new Inflater(true);
+
+    /**
+     * Compress {@code payload} into {@code out} starting at {@code offset}.
+     *
+     * @return number of bytes written, or -1 if the result would not be smaller
+     *         than {@code payload} (the caller should send it uncompressed)
+     */
+    static int compress(byte[] payload, byte[] out, int offset) {
+        int limit = Math.min(out.length, offset + payload.length);
+        if (limit - offset <= LENGTH_PREFIX) {
+            return -1;
+        }
+        out[offset] = (byte) (payload.length >>> 24);
+        out[offset + 1] = (byte) (payload.length >>> 16);
+        out[offset + 2] = (byte) (payload.length >>> 8);
+        out[offset + 3] = (byte) payload.length;
+
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(payload);
+        deflater.finish();
+        int pos = offset + LENGTH_PREFIX;
+        while (!deflater.finished()) {
+            if (pos >= limit) {
+                return -1; // Not compressible enough to be worth it
+            }
+            pos += deflater.deflate(out, pos, limit - pos);
+        }
+        return pos - offset;
+    }
+
+    /**
+     * {@code payload} compressed on its own, e.g. the session frame inside a
+     * link envelope.
+     *
+     * @return the compressed bytes, or null if the payload is below
+     *         {@link Constants#COMPRESSION_THRESHOLD_BYTES} or does not shrink
+     */
+    static byte[] compress(byte[] payload) {
+        if (payload.length < Constants.COMPRESSION_THRESHOLD_BYTES) {
+            return null;
+        }
+        byte[] out = new byte[payload.length];
+        int length = compress(payload, out, 0);
+        return length < 0 ? null : Arrays.copyOf(out, length);
+    }
+
+    /** Original (uncompressed) length announced by a compressed payload. */
+    static int originalLength(byte[] buffer, int offset, int length) throws ProtocolException {
+        if (length < LENGTH_PREFIX) {
+            throw new ProtocolException("Truncated compressed frame");
+        }
+        int original = ((buffer[offset] & 0xFF) << 24)
+                | ((buffer[offset + 1] & 0xFF) << 16)
+                | ((buffer[offset + 2] & 0xFF) << 8)
+                | (buffer[offset + 3] & 0xFF);
+        if (original < 0 || original > Constants.MAX_FRAME_SIZE) {
+            throw new ProtocolException("Invalid decompressed length: " + original);
+        }
+        return original;
+    }
+
+    /**
+     * Decompress one payload into {@code out}, which must hold at least
+     * {@link #originalLength} bytes.
+     *
+     * @return number of bytes produced
+     */
+    int decompress(byte[] buffer, int offset, int length, byte[] out) throws ProtocolException {
+        int original = originalLength(buffer, offset, length);
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(buffer, offset + LENGTH_PREFIX, length - LENGTH_PREFIX);
+        try {
+            int produced = 0;
+            while (produced < original && !inflater.finished()) {
+                int n = inflater.inflate(out, produced, original - produced);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                produced += n;
+            }
+            if (produced != original) {
+                throw new ProtocolException("Corrupt compressed frame");
+            }
+            return produced;
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt compressed frame: " + e.getMessage());
+        }
+    }
+}
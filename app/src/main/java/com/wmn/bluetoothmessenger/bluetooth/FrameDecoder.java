@@ -0,0 +1,200 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+/**
+ * Reassembles length-prefixed frames (see {@link FrameEncoder}) from a byte
+ * stream.
+ * RFCOMM delivers arbitrary chunks: one read() may carry several frames or
+ * only part of one. Bytes are read straight into a reusable reassembly buffer
+ * and exactly one payload is emitted per complete frame.
+ * Compressed frames are inflated into a second reusable buffer before they
+ * reach the listener, so callers always see plain payloads.
+ * Not thread-safe — each connection owns its own decoder.
+ */
+public class FrameDecoder {
+
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int MAX_CAPACITY = Constants.FRAME_HEADER_SIZE + Constants.MAX_FRAME_SIZE;
+
+    /** Receives complete frame payloads. */
+    public interface FrameListener {
+        /**
+         * Called once per complete frame. The array is the decoder's internal
+         * buffer and is only valid for the duration of the call — copy what you keep.
+         */
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int readPos = 0;   // start of unconsumed data
+    private int writePos = 0;  // end of buffered data
+
+    // Header word of the frame at readPos, set by nextFrameLength()
+    private boolean frameCompressed;
+    // Raw bounds of the frame currently being delivered (for copyCurrentFrame)
+    private int currentStart;
+    private int currentEnd;
+    private boolean currentCompressed;
+
+    private FrameCompressor compressor;  // created on the first compressed frame
+    private byte[] inflateBuffer;
+
+    /**
+     * Perform one blocking read from the stream and dispatch every frame it
+     * completes. Frames already buffered by {@link #readFrame} are dispatched
+     * first, without waiting for more bytes.
+     *
+     * @return number of bytes read, 0 if only buffered frames were dispatched
+     * @throws EOFException      if the stream is closed
+     * @throws ProtocolException if a frame header announces an invalid length
+     */
+    public int readFrom(InputStream in, FrameListener listener) throws IOException {
+        int bytes = nextFrameLength() >= 0 ? 0 : fill(in);
+        int length;
+        while ((length = nextFrameLength()) >= 0) {
+            int offset = readPos + Constants.FRAME_HEADER_SIZE;
+            currentStart = readPos;
+            currentEnd = offset + length;
+            currentCompressed = frameCompressed;
+            readPos = currentEnd;
+            if (currentCompressed) {
+                int plainLength = inflate(offset, length);
+                listener.onFrame(inflateBuffer, 0, plainLength);
+            } else {
+                listener.onFrame(buffer, offset, length);
+            }
+        }
+        if (readPos == writePos) {
+            readPos = 0;
+            writePos = 0;
+        }
+        return bytes;
+    }
+
+    /**
+     * Copy of the frame currently being delivered to the listener exactly as it
+     * arrived on the wire (header included, still compressed if it was).
+     * Only valid inside {@link FrameListener#onFrame}.
+     */
+    public byte[] copyCurrentFrame() {
+        return Arrays.copyOfRange(buffer, currentStart, currentEnd);
+    }
+
+    /** Whether the frame currently being delivered arrived compressed. */
+    public boolean isCurrentFrameCompressed() {
+        return currentCompressed;
+    }
+
+    /**
+     * Block until one complete frame is available and return a copy of its
+     * payload. Any bytes received beyond that frame stay buffered, so the same
+     * decoder must be handed to the PeerConnection that takes over the socket.
+     */
+    public byte[] readFrame(InputStream in) throws IOException {
+        int length;
+        while ((length = nextFrameLength()) < 0) {
+            fill(in);
+        }
+        int offset = readPos + Constants.FRAME_HEADER_SIZE;
+        readPos = offset + length;
+        if (frameCompressed) {
+            int plainLength = inflate(offset, length);
+            return Arrays.copyOf(inflateBuffer, plainLength);
+        }
+        return Arrays.copyOfRange(buffer, offset, offset + length);
+    }
+
+    /**
+     * Non-blocking {@link #readFrame}: take only the bytes the stream already
+     * has and return the first frame's payload once it is complete.
+     *
+     * @return the payload, or null if the frame is still incomplete
+     */
+    public byte[] pollFrame(InputStream in) throws IOException {
+        while (nextFrameLength() < 0) {
+            if (in.available() <= 0) {
+                return null;
+            }
+            fill(in);
+        }
+        return readFrame(in);
+    }
+
+    private int inflate(int offset, int length) throws ProtocolException {
+        if (compressor == null) {
+            compressor = new FrameCompressor();
+        }
+        int original = FrameCompressor.originalLength(buffer, offset, length);
+        if (inflateBuffer == null || inflateBuffer.length < original) {
+            inflateBuffer = new byte[Math.max(original, INITIAL_CAPACITY)];
+        }
+        return compressor.decompress(buffer, offset, length, inflateBuffer);
+    }
+
+    /**
+     * Length of the frame at the read position, or -1 if it is not yet complete.
+     */
+    private int nextFrameLength() throws ProtocolException {
+        int available = writePos - readPos;
+        if (available < Constants.FRAME_HEADER_SIZE) {
+            return -1;
+        }
+        int word = ((buffer[readPos] & 0xFF) << 24)
+                | ((buffer[readPos + 1] & 0xFF) << 16)
+                | ((buffer[readPos + 2] & 0xFF) << 8)
+                | (buffer[readPos + 3] & 0xFF);
+        frameCompressed = (word & Constants.FRAME_FLAG_COMPRESSED) != 0;
+        int length = word & Constants.FRAME_LENGTH_MASK;
+        if (length > Constants.MAX_FRAME_SIZE) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        if (available < Constants.FRAME_HEADER_SIZE + length) {
+            ensureCapacity(Constants.FRAME_HEADER_SIZE + length);
+            return -1;
+        }
+        return length;
+    }
+
+    /** Read once from the stream into the free tail of the buffer. */
+    private int fill(InputStream in) throws IOException {
+        if (writePos == buffer.length) {
+            ensureCapacity(writePos - readPos + 1);
+        }
+        int bytes = in.read(buffer, writePos, buffer.length - writePos);
+        if (bytes < 0) {
+            throw new EOFException("Stream closed");
+        }
+        writePos += bytes;
+        return bytes;
+    }
+
+    /**
+     * Make room for {@code required} bytes starting at the read position:
+     * compact unconsumed data to the front, then grow if still too small.
+     */
+    private void ensureCapacity(int required) {
+        if (readPos + required <= buffer.length) {
+            return;
+        }
+        if (required > buffer.length) {
+            int newCapacity = buffer.length;
+            while (newCapacity < required) {
+                newCapacity <<= 1;
+            }
+            byte[] grown = new byte[Math.min(newCapacity, MAX_CAPACITY)];
+            System.arraycopy(buffer, readPos, grown, 0, writePos - readPos);
+            buffer = grown;
+        } else {
+            System.arraycopy(buffer, readPos, buffer, 0, writePos - readPos);
+        }
+        writePos -= readPos;
+        readPos = 0;
+    }
+}
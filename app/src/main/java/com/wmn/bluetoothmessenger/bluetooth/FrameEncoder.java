@@ -0,0 +1,74 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+/**
+ * Wraps protocol payloads in length-prefixed frames.
+ * Wire format: [4-byte big-endian payload length][payload bytes].
+ * The top bit of the length word ({@link Constants#FRAME_FLAG_COMPRESSED})
+ * marks a Deflate-compressed payload (see {@link FrameCompressor}).
+ * The receiving side reassembles frames with {@link FrameDecoder}.
+ */
+public final class FrameEncoder {
+
+    private FrameEncoder() {
+    } // Prevent instantiation
+
+    /**
+     * Encode a payload into a complete frame (header + payload).
+     */
+    public static byte[] encode(byte[] payload) throws ProtocolException {
+        checkLength(payload.length);
+        byte[] frame = new byte[Constants.FRAME_HEADER_SIZE + payload.length];
+        writeHeader(frame, payload.length);
+        System.arraycopy(payload, 0, frame, Constants.FRAME_HEADER_SIZE, payload.length);
+        return frame;
+    }
+
+    /**
+     * Encode a payload into a compressed frame.
+     *
+     * @return the frame, or null if the payload is below
+     *         {@link Constants#COMPRESSION_THRESHOLD_BYTES} or does not shrink
+     */
+    public static byte[] encodeCompressed(byte[] payload) throws ProtocolException {
+        checkLength(payload.length);
+        if (payload.length < Constants.COMPRESSION_THRESHOLD_BYTES) {
+            return null;
+        }
+        byte[] frame = new byte[Constants.FRAME_HEADER_SIZE + payload.length];
+        int length = FrameCompressor.compress(payload, frame, Constants.FRAME_HEADER_SIZE);
+        if (length < 0) {
+            return null;
+        }
+        writeHeader(frame, length | Constants.FRAME_FLAG_COMPRESSED);
+        return Arrays.copyOf(frame, Constants.FRAME_HEADER_SIZE + length);
+    }
+
+    /**
+     * Write a single framed payload straight to a stream and flush it.
+     * Used by the auth handshake before a PeerConnection exists.
+     */
+    public static void writeFrame(OutputStream out, byte[] payload) throws IOException {
+        out.write(encode(payload));
+        out.flush();
+    }
+
+    private static void writeHeader(byte[] frame, int word) {
+        frame[0] = (byte) (word >>> 24);
+        frame[1] = (byte) (word >>> 16);
+        frame[2] = (byte) (word >>> 8);
+        frame[3] = (byte) word;
+    }
+
+    private static void checkLength(int length) throws ProtocolException {
+        if (length > Constants.MAX_FRAME_SIZE) {
+            throw new ProtocolException("Frame too large: " + length + " bytes");
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+import com.wmn.bluetoothmessenger.util.TimerService;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.concurrent.Executor;
+
+/**
+ * Liveness and round-trip time for one peer link.
+ *
+ * Every interval the link sends {@code PING [nonce]}, which the peer's reader
+ * answers at once with {@code PONG [nonce]}. Each answer is an RTT sample,
+ * smoothed with its variance as in RFC 6298. Any frame from the peer counts as
+ * a sign of life; when nothing has arrived for {@code missLimit} intervals the
+ * peer is taken for dead and the link fails the same way a write would.
+ *
+ * Without this a half-open RFCOMM link is only noticed once the socket buffer
+ * fills and a write fails, or the stack times out, which can take minutes.
+ * Both sides ping, so an idle link keeps both sides' clocks fresh.
+ *
+ * Timed by the shared {@link TimerService}, with each tick run on the
+ * connection's executor; cheap enough to call {@link #onFrameReceived()} for
+ * every frame. Pings and pongs never wait for room in the peer's queue.
+ */
+public final class Heartbeat {
+
+    private static final String TAG = "Heartbeat";
+
+    /** Point-in-time view of a link's heartbeat. */
+    public static final class Stats {
+        public final long smoothedRttMs;     // -1 until the first pong
+        public final long rttVarianceMs;
+        public final long lastRttMs;
+        public final long silentMs;          // since the last frame from the peer
+        public final long pingsSent;
+        public final long pongsReceived;
+
+        Stats(long smoothedRttMs, long rttVarianceMs, long lastRttMs, long silentMs,
+                long pingsSent, long pongsReceived) {
+            this.smoothedRttMs = smoothedRttMs;
+            this.rttVarianceMs = rttVarianceMs;
+            this.lastRttMs = lastRttMs;
+            this.silentMs = silentMs;
+            this.pingsSent = pingsSent;
+            this.pongsReceived = pongsReceived;
+        }
+
+        @Override
+        public String toString() {
+            return "rtt=" + smoothedRttMs + "±" + rttVarianceMs + "ms last=" + lastRttMs
+                    + "ms silent=" + silentMs + "ms pings=" + pingsSent + " pongs=" + pongsReceived;
+        }
+    }
+
+    private final ReliableLink.Output output;
+    private final String peerName;
+    private final Executor executor;
+    private final TimerService.Timeout tick;
+    private volatile long lastHeard = SystemClock.elapsedRealtime();
+
+    // ── Guarded by this ───────────────────────────────────────────────────────
+    private long intervalMs = Constants.HEARTBEAT_INTERVAL_MS;
+    private int missLimit = Constants.HEARTBEAT_MISS_LIMIT;
+    private long nextNonce = 0;
+    private long pingNonce = -1;     // the ping awaiting its pong; -1 for none
+    private long pingSentAt;
+    private long srtt = -1;
+    private long rttvar = 0;
+    private long lastRtt = -1;
+    private long pingsSent = 0;
+    private long pongsReceived = 0;
+    private boolean stopped = false;
+
+    /** @param executor where ticks and failure reports run, off the timer thread */
+    Heartbeat(ReliableLink.Output output, String peerName, Executor executor) {
+        this.output = output;
+        this.peerName = peerName;
+        this.executor = executor;
+        this.tick = TimerService.get().newTimeout(() -> executor.execute(this::onTick));
+    }
+
+    // ========== LIFECYCLE ==========
+
+    /**
+     * Start (or retune) probing: a ping every {@code intervalMs}, the link
+     * failed after {@code missLimit} silent intervals. An interval of 0 or less
+     * turns the heartbeat off.
+     */
+    synchronized void configure(long intervalMs, int missLimit) {
+        this.intervalMs = intervalMs;
+        this.missLimit = Math.max(1, missLimit);
+        if (stopped) {
+            return;
+        }
+        if (intervalMs > 0) {
+            tick.reschedule(intervalMs);
+        } else {
+            tick.cancel();
+        }
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        tick.cancel();
+    }
+
+    // ========== PROBING ==========
+
+    /** Timer follow-up: give up on a silent peer, otherwise ping it. */
+    private void onTick() {
+        long now = SystemClock.elapsedRealtime();
+        long silent = now - lastHeard;
+        byte[] ping = null;
+        synchronized (this) {
+            if (stopped || intervalMs <= 0) {
+                return;
+            }
+            if (silent >= intervalMs * missLimit) {
+                stop();
+                IOException e = new IOException(peerName + " silent for " + silent + " ms");
+                Log.w(TAG, e.getMessage() + ", dropping the link");
+                // Report as a task of its own, like a failed reliable link
+                executor.execute(() -> output.onLinkFailed(e));
+                return;
+            }
+            // A ping unanswered for a whole interval is replaced; its late pong gives no sample
+            if (pingNonce < 0 || now - pingSentAt >= intervalMs) {
+                pingNonce = nextNonce++;
+                pingSentAt = now;
+                pingsSent++;
+                ping = ProtocolCodec.encodePing(pingNonce);
+            }
+            tick.reschedule(intervalMs);
+        }
+        if (ping != null) {
+            output.offerRaw(ping);
+        }
+    }
+
+    /** The peer sent something: it is alive. */
+    void onFrameReceived() {
+        lastHeard = SystemClock.elapsedRealtime();
+    }
+
+    /** Handle {@code PING [nonce]} (answered at once) or {@code PONG [nonce]}. */
+    void onFrame(int opcode, byte[] buffer, int offset, int length) throws ProtocolException {
+        long nonce = new ProtocolCodec.Reader(buffer, offset, length).readVarlong();
+        if (opcode == Constants.OP_PING) {
+            output.offerRaw(ProtocolCodec.encodePong(nonce));
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            if (nonce != pingNonce) {
+                return;
+            }
+            pingNonce = -1;
+            pongsReceived++;
+            updateRtt(now - pingSentAt);
+        }
+    }
+
+    /** RFC 6298 smoothing, same as {@link ReliableLink}. Caller holds the lock. */
+    private void updateRtt(long sample) {
+        lastRtt = sample;
+        if (srtt < 0) {
+            srtt = sample;
+            rttvar = sample / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - sample)) / 4;
+            srtt = (7 * srtt + sample) / 8;
+        }
+    }
+
+    // ========== MONITORING ==========
+
+    /** Smoothed round-trip time in ms, or -1 before the first pong. */
+    synchronized long getSmoothedRttMs() {
+        return srtt;
+    }
+
+    synchronized long getRttVarianceMs() {
+        return rttvar;
+    }
+
+    synchronized Stats getStats() {
+        return new Stats(srtt, rttvar, lastRtt, SystemClock.elapsedRealtime() - lastHeard,
+                pingsSent, pongsReceived);
+    }
+}
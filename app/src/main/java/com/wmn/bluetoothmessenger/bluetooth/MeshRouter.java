@@ -0,0 +1,156 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routing for mesh mode, where members that negotiated {@link Constants#CAP_MESH}
+ * accept connections of their own and relay for them.
+ *
+ * The group forms a tree rooted at the host. A relay hands its children IDs
+ * from a block derived from its own ({@code parent * MESH_ID_STRIDE + n}), so
+ * a sender ID alone says where a member sits: which link owns it, how deep it
+ * is and how many hops away. Depth is capped at {@link Constants#MESH_MAX_DEPTH},
+ * which bounds every broadcast to a few hops. A tree has no loops, so a frame
+ * crosses each link once; chat that still arrives twice (reconnects) is
+ * dropped by the {@link DuplicateFilter}.
+ *
+ * On top of that the router tracks which members are currently reachable
+ * through which link, learned from handshakes, JOIN and SENDER frames. When a
+ * link drops, every member behind it goes with it.
+ *
+ * Thread-safe: updated by connection readers and handshake workers.
+ */
+public final class MeshRouter {
+
+    /** Next hop for each reachable member, by sender ID. */
+    private final ConcurrentHashMap<Integer, PeerConnection> routes = new ConcurrentHashMap<>();
+
+    // ========== ID STRUCTURE ==========
+
+    /** Parent of {@code id} in the tree; the host's children have the host as parent. */
+    public static int parentOf(int id) {
+        return id / Constants.MESH_ID_STRIDE;
+    }
+
+    /** Hops from the host: 0 for the host, 1 for members connected to it directly. */
+    public static int depthOf(int id) {
+        int depth = 0;
+        while (id != Constants.HOST_SENDER_ID) {
+            id = parentOf(id);
+            depth++;
+        }
+        return depth;
+    }
+
+    /** Whether {@code id} is {@code ancestor} itself or sits below it. */
+    public static boolean isWithin(int id, int ancestor) {
+        while (id != ancestor) {
+            if (id == Constants.HOST_SENDER_ID) {
+                return ancestor == Constants.HOST_SENDER_ID;
+            }
+            id = parentOf(id);
+        }
+        return true;
+    }
+
+    /** Links a frame crosses between two members. */
+    public static int hops(int a, int b) {
+        int depthA = depthOf(a);
+        int depthB = depthOf(b);
+        int hops = 0;
+        while (depthA > depthB) {
+            a = parentOf(a);
+            depthA--;
+            hops++;
+        }
+        while (depthB > depthA) {
+            b = parentOf(b);
+            depthB--;
+            hops++;
+        }
+        while (a != b) {
+            a = parentOf(a);
+            b = parentOf(b);
+            hops += 2;
+        }
+        return hops;
+    }
+
+    /**
+     * ID of a relay's {@code n}-th child (1-based).
+     *
+     * @return -1 if the relay's block is used up or the child would be too deep
+     */
+    public static int childId(int parentId, int n) {
+        if (n <= 0 || n >= Constants.MESH_ID_STRIDE || depthOf(parentId) >= Constants.MESH_MAX_DEPTH) {
+            return -1;
+        }
+        return parentId * Constants.MESH_ID_STRIDE + n;
+    }
+
+    // ========== REACHABILITY ==========
+
+    /**
+     * Record that {@code id} is reached through {@code link}.
+     *
+     * @return false if it is already reachable through a different link
+     *         (a second path would form a loop), in which case nothing changes
+     */
+    boolean learn(int id, PeerConnection link) {
+        PeerConnection existing = routes.putIfAbsent(id, link);
+        return existing == null || existing == link;
+    }
+
+    /** {@code id} left the group. */
+    void forget(int id) {
+        routes.remove(id);
+    }
+
+    /** Next hop towards {@code id}, or null if it is not reachable. */
+    PeerConnection routeTo(int id) {
+        return routes.get(id);
+    }
+
+    /**
+     * {@code link} went down: drop every member reached through it.
+     *
+     * @return the members lost, the link's own peer included unless it already left
+     */
+    List<Integer> dropLink(PeerConnection link) {
+        List<Integer> lost = new ArrayList<>();
+        Iterator<Map.Entry<Integer, PeerConnection>> it = routes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, PeerConnection> route = it.next();
+            if (route.getValue() == link) {
+                it.remove();
+                lost.add(route.getKey());
+            }
+        }
+        return lost;
+    }
+
+    /** Members currently reachable, not counting this device. */
+    public int getReachableCount() {
+        return routes.size();
+    }
+
+    /** Hops from {@code localId} to every reachable member, by sender ID. */
+    public Map<Integer, Integer> getHopCounts(int localId) {
+        Map<Integer, Integer> hops = new TreeMap<>();
+        for (Integer id : routes.keySet()) {
+            hops.put(id, hops(localId, id));
+        }
+        return hops;
+    }
+
+    void clear() {
+        routes.clear();
+    }
+}
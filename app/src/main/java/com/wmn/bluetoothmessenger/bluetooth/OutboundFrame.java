@@ -0,0 +1,113 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import android.util.Log;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * One outgoing protocol message, encoded at most once per wire variant.
+ * Peers that negotiated compression get the compressed frame, everyone else the
+ * plain one; each variant is built lazily the first time a peer needs it and
+ * then shared by all peers. Frames received from a peer can be wrapped as-is so
+ * the host relays the original bytes without re-encoding. Session frames are
+ * numbered per link, so for them only the payload is shared, compressed once
+ * ({@link #compressedPayload}) and wrapped by each peer's {@link ReliableLink}.
+ *
+ * Not thread-safe: build and fan out a frame from a single thread.
+ */
+public final class OutboundFrame {
+
+    private static final String TAG = "OutboundFrame";
+
+    private byte[] payload;   // derived from plainFrame on demand when only the wire bytes are known
+    private byte[] plainFrame;
+    private byte[] compressedFrame;
+    private boolean compressionTried;
+    private byte[] compressedPayload;
+    private boolean payloadCompressionTried;
+
+    private OutboundFrame(byte[] payload, byte[] plainFrame, byte[] compressedFrame) {
+        this.payload = payload;
+        this.plainFrame = plainFrame;
+        this.compressedFrame = compressedFrame;
+        this.compressionTried = compressedFrame != null;
+    }
+
+    /** Wrap an encoded protocol payload (see {@link ProtocolCodec}). */
+    public static OutboundFrame of(byte[] payload) {
+        return new OutboundFrame(payload, null, null);
+    }
+
+    /**
+     * Wrap a frame exactly as it arrived from a peer.
+     *
+     * @param rawFrame   wire bytes, header included
+     * @param compressed whether {@code rawFrame} is a compressed frame
+     * @param payload    the decoded payload; required for compressed frames, may be
+     *                   null for plain ones (it is then sliced from {@code rawFrame})
+     */
+    public static OutboundFrame received(byte[] rawFrame, boolean compressed, byte[] payload) {
+        return compressed
+                ? new OutboundFrame(payload, null, rawFrame)
+                : new OutboundFrame(payload, rawFrame, null);
+    }
+
+    /**
+     * Always send the plain variant, even to peers that negotiated compression
+     * (for payloads that won't shrink, e.g. file chunks).
+     */
+    public OutboundFrame skipCompression() {
+        compressionTried = true;
+        return this;
+    }
+
+    /**
+     * Wire bytes for a peer, or null if the message cannot be framed.
+     *
+     * @param compression whether the peer negotiated {@code deflate}
+     */
+    public byte[] forPeer(boolean compression) {
+        try {
+            if (compression) {
+                if (!compressionTried) {
+                    compressionTried = true;
+                    compressedFrame = FrameEncoder.encodeCompressed(payload());
+                }
+                if (compressedFrame != null) {
+                    return compressedFrame;
+                }
+            }
+            if (plainFrame == null) {
+                plainFrame = FrameEncoder.encode(payload());
+            }
+            return plainFrame;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot frame message", e);
+            return null;
+        }
+    }
+
+    /**
+     * The payload in {@link FrameCompressor} layout, for a link envelope to a
+     * peer that negotiated compression; null if it is too short or does not
+     * shrink. Built once and shared by every peer.
+     */
+    byte[] compressedPayload() {
+        if (!payloadCompressionTried) {
+            payloadCompressionTried = true;
+            compressedPayload = FrameCompressor.compress(payload());
+        }
+        return compressedPayload;
+    }
+
+    /** The protocol payload, without the frame header. */
+    byte[] payload() {
+        if (payload == null) {
+            payload = Arrays.copyOfRange(plainFrame, Constants.FRAME_HEADER_SIZE, plainFrame.length);
+        }
+        return payload;
+    }
+}
@@ -0,0 +1,563 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import android.util.Log;
+
+import com.wmn.bluetoothmessenger.model.ProtocolEvent;
+import com.wmn.bluetoothmessenger.transport.Transport;
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Manages an active peer connection (an RFCOMM socket on devices, see
+ * {@link Transport}). Its read loop runs on a pooled {@link ConnectionEngine}
+ * worker; all traffic is length-prefixed (see {@link FrameDecoder}).
+ *
+ * Incoming frames are decoded into {@link ProtocolEvent}s on the reader and
+ * handed to the service's {@link EventDispatcher}; file frames go to the
+ * {@link FileTransferManager}. On the host (or a mesh relay) frames from a
+ * client are vetted against its sender ID and relayed to the other peers
+ * straight from the reader (see {@link BluetoothService#relayFrame}).
+ *
+ * Writes are queued on the peer's own {@link PeerWriter}; session frames go
+ * through its {@link ReliableLink}, and a {@link Heartbeat} drops the link
+ * when the peer goes silent.
+ */
+public class PeerConnection implements Runnable, ReliableLink.Output {
+
+    private static final String TAG = "PeerConnection";
+
+    private final Transport.Connection socket;
+    private final InputStream inputStream;
+    private final PeerWriter writer;
+    private final ReliableLink link;
+    private final Heartbeat heartbeat;
+    private final String deviceName;
+    private final FrameDecoder frameDecoder;
+    private FrameCompressor inflater;  // reader only; created on the first DATA_DEFLATE
+    private final BluetoothService bluetoothService;
+    private volatile boolean compressionEnabled = false;  // negotiated during the auth handshake
+    private volatile int senderId = Constants.HOST_SENDER_ID;  // peer's session ID; clients only talk to the host
+    private volatile boolean upstream = false;     // the link this device joined through
+    private volatile boolean meshEnabled = false;  // negotiated CAP_MESH: the peer relays for members below it
+    private volatile boolean peerLeft = false;     // the peer announced its own LEAVE before going
+    private volatile boolean running = true;
+    private volatile Future<?> readFuture;
+
+    public PeerConnection(Transport.Connection socket, String deviceName, BluetoothService bluetoothService) {
+        this(socket, deviceName, new FrameDecoder(), bluetoothService);
+    }
+
+    /**
+     * Take over a socket whose handshake was read with {@code frameDecoder};
+     * any frames already buffered behind the handshake are delivered first.
+     */
+    public PeerConnection(Transport.Connection socket, String deviceName, FrameDecoder frameDecoder,
+            BluetoothService bluetoothService) {
+        this.socket = socket;
+        this.deviceName = deviceName;
+        this.frameDecoder = frameDecoder;
+        this.bluetoothService = bluetoothService;
+
+        InputStream tmpIn = null;
+        OutputStream tmpOut = null;
+
+        try {
+            tmpIn = socket.getInputStream();
+            tmpOut = socket.getOutputStream();
+        } catch (IOException e) {
+            Log.e(TAG, "Error getting streams", e);
+        }
+
+        this.inputStream = tmpIn;
+        this.writer = new PeerWriter(tmpOut, this, Constants.WRITE_QUEUE_CAPACITY,
+                bluetoothService.getOverflowPolicy());
+        this.writer.setBatching(bluetoothService.getBatchWindowMs(), bluetoothService.getBatchMaxBytes());
+        ConnectionEngine engine = bluetoothService.getEngine();
+        this.link = new ReliableLink(this, deviceName, engine::execute);
+        this.heartbeat = new Heartbeat(this, deviceName, engine::execute);
+    }
+
+    /**
+     * Start this connection's reader and writer on the service's engine.
+     *
+     * @throws RejectedExecutionException if the engine has no worker to spare;
+     *                                    the connection is closed in that case
+     */
+    public void start() {
+        ConnectionEngine engine = bluetoothService.getEngine();
+        try {
+            writer.start(engine);
+            readFuture = engine.submit(ConnectionEngine.Role.READ, deviceName, this);
+            heartbeat.configure(bluetoothService.getHeartbeatIntervalMs(), bluetoothService.getHeartbeatMissLimit());
+        } catch (RejectedExecutionException e) {
+            cancel();
+            throw e;
+        }
+    }
+
+    @Override
+    public void run() {
+        FrameDecoder.FrameListener listener = (buffer, offset, length) -> {
+            int opcode = ProtocolCodec.opcode(buffer, offset, length);
+            heartbeat.onFrameReceived();
+            if (opcode == Constants.OP_PING || opcode == Constants.OP_PONG) {
+                try {
+                    heartbeat.onFrame(opcode, buffer, offset, length);
+                } catch (ProtocolException e) {
+                    Log.w(TAG, "Malformed heartbeat from " + deviceName, e);
+                }
+                return;
+            }
+            if (opcode == Constants.OP_LINK_ACK) {
+                try {
+                    link.onAck(buffer, offset, length);
+                } catch (ProtocolException e) {
+                    Log.w(TAG, "Malformed link ack from " + deviceName, e);
+                }
+                return;
+            }
+            if (opcode == Constants.OP_DATA || opcode == Constants.OP_DATA_DEFLATE) {
+                // Unwrap the session frame; the link drops resends and restores the order
+                ProtocolCodec.Reader reader = new ProtocolCodec.Reader(buffer, offset, length);
+                try {
+                    long seq = reader.readVarlong();
+                    int start = reader.position();
+                    int bodyLength = length - (start - offset);
+                    if (opcode == Constants.OP_DATA_DEFLATE) {
+                        byte[] frame = inflate(buffer, start, bodyLength);
+                        link.onData(seq, frame, 0, frame.length, this::onFrame);
+                    } else {
+                        link.onData(seq, buffer, start, bodyLength, this::onFrame);
+                    }
+                } catch (ProtocolException e) {
+                    Log.w(TAG, "Malformed data frame from " + deviceName, e);
+                }
+                return;
+            }
+            onFrame(buffer, offset, length);
+        };
+
+        // Continuously read from the InputStream; each complete frame goes to the listener
+        while (running) {
+            try {
+                frameDecoder.readFrom(inputStream, listener);
+            } catch (IOException e) {
+                if (running) {
+                    Log.d(TAG, "Connection lost with " + deviceName + ", "
+                            + link.getUnacknowledgedCount() + " frames unacknowledged");
+                    running = false;
+                    link.close();
+                    heartbeat.stop();
+                    writer.cancel();
+                    // A bad frame ends the loop with the socket still open
+                    closeSocket();
+                    bluetoothService.onLinkLost(this);
+                }
+                break;
+            }
+        }
+    }
+
+    /** The session frame inside a DATA_DEFLATE envelope. Reader only. */
+    private byte[] inflate(byte[] buffer, int offset, int length) throws ProtocolException {
+        if (inflater == null) {
+            inflater = new FrameCompressor();
+        }
+        byte[] frame = new byte[FrameCompressor.originalLength(buffer, offset, length)];
+        inflater.decompress(buffer, offset, length, frame);
+        return frame;
+    }
+
+    /** Vet, relay and dispatch one unwrapped frame from this peer. */
+    private void onFrame(byte[] buffer, int offset, int length) {
+        if (!upstream) {
+            if (!acceptFromClient(buffer, offset, length)) {
+                return;
+            }
+        } else if (!acceptFromHost(buffer, offset, length)) {
+            return;
+        }
+        if (ProtocolCodec.isFileOpcode(ProtocolCodec.opcode(buffer, offset, length))) {
+            bluetoothService.getFileTransfers().onFrame(this, buffer, offset, length);
+            return;
+        }
+        // Decode here, off the UI thread; the dispatcher batches events for the UI
+        ProtocolEvent event = ProtocolDecoder.decode(buffer, offset, length,
+                bluetoothService.getSenderTable(), bluetoothService.getDuplicateFilter());
+        if (event != null) {
+            bluetoothService.getEventDispatcher().post(event);
+        }
+    }
+
+    /**
+     * Write one message payload to the connected device as a single frame.
+     */
+    public void write(byte[] bytes) {
+        writeFrame(OutboundFrame.of(bytes));
+    }
+
+    /**
+     * Queue a frame for the connected device, picking the compressed or plain
+     * variant this peer negotiated. Returns immediately; the peer's
+     * {@link PeerWriter} does the socket write. The frame's bytes may be shared
+     * across peers, so they are never modified. Session frames are numbered per
+     * peer, so they are wrapped and framed here; only their payload, compressed
+     * once, is shared.
+     *
+     * @return false if the frame was dropped
+     */
+    public boolean writeFrame(OutboundFrame frame) {
+        byte[] payload = frame.payload();
+        if (ProtocolCodec.isReliableOpcode(ProtocolCodec.opcode(payload, 0, payload.length))) {
+            return link.send(payload, compressionEnabled ? frame.compressedPayload() : null);
+        }
+        byte[] bytes = frame.forPeer(compressionEnabled);
+        return bytes != null && writer.enqueue(bytes);
+    }
+
+    /**
+     * {@link ReliableLink} / {@link Heartbeat} output: frame a link-level payload
+     * for this peer. Always plain: a session frame inside was already compressed,
+     * and acks and pings are too short to shrink.
+     */
+    @Override
+    public boolean offerRaw(byte[] payload) {
+        byte[] bytes = OutboundFrame.of(payload).forPeer(false);
+        return bytes != null && writer.offer(bytes);
+    }
+
+    /** {@link ReliableLink} or {@link Heartbeat} gave up on the peer: treat it like a failed write. */
+    @Override
+    public void onLinkFailed(IOException e) {
+        onWriteFailed(e);
+    }
+
+    /**
+     * Session frames this peer never acknowledged, oldest first, leaving out
+     * the first {@code peerReceived} it reports having got; the link is closed
+     * afterwards.
+     */
+    public List<byte[]> takeUnacknowledged(long peerReceived) {
+        return link.takeUnacknowledged(peerReceived);
+    }
+
+    /** Session frames received in order from this peer, reported when resuming. */
+    public long getReceivedCount() {
+        return link.getReceivedCount();
+    }
+
+    /**
+     * The outbound queue overflowed under {@link PeerWriter.OverflowPolicy#DISCONNECT}.
+     * That happens inside a sender's call, which may hold the service's locks,
+     * so the teardown runs on the engine's link thread.
+     */
+    void onQueueOverflow(IOException e) {
+        bluetoothService.getEngine().execute(() -> onWriteFailed(e));
+    }
+
+    /**
+     * Called by the {@link PeerWriter} when the socket write fails, and after
+     * {@link #onQueueOverflow}.
+     */
+    void onWriteFailed(IOException e) {
+        Log.e(TAG, "Error writing to " + deviceName, e);
+        if (running) {
+            running = false;
+            link.close();
+            heartbeat.stop();
+            closeSocket();
+            bluetoothService.onLinkLost(this);
+        }
+    }
+
+    /**
+     * Host (or mesh relay): vet a frame from this client and relay it to the
+     * other peers. Chat, leave, file offers and chunks must carry the sender ID
+     * assigned to this peer, or in a mesh one of the members behind it; a mesh
+     * peer may also announce a member that joined below it. File acks and
+     * resumes are meant for this device alone, and a file cancel is relayed only
+     * when it comes from the transfer's originator. Anything else a client has
+     * no business sending is dropped.
+     *
+     * @return whether the frame should also be delivered locally
+     */
+    private boolean acceptFromClient(byte[] buffer, int offset, int length) {
+        int opcode = ProtocolCodec.opcode(buffer, offset, length);
+        ProtocolCodec.Reader reader = new ProtocolCodec.Reader(buffer, offset, length);
+        int claimedId;
+        boolean mustMatch;
+        long sequence = -1;
+        try {
+            switch (opcode) {
+                case Constants.OP_CHAT:
+                    claimedId = reader.readVarint();
+                    sequence = reader.readVarlong();
+                    mustMatch = true;
+                    break;
+                case Constants.OP_LEAVE:
+                    claimedId = reader.readVarint();
+                    mustMatch = true;
+                    break;
+                case Constants.OP_JOIN:
+                    claimedId = reader.readVarint();
+                    if (claimedId == senderId || !speaksFor(claimedId)
+                            || !bluetoothService.getMeshRouter().learn(claimedId, this)) {
+                        Log.w(TAG, deviceName + " (ID " + senderId + ") announced ID " + claimedId + ", dropping");
+                        return false;
+                    }
+                    mustMatch = true;
+                    break;
+                case Constants.OP_FILE_OFFER:
+                case Constants.OP_FILE_CHUNK:
+                    claimedId = ProtocolCodec.transferSender(reader.readVarlong());
+                    mustMatch = true;
+                    break;
+                case Constants.OP_FILE_CANCEL:
+                    claimedId = ProtocolCodec.transferSender(reader.readVarlong());
+                    mustMatch = false;
+                    break;
+                case Constants.OP_FILE_ACK:
+                case Constants.OP_FILE_RESUME:
+                    return true;
+                case Constants.OP_SESSION_END:
+                    // A member disconnecting ends only its own session: it is leaving, not dropping out
+                    peerLeft = true;
+                    return false;
+                default:
+                    Log.w(TAG, "Ignoring opcode " + opcode + " from client " + deviceName);
+                    return false;
+            }
+        } catch (ProtocolException e) {
+            Log.w(TAG, "Malformed frame from " + deviceName, e);
+            return false;
+        }
+        if (!speaksFor(claimedId)) {
+            if (mustMatch) {
+                Log.w(TAG, deviceName + " (ID " + senderId + ") sent as ID " + claimedId + ", dropping");
+                return false;
+            }
+            return true; // A receiver opting out of someone else's transfer: host only
+        }
+        if (opcode == Constants.OP_CHAT && !bluetoothService.getDuplicateFilter().accept(claimedId, sequence)) {
+            return false; // Seen already: neither delivered nor relayed again
+        }
+        if (opcode == Constants.OP_LEAVE) {
+            bluetoothService.getMeshRouter().forget(claimedId);
+            peerLeft |= claimedId == senderId;
+        }
+        relay(opcode, buffer, offset, length);
+        return true;
+    }
+
+    /** Whether this peer may send as {@code id}: its own ID, or in a mesh a member below it. */
+    private boolean speaksFor(int id) {
+        return id == senderId || (meshEnabled && MeshRouter.isWithin(id, senderId));
+    }
+
+    /** Forward a vetted frame to every other peer. */
+    private void relay(int opcode, byte[] buffer, int offset, int length) {
+        if (ProtocolCodec.isReliableOpcode(opcode)) {
+            // Arrived inside this link's envelope; each peer's link wraps its own
+            byte[] payload = Arrays.copyOfRange(buffer, offset, offset + length);
+            bluetoothService.relayFrame(OutboundFrame.of(payload), this);
+            return;
+        }
+        // Forward the frame exactly as received (header included): one copy
+        // shared by every peer, no re-encoding. A compressed frame also keeps
+        // its plain payload for peers that did not negotiate compression.
+        boolean compressed = frameDecoder.isCurrentFrameCompressed();
+        OutboundFrame frame = OutboundFrame.received(frameDecoder.copyCurrentFrame(),
+                compressed, compressed ? Arrays.copyOfRange(buffer, offset, offset + length) : null);
+        if (opcode == Constants.OP_FILE_CHUNK) {
+            frame.skipCompression();
+        }
+        bluetoothService.relayFrame(frame, this);
+    }
+
+    /**
+     * Client side: drop chat frames already delivered, e.g. ones the host
+     * resends after a reconnect, and keep the mesh routes current. Note who
+     * takes over if the host goes, and whether it ended the session on purpose.
+     * A mesh relay passes group traffic on to its own children; the roster,
+     * history and successor it got are for it alone.
+     */
+    private boolean acceptFromHost(byte[] buffer, int offset, int length) {
+        int opcode = ProtocolCodec.opcode(buffer, offset, length);
+        ProtocolCodec.Reader reader = new ProtocolCodec.Reader(buffer, offset, length);
+        try {
+            switch (opcode) {
+                case Constants.OP_CHAT:
+                    if (!bluetoothService.getDuplicateFilter().accept(reader.readVarint(), reader.readVarlong())) {
+                        return false;
+                    }
+                    break;
+                case Constants.OP_JOIN:
+                case Constants.OP_SENDER:
+                    bluetoothService.getMeshRouter().learn(reader.readVarint(), this);
+                    break;
+                case Constants.OP_LEAVE: {
+                    int id = reader.readVarint();
+                    bluetoothService.getMeshRouter().forget(id);
+                    peerLeft |= id == senderId;
+                    break;
+                }
+                case Constants.OP_SESSION_END:
+                    bluetoothService.onSessionEnded();
+                    break;
+                case Constants.OP_SUCCESSOR:
+                    bluetoothService.setSuccessor(reader.readVarint(), reader.readString());
+                    return false;
+                default:
+                    break;
+            }
+        } catch (ProtocolException e) {
+            Log.w(TAG, "Malformed frame from " + deviceName, e);
+            return false;
+        }
+        if (bluetoothService.isRelaying() && isRelayedDownstream(opcode)) {
+            relay(opcode, buffer, offset, length);
+        }
+        return true;
+    }
+
+    private static boolean isRelayedDownstream(int opcode) {
+        switch (opcode) {
+            case Constants.OP_CHAT:
+            case Constants.OP_JOIN:
+            case Constants.OP_LEAVE:
+            case Constants.OP_SESSION_END:
+            case Constants.OP_FILE_OFFER:
+            case Constants.OP_FILE_CHUNK:
+            case Constants.OP_FILE_CANCEL:
+                return true;
+            default:
+                return false; // Roster, history, successor and file acks are addressed to this device
+        }
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    /** Session sender ID the host assigned to this peer. */
+    public void setSenderId(int senderId) {
+        this.senderId = senderId;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    /** Mark this as the link to the host (or the mesh relay this device joined through). */
+    public void setUpstream(boolean upstream) {
+        this.upstream = upstream;
+    }
+
+    public boolean isUpstream() {
+        return upstream;
+    }
+
+    /** Whether this peer negotiated {@link Constants#CAP_MESH} and relays for members below it. */
+    public void setMeshEnabled(boolean enabled) {
+        this.meshEnabled = enabled;
+    }
+
+    public boolean isMeshEnabled() {
+        return meshEnabled;
+    }
+
+    /**
+     * Whether the peer said it was leaving (its own LEAVE, or SESSION_END from
+     * a member), so losing it is no dropout to resume from.
+     */
+    public boolean hasPeerLeft() {
+        return peerLeft;
+    }
+
+    /** Whether this peer negotiated {@link Constants#CAP_DEFLATE} frames. */
+    public void setCompressionEnabled(boolean enabled) {
+        this.compressionEnabled = enabled;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /** False once the link failed, including a peer the heartbeat found silent. */
+    public boolean isConnected() {
+        return socket != null && socket.isConnected() && running;
+    }
+
+    /** Where the peer can be reached if it takes over hosting; null if the transport cannot tell. */
+    public String getHostingAddress() {
+        return socket.getHostingAddress();
+    }
+
+    public PeerWriter getWriter() {
+        return writer;
+    }
+
+    /** Retune the heartbeat, see {@link Heartbeat#configure}. */
+    void setHeartbeat(long intervalMs, int missLimit) {
+        heartbeat.configure(intervalMs, missLimit);
+    }
+
+    /** Smoothed round-trip time to the peer in ms, or -1 before the first sample. */
+    public long getRttMs() {
+        long rtt = heartbeat.getSmoothedRttMs();
+        return rtt >= 0 ? rtt : link.getSmoothedRttMs();
+    }
+
+    /** Mean deviation of the round-trip time in ms. */
+    public long getRttVarianceMs() {
+        return heartbeat.getRttVarianceMs();
+    }
+
+    public Heartbeat.Stats getHeartbeatStats() {
+        return heartbeat.getStats();
+    }
+
+    /**
+     * Stop accepting writes and let already-queued frames go out.
+     * Follow with {@link #awaitWrites} and {@link #cancel()}.
+     */
+    public void finishWrites() {
+        writer.finish();
+    }
+
+    /** Wait up to {@code timeoutMs} for queued frames to be written. */
+    public void awaitWrites(long timeoutMs) {
+        writer.awaitDrained(timeoutMs);
+    }
+
+    /**
+     * Shut down this connection thread.
+     */
+    public void cancel() {
+        running = false;
+        link.close();
+        heartbeat.stop();
+        writer.cancel();
+        closeSocket();  // unblocks the pending read
+        Future<?> f = readFuture;
+        if (f != null) {
+            f.cancel(true);
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing socket", e);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import android.util.Log;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dedicated writer for one peer connection, run on a pooled
+ * {@link ConnectionEngine} worker.
+ * Outgoing frames are queued in a bounded queue and written by this task, so
+ * a slow peer (e.g. at the edge of radio range) only backs up its own queue
+ * instead of stalling delivery to the rest of the group.
+ * What happens when the queue is full is decided by the {@link OverflowPolicy}.
+ *
+ * Frames queued within a short window (or until a byte threshold is reached)
+ * are coalesced into one buffered write and a single flush, so bursts of small
+ * chat / JOIN / LEAVE frames don't each pay the per-write RFCOMM overhead.
+ */
+public class PeerWriter implements Runnable {
+
+    private static final String TAG = "PeerWriter";
+
+    /** Marker queued by {@link #finish()} so the writer drains and then exits. */
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    /** What to do with a new frame when the peer's queue is full. */
+    public enum OverflowPolicy {
+        /** Block the caller until the writer makes room, or stops. */
+        BLOCK,
+        /** Discard the oldest queued frame to make room for the new one. */
+        DROP_OLDEST,
+        /** Treat the peer as dead and drop the connection. */
+        DISCONNECT
+    }
+
+    /** Point-in-time view of a writer's queue. */
+    public static final class Stats {
+        public final int queueDepth;
+        public final int peakQueueDepth;
+        public final int capacity;
+        public final long framesWritten;
+        public final long framesDropped;
+        public final long batchesWritten;
+        public final long bytesWritten;
+        public final int maxBatchFrames;
+
+        Stats(int queueDepth, int peakQueueDepth, int capacity, long framesWritten, long framesDropped,
+                long batchesWritten, long bytesWritten, int maxBatchFrames) {
+            this.queueDepth = queueDepth;
+            this.peakQueueDepth = peakQueueDepth;
+            this.capacity = capacity;
+            this.framesWritten = framesWritten;
+            this.framesDropped = framesDropped;
+            this.batchesWritten = batchesWritten;
+            this.bytesWritten = bytesWritten;
+            this.maxBatchFrames = maxBatchFrames;
+        }
+
+        /** Average number of frames per socket write. */
+        public double getAverageBatchFrames() {
+            return batchesWritten == 0 ? 0 : (double) framesWritten / batchesWritten;
+        }
+
+        /** Average number of bytes per socket write. */
+        public double getAverageBatchBytes() {
+            return batchesWritten == 0 ? 0 : (double) bytesWritten / batchesWritten;
+        }
+
+        @Override
+        public String toString() {
+            return "depth=" + queueDepth + "/" + capacity + " peak=" + peakQueueDepth
+                    + " written=" + framesWritten + " dropped=" + framesDropped
+                    + " batches=" + batchesWritten + " avgBatch=" + String.format("%.1f", getAverageBatchFrames())
+                    + " maxBatch=" + maxBatchFrames;
+        }
+    }
+
+    private final OutputStream outputStream;
+    private final PeerConnection connection;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile Future<?> future;
+    private final BlockingQueue<byte[]> queue;
+    private final int capacity;
+    private volatile OverflowPolicy overflowPolicy;
+    private volatile boolean running = true;
+    private volatile boolean accepting = true;
+
+    private volatile long batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(Constants.WRITE_BATCH_WINDOW_MS);
+    private volatile int batchMaxBytes = Constants.WRITE_BATCH_MAX_BYTES;
+
+    // Writer-thread only: frames gathered for the current write and their staging buffer
+    private final List<byte[]> batch = new ArrayList<>();
+    private byte[] batchBuffer = new byte[Constants.WRITE_BATCH_MAX_BYTES];
+
+    private volatile int peakQueueDepth = 0;
+    private volatile int maxBatchFrames = 0;
+    private final AtomicLong framesWritten = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong batchesWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    public PeerWriter(OutputStream outputStream, PeerConnection connection, int capacity,
+            OverflowPolicy overflowPolicy) {
+        this.outputStream = outputStream;
+        this.connection = connection;
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Start writing on a pooled worker.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the engine is exhausted
+     */
+    public void start(ConnectionEngine engine) {
+        future = engine.submit(ConnectionEngine.Role.WRITE, connection.getDeviceName(), this);
+    }
+
+    @Override
+    public void run() {
+        try {
+            writeLoop();
+        } finally {
+            batch.clear();
+            queue.clear();
+            finished.countDown();
+        }
+    }
+
+    private void writeLoop() {
+        while (running) {
+            byte[] first;
+            try {
+                first = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (first == END_OF_STREAM) {
+                break;
+            }
+            boolean endOfStream;
+            try {
+                endOfStream = gatherBatch(first);
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                writeBatch();
+            } catch (IOException e) {
+                if (running) {
+                    running = false;
+                    connection.onWriteFailed(e);
+                }
+                break;
+            }
+            if (endOfStream) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Collect {@code first} plus whatever else arrives within the batch window,
+     * stopping early once the byte threshold is reached.
+     *
+     * @return true if the end-of-stream marker was reached
+     */
+    private boolean gatherBatch(byte[] first) throws InterruptedException {
+        batch.clear();
+        batch.add(first);
+        int bytes = first.length;
+        long deadline = System.nanoTime() + batchWindowNanos;
+        while (bytes < batchMaxBytes) {
+            byte[] next = queue.poll();
+            if (next == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) {
+                    break;
+                }
+            }
+            if (next == END_OF_STREAM) {
+                return true;
+            }
+            batch.add(next);
+            bytes += next.length;
+        }
+        return false;
+    }
+
+    /** Write the gathered frames with one socket write and one flush. */
+    private void writeBatch() throws IOException {
+        int frames = batch.size();
+        int bytes;
+        if (frames == 1) {
+            byte[] frame = batch.get(0);
+            bytes = frame.length;
+            outputStream.write(frame);
+        } else {
+            bytes = 0;
+            for (int i = 0; i < frames; i++) {
+                bytes += batch.get(i).length;
+            }
+            if (batchBuffer.length < bytes) {
+                batchBuffer = new byte[bytes];
+            }
+            int offset = 0;
+            for (int i = 0; i < frames; i++) {
+                byte[] frame = batch.get(i);
+                System.arraycopy(frame, 0, batchBuffer, offset, frame.length);
+                offset += frame.length;
+            }
+            outputStream.write(batchBuffer, 0, bytes);
+        }
+        outputStream.flush();
+
+        framesWritten.addAndGet(frames);
+        bytesWritten.addAndGet(bytes);
+        batchesWritten.incrementAndGet();
+        if (frames > maxBatchFrames) {
+            maxBatchFrames = frames;
+        }
+        batch.clear();
+    }
+
+    /**
+     * Queue an encoded frame for this peer. Never blocks unless the policy is
+     * {@link OverflowPolicy#BLOCK}.
+     *
+     * @return false if the frame was not queued (writer stopped, or the peer was
+     *         disconnected because of overflow)
+     */
+    public boolean enqueue(byte[] frame) {
+        return enqueue(frame, true);
+    }
+
+    /**
+     * Queue a frame without ever waiting for room: under
+     * {@link OverflowPolicy#BLOCK} a full queue drops it instead. For link
+     * acks, heartbeats and resends, which a later one covers, so timer
+     * follow-ups never stall behind a slow peer.
+     */
+    public boolean offer(byte[] frame) {
+        return enqueue(frame, false);
+    }
+
+    private boolean enqueue(byte[] frame, boolean mayBlock) {
+        if (!running || !accepting) {
+            return false;
+        }
+        boolean queued = queue.offer(frame);
+        if (!queued) {
+            switch (overflowPolicy) {
+                case BLOCK:
+                    if (!mayBlock) {
+                        break;
+                    }
+                    try {
+                        // Recheck now and then: a writer that stopped never makes room
+                        while (running && !queued) {
+                            queued = queue.offer(frame, Constants.WRITE_BLOCK_RECHECK_MS, TimeUnit.MILLISECONDS);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    break;
+                case DROP_OLDEST:
+                    while (!queued && running) {
+                        if (queue.poll() != null) {
+                            framesDropped.incrementAndGet();
+                        }
+                        queued = queue.offer(frame);
+                    }
+                    break;
+                case DISCONNECT:
+                    Log.w(TAG, "Outbound queue full for " + connection.getDeviceName() + ", disconnecting");
+                    running = false;
+                    connection.onQueueOverflow(new IOException("Outbound queue overflow"));
+                    break;
+            }
+        }
+        if (!queued) {
+            framesDropped.incrementAndGet();
+            return false;
+        }
+        int depth = queue.size();
+        if (depth > peakQueueDepth) {
+            peakQueueDepth = depth;
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting frames and let the writer exit once everything already
+     * queued has been written. Does not block.
+     */
+    public void finish() {
+        accepting = false;
+        if (!queue.offer(END_OF_STREAM)) {
+            // Queue is full; nothing more can be flushed in time anyway
+            cancel();
+        }
+    }
+
+    /**
+     * Wait up to {@code timeoutMs} for the writer to drain after {@link #finish()}.
+     */
+    public void awaitDrained(long timeoutMs) {
+        if (future == null) {
+            return; // Never started
+        }
+        try {
+            finished.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop immediately, discarding anything still queued.
+     */
+    public void cancel() {
+        running = false;
+        Future<?> f = future;
+        if (f != null) {
+            f.cancel(true);
+        }
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Configure write coalescing. A window of 0 only merges frames that are
+     * already queued; it never waits for more.
+     */
+    public void setBatching(long windowMs, int maxBytes) {
+        this.batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.batchMaxBytes = maxBytes;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public Stats getStats() {
+        return new Stats(queue.size(), peakQueueDepth, capacity,
+                framesWritten.get(), framesDropped.get(),
+                batchesWritten.get(), bytesWritten.get(), maxBatchFrames);
+    }
+}
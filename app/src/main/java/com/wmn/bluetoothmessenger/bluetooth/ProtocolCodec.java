@@ -0,0 +1,505 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import com.wmn.bluetoothmessenger.model.ChatMessage;
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encoding of protocol messages (frame payloads).
+ *
+ * Every payload starts with a one-byte opcode ({@code Constants.OP_*}) followed
+ * by its fields. Integers are unsigned LEB128 varints; strings are a varint byte
+ * length followed by explicit UTF-8. Members are referred to by the numeric
+ * sender ID the host assigns at join time, so names travel once per session
+ * ({@link Constants#OP_JOIN} / {@link Constants#OP_SENDER}) rather than in
+ * every chat message.
+ *
+ * Layouts:
+ * <pre>
+ * AUTH        [op][version][hash:str][caps:varint]([previousId:varint])
+ * AUTH_OK     [op][version][caps:varint][yourId:varint][hostId:varint][token:bytes]
+ *             [successorId:varint][successorAddress:str][roster][former roster][history entry*]
+ * AUTH_FAIL   [op]
+ * RESUME      [op][version][senderId:varint][token:bytes][caps:varint][received:varlong]
+ * RESUME_OK   [op][version][caps:varint][received:varlong]
+ * CHAT        [op][senderId:varint][sequence:varlong][content:str]
+ * JOIN        [op][senderId:varint][name:str]
+ * SENDER      [op][senderId:varint][name:str]
+ * LEAVE       [op][senderId:varint]
+ * SESSION_END [op]
+ * HISTORY     [op]([senderId:varint][sequence:varlong][timestamp:varlong][ttlMs:varlong][content:str])*
+ * SUCCESSOR   [op][senderId:varint][address:str]
+ * FILE_OFFER  [op][transferId:varlong][name:str][mime:str][size:varlong][chunkSize:varint]
+ * FILE_CHUNK  [op][transferId:varlong][index:varint][data: rest of payload]
+ * FILE_ACK    [op][transferId:varlong][nextIndex:varint]
+ * FILE_RESUME [op][transferId:varlong][nextIndex:varint]
+ * FILE_CANCEL [op][transferId:varlong]
+ * DATA        [op][seq:varlong][session frame: rest of payload]
+ * DATA_DEFLATE [op][seq:varlong][compressed session frame: rest of payload]
+ * LINK_ACK    [op][cumulative:varlong][count:varint]([start:varlong][end:varlong])*
+ * PING        [op][nonce:varlong]
+ * PONG        [op][nonce:varlong]
+ * roster      [count:varint]([senderId:varint][name:str])*
+ * </pre>
+ * A transfer ID carries its originator's sender ID in the upper 32 bits
+ * (see {@link #transferSender}). AUTH carries a previous ID only when a member
+ * reconnects to a new host after a failover and asks to keep its ID.
+ * AUTH_OK is everything a joiner needs in one frame: besides the auth result
+ * it names the successor (0 for none; the host is never its own), the members
+ * present, the names of members who already left (so replayed chat still has
+ * a sender), and the first HISTORY frame's entries. Further history follows
+ * as HISTORY frames.
+ * RESUME and RESUME_OK carry how many session frames each side received on
+ * the dropped link, so only the rest is sent again. Bytes are a varint length
+ * followed by the raw bytes. DATA_DEFLATE carries the session frame in
+ * {@link FrameCompressor} layout, compressed once for every peer, with the
+ * per-link sequence number outside it.
+ */
+public final class ProtocolCodec {
+
+    private ProtocolCodec() {
+    } // Prevent instantiation
+
+    // ========== ENCODING ==========
+
+    public static byte[] encodeAuth(String passwordHash, int caps) {
+        return new Writer(Constants.OP_AUTH)
+                .writeByte(Constants.PROTOCOL_VERSION)
+                .writeString(passwordHash)
+                .writeVarint(caps)
+                .toByteArray();
+    }
+
+    /** AUTH from a member that was already in the session under {@code previousId}. */
+    public static byte[] encodeAuth(String passwordHash, int caps, int previousId) {
+        return new Writer(Constants.OP_AUTH)
+                .writeByte(Constants.PROTOCOL_VERSION)
+                .writeString(passwordHash)
+                .writeVarint(caps)
+                .writeVarint(previousId)
+                .toByteArray();
+    }
+
+    /**
+     * AUTH_OK with the session state a joiner starts from.
+     *
+     * @param successorId 0 if no successor is named
+     * @param members     sender ID to name for everyone present
+     * @param former      sender ID to name for members who left
+     * @param history     a HISTORY frame whose entries are carried along, or null
+     */
+    public static byte[] encodeAuthOk(int caps, int assignedSenderId, int hostSenderId, byte[] resumeToken,
+            int successorId, String successorAddress, Map<Integer, String> members,
+            Map<Integer, String> former, byte[] history) {
+        Writer writer = new Writer(Constants.OP_AUTH_OK)
+                .writeByte(Constants.PROTOCOL_VERSION)
+                .writeVarint(caps)
+                .writeVarint(assignedSenderId)
+                .writeVarint(hostSenderId)
+                .writeBytes(resumeToken)
+                .writeVarint(successorId)
+                .writeString(successorAddress != null ? successorAddress : "");
+        writeRoster(writer, members);
+        writeRoster(writer, former);
+        if (history != null) {
+            writer.writeRaw(history, 1, history.length - 1);
+        }
+        return writer.toByteArray();
+    }
+
+    private static void writeRoster(Writer writer, Map<Integer, String> roster) {
+        writer.writeVarint(roster.size());
+        for (Map.Entry<Integer, String> member : roster.entrySet()) {
+            writer.writeVarint(member.getKey()).writeString(member.getValue());
+        }
+    }
+
+    /** RESUME: {@code received} counts the session frames this member got on the dropped link. */
+    public static byte[] encodeResume(int senderId, byte[] resumeToken, int caps, long received) {
+        return new Writer(Constants.OP_RESUME)
+                .writeByte(Constants.PROTOCOL_VERSION)
+                .writeVarint(senderId)
+                .writeBytes(resumeToken)
+                .writeVarint(caps)
+                .writeVarlong(received)
+                .toByteArray();
+    }
+
+    public static byte[] encodeResumeOk(int caps, long received) {
+        return new Writer(Constants.OP_RESUME_OK)
+                .writeByte(Constants.PROTOCOL_VERSION)
+                .writeVarint(caps)
+                .writeVarlong(received)
+                .toByteArray();
+    }
+
+    public static byte[] encodeAuthFail() {
+        return new byte[]{Constants.OP_AUTH_FAIL};
+    }
+
+    /** CHAT [senderId][sequence][content]; the sequence counts up per sender from 0. */
+    public static byte[] encodeChat(int senderId, long sequence, String content) {
+        return new Writer(Constants.OP_CHAT)
+                .writeVarint(senderId)
+                .writeVarlong(sequence)
+                .writeString(content)
+                .toByteArray();
+    }
+
+    public static byte[] encodeJoin(int senderId, String name) {
+        return new Writer(Constants.OP_JOIN)
+                .writeVarint(senderId)
+                .writeString(name)
+                .toByteArray();
+    }
+
+    public static byte[] encodeSender(int senderId, String name) {
+        return new Writer(Constants.OP_SENDER)
+                .writeVarint(senderId)
+                .writeString(name)
+                .toByteArray();
+    }
+
+    public static byte[] encodeLeave(int senderId) {
+        return new Writer(Constants.OP_LEAVE)
+                .writeVarint(senderId)
+                .toByteArray();
+    }
+
+    public static byte[] encodeSessionEnd() {
+        return new byte[]{Constants.OP_SESSION_END};
+    }
+
+    /** SUCCESSOR: the member that takes over hosting, and the address to reach it at. */
+    public static byte[] encodeSuccessor(int senderId, String address) {
+        return new Writer(Constants.OP_SUCCESSOR)
+                .writeVarint(senderId)
+                .writeString(address)
+                .toByteArray();
+    }
+
+    /**
+     * Most content bytes one history entry carries: a HISTORY frame holding
+     * just that entry, its fields at their longest and the DATA envelope still
+     * fit in {@link Constants#MAX_FRAME_SIZE}.
+     */
+    private static final int HISTORY_CONTENT_MAX =
+            Constants.MAX_FRAME_SIZE - ProtocolCodec.DATA_OVERHEAD - 1 - (5 + 3 * 10 + 5);
+
+    /**
+     * HISTORY frames replaying {@code messages} (oldest first) to a member who
+     * just joined. Each entry keeps its sender, sequence and original timestamp
+     * plus the TTL it has left; entries are packed into frames of up to
+     * {@link Constants#HISTORY_FRAME_BYTES}. An entry larger than that goes in a
+     * frame of its own, its content cut to {@link #HISTORY_CONTENT_MAX} bytes,
+     * so every frame can be sent.
+     */
+    public static List<byte[]> encodeHistory(List<ChatMessage> messages) {
+        List<byte[]> frames = new ArrayList<>();
+        Writer writer = null;
+        for (ChatMessage message : messages) {
+            long ttl = message.getRemainingTtlMs();
+            if (ttl <= 0) {
+                continue;
+            }
+            byte[] content = truncateUtf8(message.getContent().getBytes(StandardCharsets.UTF_8),
+                    HISTORY_CONTENT_MAX);
+            if (writer != null && writer.size() + content.length > Constants.HISTORY_FRAME_BYTES) {
+                frames.add(writer.toByteArray());
+                writer = null;
+            }
+            if (writer == null) {
+                writer = new Writer(Constants.OP_HISTORY);
+            }
+            writer.writeVarint(message.getSenderId())
+                    .writeVarlong(message.getSequence())
+                    .writeVarlong(message.getTimestamp())
+                    .writeVarlong(ttl)
+                    .writeBytes(content);
+        }
+        if (writer != null) {
+            frames.add(writer.toByteArray());
+        }
+        return frames;
+    }
+
+    /** {@code utf8} cut to at most {@code max} bytes, never inside a character. */
+    private static byte[] truncateUtf8(byte[] utf8, int max) {
+        if (utf8.length <= max) {
+            return utf8;
+        }
+        int end = max;
+        while (end > 0 && (utf8[end] & 0xC0) == 0x80) {
+            end--;   // continuation byte: back up to the character's first byte
+        }
+        return Arrays.copyOf(utf8, end);
+    }
+
+    public static byte[] encodeFileOffer(long transferId, String name, String mime, long size, int chunkSize) {
+        return new Writer(Constants.OP_FILE_OFFER)
+                .writeVarlong(transferId)
+                .writeString(name)
+                .writeString(mime)
+                .writeVarlong(size)
+                .writeVarint(chunkSize)
+                .toByteArray();
+    }
+
+    public static byte[] encodeFileChunk(long transferId, int index, byte[] data, int offset, int length) {
+        return new Writer(Constants.OP_FILE_CHUNK)
+                .writeVarlong(transferId)
+                .writeVarint(index)
+                .writeRaw(data, offset, length)
+                .toByteArray();
+    }
+
+    public static byte[] encodeFileAck(long transferId, int nextIndex) {
+        return new Writer(Constants.OP_FILE_ACK)
+                .writeVarlong(transferId)
+                .writeVarint(nextIndex)
+                .toByteArray();
+    }
+
+    public static byte[] encodeFileResume(long transferId, int nextIndex) {
+        return new Writer(Constants.OP_FILE_RESUME)
+                .writeVarlong(transferId)
+                .writeVarint(nextIndex)
+                .toByteArray();
+    }
+
+    public static byte[] encodeFileCancel(long transferId) {
+        return new Writer(Constants.OP_FILE_CANCEL)
+                .writeVarlong(transferId)
+                .toByteArray();
+    }
+
+    /** Most bytes {@link #encodeData} adds to a session frame: the opcode and a full varlong. */
+    static final int DATA_OVERHEAD = 1 + 10;
+
+    /**
+     * DATA [seq][payload]: a session frame numbered for acknowledged delivery
+     * on one link; DATA_DEFLATE if {@code compressed}, with the frame already
+     * in {@link FrameCompressor} layout.
+     */
+    static byte[] encodeData(long seq, byte[] payload, boolean compressed) {
+        return new Writer(compressed ? Constants.OP_DATA_DEFLATE : Constants.OP_DATA)
+                .writeVarlong(seq)
+                .writeRaw(payload, 0, payload.length)
+                .toByteArray();
+    }
+
+    /** LINK_ACK: every seq below {@code cumulative}, plus each [start, end) range. */
+    static byte[] encodeLinkAck(long cumulative, List<long[]> ranges) {
+        Writer writer = new Writer(Constants.OP_LINK_ACK)
+                .writeVarlong(cumulative)
+                .writeVarint(ranges.size());
+        for (long[] range : ranges) {
+            writer.writeVarlong(range[0]).writeVarlong(range[1]);
+        }
+        return writer.toByteArray();
+    }
+
+    /** PING [nonce]: heartbeat probe, see {@link Heartbeat}. */
+    static byte[] encodePing(long nonce) {
+        return new Writer(Constants.OP_PING)
+                .writeVarlong(nonce)
+                .toByteArray();
+    }
+
+    /** PONG [nonce]: answer to the PING with the same nonce. */
+    static byte[] encodePong(long nonce) {
+        return new Writer(Constants.OP_PONG)
+                .writeVarlong(nonce)
+                .toByteArray();
+    }
+
+    /** Build a transfer ID from its originator and a per-originator counter. */
+    public static long transferId(int senderId, int sequence) {
+        return ((long) senderId << 32) | (sequence & 0xFFFFFFFFL);
+    }
+
+    /** Sender ID of the member that started a transfer. */
+    public static int transferSender(long transferId) {
+        return (int) (transferId >>> 32);
+    }
+
+    /** Whether {@code opcode} belongs to the file transfer protocol. */
+    public static boolean isFileOpcode(int opcode) {
+        return opcode >= Constants.OP_FILE_OFFER && opcode <= Constants.OP_FILE_CANCEL;
+    }
+
+    /** Whether {@code opcode} is a session frame, delivered with acknowledgement (see ReliableLink). */
+    public static boolean isReliableOpcode(int opcode) {
+        return opcode >= Constants.OP_CHAT && opcode <= Constants.OP_SUCCESSOR;
+    }
+
+    /** Opcode of a payload, or -1 if it is empty. */
+    public static int opcode(byte[] buffer, int offset, int length) {
+        return length > 0 ? buffer[offset] & 0xFF : -1;
+    }
+
+    // ========== WRITER ==========
+
+    /** Small growable buffer for building one payload. */
+    static final class Writer {
+
+        private byte[] buf = new byte[32];
+        private int size = 0;
+
+        Writer(int opcode) {
+            writeByte(opcode);
+        }
+
+        Writer writeByte(int value) {
+            ensure(1);
+            buf[size++] = (byte) value;
+            return this;
+        }
+
+        Writer writeVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buf[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (byte) value;
+            return this;
+        }
+
+        Writer writeVarlong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (byte) value;
+            return this;
+        }
+
+        Writer writeString(String value) {
+            return writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /** Length-prefixed byte field. */
+        Writer writeBytes(byte[] value) {
+            writeVarint(value.length);
+            return writeRaw(value, 0, value.length);
+        }
+
+        /** Bytes with no length prefix (for a payload's trailing field). */
+        Writer writeRaw(byte[] value, int offset, int length) {
+            ensure(length);
+            System.arraycopy(value, offset, buf, size, length);
+            size += length;
+            return this;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+            }
+        }
+    }
+
+    // ========== READER ==========
+
+    /**
+     * Sequential reader over one payload. Positioned just after the opcode.
+     * Throws {@link ProtocolException} on truncated or malformed fields.
+     */
+    public static final class Reader {
+
+        private final byte[] buf;
+        private final int end;
+        private int pos;
+
+        public Reader(byte[] buffer, int offset, int length) {
+            this.buf = buffer;
+            this.pos = offset + 1; // skip opcode
+            this.end = offset + length;
+        }
+
+        public int readByte() throws ProtocolException {
+            if (pos >= end) {
+                throw new ProtocolException("Truncated payload");
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        public int readVarint() throws ProtocolException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new ProtocolException("Malformed varint");
+        }
+
+        public long readVarlong() throws ProtocolException {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new ProtocolException("Malformed varint");
+        }
+
+        public String readString() throws ProtocolException {
+            int length = readLength();
+            String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+        }
+
+        /** Length-prefixed byte field. */
+        public byte[] readBytes() throws ProtocolException {
+            int length = readLength();
+            byte[] value = Arrays.copyOfRange(buf, pos, pos + length);
+            pos += length;
+            return value;
+        }
+
+        /** Everything left in the payload. */
+        public byte[] readRemaining() {
+            byte[] value = Arrays.copyOfRange(buf, pos, end);
+            pos = end;
+            return value;
+        }
+
+        public int position() {
+            return pos;
+        }
+
+        public boolean hasRemaining() {
+            return pos < end;
+        }
+
+        private int readLength() throws ProtocolException {
+            int length = readVarint();
+            if (length < 0 || length > end - pos) {
+                throw new ProtocolException("Invalid field length: " + length);
+            }
+            return length;
+        }
+    }
+}
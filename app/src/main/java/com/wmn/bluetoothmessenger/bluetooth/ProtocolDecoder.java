@@ -0,0 +1,107 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import android.util.Log;
+
+import com.wmn.bluetoothmessenger.model.ChatMessage;
+import com.wmn.bluetoothmessenger.model.ProtocolEvent;
+import com.wmn.bluetoothmessenger.model.SenderTable;
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns frame payloads (see {@link ProtocolCodec}) into typed {@link ProtocolEvent}s.
+ * Runs on the connection's reader thread so parsing and ChatMessage creation
+ * never happen on the UI thread. Sender announcements update the session's
+ * {@link SenderTable} here as well, before any message that refers to them
+ * reaches the UI.
+ */
+public final class ProtocolDecoder {
+
+    private static final String TAG = "ProtocolDecoder";
+
+    private ProtocolDecoder() {
+    } // Prevent instantiation
+
+    /**
+     * Decode one frame payload.
+     *
+     * @param duplicates chat already delivered; replayed history is checked against it
+     * @return the event, or null if the payload carries nothing for the UI
+     *         (sender mapping, handshake, unknown or malformed message)
+     */
+    public static ProtocolEvent decode(byte[] buffer, int offset, int length, SenderTable senders,
+            DuplicateFilter duplicates) {
+        ProtocolCodec.Reader reader = new ProtocolCodec.Reader(buffer, offset, length);
+        try {
+            switch (ProtocolCodec.opcode(buffer, offset, length)) {
+                case Constants.OP_CHAT: {
+                    int senderId = reader.readVarint();
+                    long sequence = reader.readVarlong(); // duplicates were dropped by the connection
+                    String content = reader.readString();
+                    return ProtocolEvent.chat(ChatMessage.createMessage(senderId, sequence, content, false),
+                            senders.nameOf(senderId));
+                }
+                case Constants.OP_HISTORY: {
+                    List<ChatMessage> messages = decodeHistory(reader, duplicates);
+                    return messages.isEmpty() ? null : ProtocolEvent.history(messages);
+                }
+                case Constants.OP_JOIN: {
+                    int senderId = reader.readVarint();
+                    String name = reader.readString();
+                    senders.put(senderId, name);
+                    return ProtocolEvent.join(senderId, name);
+                }
+                case Constants.OP_SENDER:
+                    senders.put(reader.readVarint(), reader.readString());
+                    return null;
+                case Constants.OP_LEAVE: {
+                    int senderId = reader.readVarint();
+                    return ProtocolEvent.leave(senderId, senders.nameOf(senderId));
+                }
+                case Constants.OP_SESSION_END:
+                    return ProtocolEvent.sessionEnd();
+                default:
+                    return null;
+            }
+        } catch (ProtocolException e) {
+            Log.w(TAG, "Dropping malformed message", e);
+            return null;
+        }
+    }
+
+    /**
+     * History entries from the reader's position to the end of the payload
+     * (a HISTORY frame, or the tail of AUTH_OK).
+     */
+    static List<ChatMessage> decodeHistory(ProtocolCodec.Reader reader, DuplicateFilter duplicates)
+            throws ProtocolException {
+        // Replayed chat may also have arrived live; keep the first copy
+        List<ChatMessage> messages = new ArrayList<>();
+        while (reader.hasRemaining()) {
+            int senderId = reader.readVarint();
+            long sequence = reader.readVarlong();
+            long timestamp = reader.readVarlong();
+            long ttl = reader.readVarlong();
+            String content = reader.readString();
+            if (duplicates.accept(senderId, sequence)) {
+                messages.add(ChatMessage.restoreMessage(senderId, sequence, content, timestamp, ttl));
+            }
+        }
+        return messages;
+    }
+
+    /** A roster in AUTH_OK: sender ID to name, in the order sent. */
+    static Map<Integer, String> decodeRoster(ProtocolCodec.Reader reader) throws ProtocolException {
+        int count = reader.readVarint();
+        Map<Integer, String> roster = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            roster.put(reader.readVarint(), reader.readString());
+        }
+        return roster;
+    }
+}
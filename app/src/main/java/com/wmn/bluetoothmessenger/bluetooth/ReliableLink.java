@@ -0,0 +1,451 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+import com.wmn.bluetoothmessenger.util.TimerService;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Acknowledged delivery for one peer link (selective repeat).
+ *
+ * Session frames (chat, join, sender, leave, session end) go out wrapped as
+ * {@code DATA [seq][payload]} (or {@code DATA_DEFLATE} around a payload the
+ * caller compressed once for all peers) and stay in a bounded retransmit buffer until
+ * the peer acknowledges them. The peer answers with
+ * {@code LINK_ACK [cumulative][ranges]}: everything below {@code cumulative}
+ * arrived, plus up to {@link Constants#SACK_MAX_RANGES} ranges received past a
+ * gap, so only the frames actually missing are sent again. Acks are delayed
+ * briefly and cover several frames at a time. Frames received past a gap are
+ * held until it fills, so session frames are delivered in the order sent.
+ * Frames sent while {@link Constants#RELIABLE_WINDOW} are unacknowledged wait
+ * in a backlog and are numbered as acks make room.
+ *
+ * The retransmission timeout follows the measured round trip (Jacobson /
+ * Karels smoothing, Karn's rule for retransmitted frames, exponential backoff)
+ * and is timed by the shared {@link TimerService}; its timeouts run on the
+ * connection's executor, never on the timer thread. A frame that goes
+ * unacknowledged through {@link Constants#RELIABLE_MAX_RETRANSMITS} timeouts,
+ * or a full backlog, means the peer is gone and fails the link; whatever is
+ * still unacknowledged or waiting at that point can be taken with
+ * {@link #takeUnacknowledged(long)} and resent on a new link, leaving out what
+ * the peer reports it received.
+ *
+ * Handshake and file frames are not wrapped: the handshake precedes the link
+ * and file transfers run their own acknowledgements.
+ */
+final class ReliableLink {
+
+    private static final String TAG = "ReliableLink";
+
+    /** Where the link sends its frames and reports a dead peer; implemented by the connection. */
+    interface Output {
+        /**
+         * Queue an already wrapped payload (DATA or LINK_ACK) for the peer, or
+         * drop it rather than wait for room. Called under the link's lock, so
+         * it must never block.
+         */
+        boolean offerRaw(byte[] payload);
+
+        void onLinkFailed(IOException e);
+    }
+
+    /** Takes session frames in sequence order; implemented by the connection. */
+    interface Delivery {
+        void deliver(byte[] buffer, int offset, int length);
+    }
+
+    /** A session frame waiting for a sequence number. */
+    private static final class Queued {
+        final byte[] payload;
+        final byte[] compressed;  // may be null
+
+        Queued(byte[] payload, byte[] compressed) {
+            this.payload = payload;
+            this.compressed = compressed;
+        }
+    }
+
+    /** A DATA frame awaiting its ack. */
+    private static final class Pending {
+        final long seq;
+        final byte[] data;        // the wrapped DATA payload
+        final byte[] payload;     // the original session frame
+        long sentAt;
+        int transmissions = 1;
+        boolean sacked;
+
+        Pending(long seq, byte[] data, byte[] payload, long sentAt) {
+            this.seq = seq;
+            this.data = data;
+            this.payload = payload;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private final Output output;
+    private final String peerName;
+    private final Executor executor;
+    private final TimerService.Timeout retransmitTimeout;
+    private final TimerService.Timeout ackTimeout;
+
+    // ── Sender side (guarded by this) ──────────────────────────────────────────
+    private long nextSeq = 0;
+    private final ArrayDeque<Pending> unacked = new ArrayDeque<>();
+    private final ArrayDeque<Queued> backlog = new ArrayDeque<>();  // not yet numbered
+    private long srtt = -1;          // smoothed RTT, ms; -1 until the first sample
+    private long rttvar = 0;
+    private long rto = Constants.RTO_INITIAL_MS;
+    private long retransmitted = 0;
+    private boolean failed = false;
+    private boolean taken = false;   // takeUnacknowledged handed everything over
+
+    // ── Receiver side (guarded by this) ────────────────────────────────────────
+    private long cumulative = 0;     // next sequence expected in order
+    private long highestReceived = -1;
+    private final byte[][] held = new byte[Constants.RELIABLE_WINDOW][];  // past a gap, at seq % window
+    private int unackedReceived = 0;
+
+    /** @param executor where timeouts and failure reports run, off the timer thread */
+    ReliableLink(Output output, String peerName, Executor executor) {
+        this.output = output;
+        this.peerName = peerName;
+        this.executor = executor;
+        TimerService timer = TimerService.get();
+        this.retransmitTimeout = timer.newTimeout(() -> executor.execute(this::onRetransmitTimeout));
+        this.ackTimeout = timer.newTimeout(() -> executor.execute(this::sendAck));
+    }
+
+    // ========== SENDING ==========
+
+    /**
+     * Number, buffer and send a session frame, or hold it in the backlog while
+     * the window is full. Never waits for the peer's queue: a frame it turns
+     * away is numbered all the same and goes out at the next retransmit
+     * timeout, so the window and the backlog are what hold senders back.
+     *
+     * Once the link has failed, frames still go to the backlog until
+     * {@link #takeUnacknowledged} hands it over, so none sent while the
+     * connection is being torn down is lost to a resume.
+     *
+     * @param compressed {@code payload} in {@link FrameCompressor} layout, sent
+     *                   instead of it as DATA_DEFLATE; null to send it as is
+     * @return false if the link was handed over, the frame is too large to
+     *         send, or the backlog is full (the link is failed in that case)
+     */
+    boolean send(byte[] payload, byte[] compressed) {
+        synchronized (this) {
+            if (taken) {
+                return false;
+            }
+            if (payload.length + ProtocolCodec.DATA_OVERHEAD > Constants.MAX_FRAME_SIZE) {
+                // Never numbered, so it is not resent until the link dies
+                Log.w(TAG, "Session frame too large for " + peerName + ": " + payload.length + " bytes");
+                return false;
+            }
+            if (failed || unacked.size() >= Constants.RELIABLE_WINDOW || !backlog.isEmpty()) {
+                if (backlog.size() >= Constants.RELIABLE_BACKLOG) {
+                    if (!failed) {
+                        fail(new IOException("Send backlog full for " + peerName));
+                    }
+                    return false;
+                }
+                backlog.addLast(new Queued(payload, compressed));
+                return true;
+            }
+            // Queue under the lock so frames leave in sequence order
+            output.offerRaw(number(payload, compressed, SystemClock.elapsedRealtime()));
+            return true;
+        }
+    }
+
+    /** Wrap a frame with the next sequence number and hold it for its ack. Caller holds the lock. */
+    private byte[] number(byte[] payload, byte[] compressed, long now) {
+        long seq = nextSeq++;
+        byte[] data = compressed != null
+                ? ProtocolCodec.encodeData(seq, compressed, true)
+                : ProtocolCodec.encodeData(seq, payload, false);
+        unacked.addLast(new Pending(seq, data, payload, now));
+        if (unacked.size() == 1) {
+            retransmitTimeout.reschedule(rto);
+        }
+        return data;
+    }
+
+    /** Handle {@code LINK_ACK [cumulative][count]([start][end])*}. */
+    void onAck(byte[] buffer, int offset, int length) throws ProtocolException {
+        ProtocolCodec.Reader reader = new ProtocolCodec.Reader(buffer, offset, length);
+        long ackedBelow = reader.readVarlong();
+        int ranges = reader.readVarint();
+        long[] starts = new long[ranges];
+        long[] ends = new long[ranges];
+        for (int i = 0; i < ranges; i++) {
+            starts[i] = reader.readVarlong();
+            ends[i] = reader.readVarlong();
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            // The newest frame this ack covers for the first time is the one that
+            // prompted it; older ones may have waited behind a gap
+            Pending newest = null;
+            while (!unacked.isEmpty() && unacked.peekFirst().seq < ackedBelow) {
+                Pending acked = unacked.pollFirst();
+                if (!acked.sacked) {
+                    newest = acked;
+                }
+            }
+            for (Pending pending : unacked) {
+                for (int i = 0; i < ranges; i++) {
+                    if (pending.seq >= starts[i] && pending.seq < ends[i] && !pending.sacked) {
+                        pending.sacked = true;
+                        newest = pending;
+                    }
+                }
+            }
+            // Karn: a resent frame's ack could belong to either transmission
+            if (newest != null && newest.transmissions == 1) {
+                updateRtt(now - newest.sentAt);
+            }
+            // Send what waited for room; one the queue turns away goes at the next timeout
+            while (unacked.size() < Constants.RELIABLE_WINDOW && !backlog.isEmpty()) {
+                Queued queued = backlog.pollFirst();
+                output.offerRaw(number(queued.payload, queued.compressed, now));
+            }
+            if (unacked.isEmpty()) {
+                retransmitTimeout.cancel();
+            } else {
+                armRetransmit(now);
+            }
+        }
+    }
+
+    /** Timer callback: resend the frames whose timeout passed, with backoff. */
+    private void onRetransmitTimeout() {
+        List<byte[]> resend = new ArrayList<>();
+        synchronized (this) {
+            if (failed || unacked.isEmpty()) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            for (Pending pending : unacked) {
+                if (pending.sacked || now - pending.sentAt < rto) {
+                    continue;
+                }
+                if (pending.transmissions > Constants.RELIABLE_MAX_RETRANSMITS) {
+                    fail(new IOException(peerName + " stopped acknowledging (seq " + pending.seq + ")"));
+                    return;
+                }
+                pending.transmissions++;
+                pending.sentAt = now;
+                resend.add(pending.data);
+                if (resend.size() >= Constants.RETRANSMIT_BURST) {
+                    break;
+                }
+            }
+            if (!resend.isEmpty()) {
+                retransmitted += resend.size();
+                rto = Math.min(rto * 2, Constants.RTO_MAX_MS);
+            }
+            armRetransmit(now);
+        }
+        // A resend that finds the queue full waits for the next timeout
+        for (byte[] data : resend) {
+            output.offerRaw(data);
+        }
+    }
+
+    /** Re-arm for the oldest frame that still needs an ack. Caller holds the lock. */
+    private void armRetransmit(long now) {
+        for (Pending pending : unacked) {
+            if (!pending.sacked) {
+                retransmitTimeout.reschedule(Math.max(0, pending.sentAt + rto - now));
+                return;
+            }
+        }
+        retransmitTimeout.cancel();
+    }
+
+    /** RFC 6298 smoothing; the timeout is clamped to the configured range. */
+    private void updateRtt(long sample) {
+        if (srtt < 0) {
+            srtt = sample;
+            rttvar = sample / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - sample)) / 4;
+            srtt = (7 * srtt + sample) / 8;
+        }
+        rto = Math.max(Constants.RTO_MIN_MS, Math.min(Constants.RTO_MAX_MS, srtt + 4 * rttvar));
+    }
+
+    /** Caller holds the lock. */
+    private void fail(IOException e) {
+        close();
+        Log.w(TAG, e.getMessage() + "; " + unacked.size() + " frames unacknowledged");
+        // Report outside this call stack: the connection tears itself down from here
+        executor.execute(() -> output.onLinkFailed(e));
+    }
+
+    // ========== RECEIVING ==========
+
+    /**
+     * Record an incoming {@code DATA [seq][payload]} and schedule its ack. The
+     * payload, and any held frames it makes contiguous, go to {@code delivery}
+     * in sequence order; one past a gap is copied and held until the gap fills.
+     * Only the connection's reader calls this, so delivery order is the
+     * sequence order.
+     */
+    void onData(long seq, byte[] buffer, int offset, int length, Delivery delivery) {
+        boolean fresh;
+        boolean inOrder = false;
+        boolean ackNow;
+        List<byte[]> ready = null;
+        synchronized (this) {
+            if (seq < cumulative || seq >= cumulative + Constants.RELIABLE_WINDOW) {
+                fresh = false;   // already delivered, or a sender beyond our window: ack what we have
+            } else if (seq > cumulative) {
+                int slot = (int) (seq % Constants.RELIABLE_WINDOW);
+                fresh = held[slot] == null;
+                if (fresh) {
+                    held[slot] = Arrays.copyOfRange(buffer, offset, offset + length);
+                    highestReceived = Math.max(highestReceived, seq);
+                }
+            } else {
+                fresh = true;
+                inOrder = true;
+                highestReceived = Math.max(highestReceived, seq);
+                cumulative++;
+                // Release everything now contiguous
+                while (isReceived(cumulative)) {
+                    int slot = (int) (cumulative % Constants.RELIABLE_WINDOW);
+                    if (ready == null) {
+                        ready = new ArrayList<>();
+                    }
+                    ready.add(held[slot]);
+                    held[slot] = null;
+                    cumulative++;
+                }
+            }
+            unackedReceived++;
+            // A resend or a gap means the sender is waiting on us: answer at once
+            ackNow = !fresh || cumulative <= highestReceived
+                    || unackedReceived >= Constants.ACK_EVERY_FRAMES;
+            if (!ackNow && !ackTimeout.isPending()) {
+                ackTimeout.reschedule(Constants.ACK_DELAY_MS);
+            }
+        }
+        if (ackNow) {
+            sendAck();
+        }
+        if (inOrder) {
+            delivery.deliver(buffer, offset, length);
+            if (ready != null) {
+                for (byte[] frame : ready) {
+                    delivery.deliver(frame, 0, frame.length);
+                }
+            }
+        }
+    }
+
+    /** Whether a frame past {@code cumulative} is held. Caller holds the lock. */
+    private boolean isReceived(long seq) {
+        if (seq > highestReceived) {
+            return false;
+        }
+        return held[(int) (seq % Constants.RELIABLE_WINDOW)] != null;
+    }
+
+    private void sendAck() {
+        byte[] ack;
+        synchronized (this) {
+            if (failed) {
+                return;
+            }
+            ackTimeout.cancel();
+            unackedReceived = 0;
+            // Ranges received past the first gap, lowest first
+            List<long[]> ranges = new ArrayList<>();
+            long seq = cumulative;
+            while (seq <= highestReceived && ranges.size() < Constants.SACK_MAX_RANGES) {
+                while (seq <= highestReceived && !isReceived(seq)) {
+                    seq++;
+                }
+                long start = seq;
+                while (seq <= highestReceived && isReceived(seq)) {
+                    seq++;
+                }
+                if (seq > start) {
+                    ranges.add(new long[]{start, seq});
+                }
+            }
+            ack = ProtocolCodec.encodeLinkAck(cumulative, ranges);
+        }
+        output.offerRaw(ack);
+    }
+
+    // ========== LIFECYCLE ==========
+
+    /** Stop the timers and refuse further frames; unacknowledged ones are kept. */
+    synchronized void close() {
+        failed = true;
+        retransmitTimeout.cancel();
+        ackTimeout.cancel();
+    }
+
+    /**
+     * Close the link and hand back every session frame the peer has not
+     * taken in order, oldest first, so it can be sent again over a new link:
+     * the unacknowledged ones, then the backlog. Frames below
+     * {@code peerReceived} (the peer's {@link #getReceivedCount()} on its side
+     * of this link) were delivered and are left out; ones acknowledged
+     * selectively were only held past a gap, so they are kept.
+     */
+    synchronized List<byte[]> takeUnacknowledged(long peerReceived) {
+        close();
+        taken = true;
+        List<byte[]> frames = new ArrayList<>(unacked.size() + backlog.size());
+        Iterator<Pending> it = unacked.iterator();
+        while (it.hasNext()) {
+            Pending pending = it.next();
+            if (pending.seq >= peerReceived) {
+                frames.add(pending.payload);
+            }
+            it.remove();
+        }
+        for (Queued queued : backlog) {
+            frames.add(queued.payload);
+        }
+        backlog.clear();
+        return frames;
+    }
+
+    /** Session frames delivered in order on this link so far. */
+    synchronized long getReceivedCount() {
+        return cumulative;
+    }
+
+    synchronized long getSmoothedRttMs() {
+        return srtt;
+    }
+
+    synchronized long getRetransmitTimeoutMs() {
+        return rto;
+    }
+
+    synchronized long getRetransmittedCount() {
+        return retransmitted;
+    }
+
+    synchronized int getUnacknowledgedCount() {
+        return unacked.size();
+    }
+}
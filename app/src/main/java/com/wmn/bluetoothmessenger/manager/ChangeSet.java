@@ -0,0 +1,94 @@
+package com.wmn.bluetoothmessenger.manager;
+
+import com.wmn.bluetoothmessenger.model.ChatMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An ordered list of range inserts and removes made to {@link MessageManager}'s
+ * message list. Applying the operations in order to a mirror of the list (the
+ * chat adapter's) keeps it identical, and each one maps directly onto
+ * {@code notifyItemRangeInserted} / {@code notifyItemRangeRemoved}.
+ *
+ * Adjacent operations are coalesced while the set is built: items appended
+ * one after another become one insert, and runs removed at the same position
+ * become one remove.
+ */
+public class ChangeSet {
+
+    public static final int INSERT = 0;
+    public static final int REMOVE = 1;
+
+    /** One range operation, in the list's coordinates at the time it is applied. */
+    public static final class Op {
+
+        private final int type;
+        private final int position;
+        private int count;
+        private final List<ChatMessage> items;   // INSERT only
+
+        private Op(int type, int position, int count, List<ChatMessage> items) {
+            this.type = type;
+            this.position = position;
+            this.count = count;
+            this.items = items;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /** The inserted messages, in order; empty for removes. */
+        public List<ChatMessage> getItems() {
+            return items != null ? Collections.unmodifiableList(items) : Collections.emptyList();
+        }
+    }
+
+    private final List<Op> ops = new ArrayList<>();
+
+    void insert(int position, ChatMessage message) {
+        Op last = lastOp();
+        if (last != null && last.type == INSERT && position == last.position + last.count) {
+            last.items.add(message);
+            last.count++;
+            return;
+        }
+        List<ChatMessage> items = new ArrayList<>();
+        items.add(message);
+        ops.add(new Op(INSERT, position, 1, items));
+    }
+
+    void remove(int position, int count) {
+        if (count <= 0) {
+            return;
+        }
+        Op last = lastOp();
+        if (last != null && last.type == REMOVE && position == last.position) {
+            last.count += count;
+            return;
+        }
+        ops.add(new Op(REMOVE, position, count, null));
+    }
+
+    public List<Op> getOps() {
+        return Collections.unmodifiableList(ops);
+    }
+
+    public boolean isEmpty() {
+        return ops.isEmpty();
+    }
+
+    private Op lastOp() {
+        return ops.isEmpty() ? null : ops.get(ops.size() - 1);
+    }
+}
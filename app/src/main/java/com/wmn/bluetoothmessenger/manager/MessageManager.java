@@ -1,32 +1,214 @@
 package com.wmn.bluetoothmessenger.manager;
 
+import android.os.SystemClock;
+
 import com.wmn.bluetoothmessenger.model.ChatMessage;
 import com.wmn.bluetoothmessenger.util.Constants;
+import com.wmn.bluetoothmessenger.util.TimerService;
 
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Manages in-memory message storage with Time-To-Live (TTL) support.
  * Messages automatically expire and are removed after 1 minute.
  * No persistent storage — all messages are ephemeral.
+ *
+ * Expiry is driven by deadlines rather than polling. Every chat message gets
+ * the same TTL from the moment it is created, so in arrival order their
+ * deadlines do not decrease (beyond the few ms between decoding and adding)
+ * and a FIFO deque is already sorted; file messages, whose deadline moves with
+ * their transfer's progress, are few and kept aside. A single
+ * {@link TimerService} timeout is armed for the earliest deadline, so nothing runs while no message is
+ * waiting to expire and each message goes within milliseconds of its TTL.
+ * Deadlines use {@link SystemClock#elapsedRealtime()}, which keeps counting
+ * in deep sleep and does not jump with wall-clock changes.
+ *
+ * Messages are held in a bounded {@link MessageStore}; when a flood fills its
+ * count or byte budget the oldest messages are dropped early and reported as
+ * removes like any expiry.
+ *
+ * All state is owned by one writer thread, which also runs the expiry
+ * timeout (the shared timer only keeps time for it). Callers on any thread only
+ * enqueue commands on a lock-free queue; the writer drains whatever has
+ * accumulated in one pass, applies it, and calls the listener once per pass
+ * without holding any lock. Readers get the immutable {@link Snapshot}
+ * published after each pass, so nothing contends on a shared monitor.
+ * Publishing does not copy the store: snapshots are windows onto one
+ * append-only array that the writer replays each pass's changes into.
  */
 public class MessageManager {
 
-    private final List<ChatMessage> messages = new ArrayList<>();
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-    private MessageListener listener;
+    /** The message list as of the writer's last pass; never modified. */
+    public static final class Snapshot {
+        private final List<ChatMessage> messages;
+        private final MessageStore.Stats stats;
+
+        Snapshot(List<ChatMessage> messages, MessageStore.Stats stats) {
+            this.messages = messages;
+            this.stats = stats;
+        }
+
+        public List<ChatMessage> getMessages() {
+            return messages;
+        }
+
+        public MessageStore.Stats getStats() {
+            return stats;
+        }
+    }
+
+    /**
+     * The rows as published, shared by every snapshot. A snapshot is a window
+     * {@code [from, to)} of one array; the writer only ever writes past the
+     * end of every window handed out, so appends and removes from the front
+     * (expiry, eviction) cost nothing per snapshot. Any other remove, or a
+     * full array, moves the live rows to a new one.
+     */
+    private static final class PublishedRows {
+        private ChatMessage[] rows = new ChatMessage[16];
+        private int from = 0;
+        private int to = 0;        // no published window reaches past this
+
+        /** Replay a pass's changes, in order. */
+        void apply(ChangeSet changes) {
+            for (ChangeSet.Op op : changes.getOps()) {
+                if (op.getType() == ChangeSet.INSERT) {
+                    append(op.getItems());
+                } else if (op.getPosition() == 0) {
+                    from += op.getCount();
+                } else {
+                    remove(op.getPosition(), op.getCount());
+                }
+            }
+        }
+
+        /** The store only ever appends. */
+        private void append(List<ChatMessage> items) {
+            int count = items.size();
+            if (to + count > rows.length) {
+                moveTo(new ChatMessage[Math.max(16, 2 * (to - from + count))], to - from);
+            }
+            for (int i = 0; i < count; i++) {
+                rows[to++] = items.get(i);
+            }
+        }
+
+        private void remove(int position, int count) {
+            ChatMessage[] moved = new ChatMessage[rows.length];
+            int size = to - from;
+            System.arraycopy(rows, from, moved, 0, position);
+            System.arraycopy(rows, from + position + count, moved, position, size - position - count);
+            rows = moved;
+            from = 0;
+            to = size - count;
+        }
+
+        private void moveTo(ChatMessage[] moved, int size) {
+            System.arraycopy(rows, from, moved, 0, size);
+            rows = moved;
+            from = 0;
+            to = size;
+        }
+
+        List<ChatMessage> window() {
+            return new Window(rows, from, to);
+        }
+    }
+
+    /** Read-only view of published rows; they never change underneath it. */
+    private static final class Window extends AbstractList<ChatMessage> implements RandomAccess {
+        private final ChatMessage[] rows;
+        private final int from;
+        private final int size;
+
+        Window(ChatMessage[] rows, int from, int to) {
+            this.rows = rows;
+            this.from = from;
+            this.size = to - from;
+        }
+
+        @Override
+        public ChatMessage get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(index + " of " + size);
+            }
+            return rows[from + index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Object[] toArray() {
+            return Arrays.copyOfRange(rows, from, from + size, Object[].class);
+        }
+    }
+
+    /** A change queued by any thread and applied on the writer thread. */
+    private interface Command {
+        void apply(ChangeSet changes);
+    }
+
+    // ── Writer-thread state ────────────────────────────────────────────────────
+    private final MessageStore messages;
+    /** Expiring chat messages by deadline; that is arrival order except for replayed history. */
+    private final ArrayDeque<ChatMessage> expiryQueue = new ArrayDeque<>();
+    /** File messages; their deadlines move, so they are checked on every wake-up. */
+    private final List<ChatMessage> transferMessages = new ArrayList<>();
+    private final PublishedRows published = new PublishedRows();
+    private long scheduledDeadline = Long.MAX_VALUE;
+    private boolean started = false;
+    // ──────────────────────────────────────────────────────────────────────────
+
+    /** Runs the writer passes and the expiry timeout, both on its one thread. */
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "message-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final TimerService.Timeout expiryTimeout = TimerService.get().newTimeout(() -> execute(this::expireDue));
+    private volatile boolean shutDown = false;
+    private final ConcurrentLinkedQueue<Command> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private volatile Snapshot snapshot;
+    private volatile MessageListener listener;
 
     public interface MessageListener {
-        void onMessageAdded(ChatMessage message, int position);
+        /**
+         * The message list changed. Called on the writer thread, outside any
+         * lock, in the order the changes happened, so replaying every set
+         * keeps a mirror of the list exact.
+         */
+        void onMessagesChanged(ChangeSet changes);
+    }
 
-        void onMessageRemoved(int position);
+    public MessageManager() {
+        this(Constants.MESSAGE_STORE_CAPACITY, Constants.MESSAGE_STORE_BYTE_BUDGET);
+    }
 
-        void onMessagesChanged();
+    /**
+     * @param capacity   most messages kept at once
+     * @param byteBudget most estimated heap bytes kept at once
+     */
+    public MessageManager(int capacity, long byteBudget) {
+        this.messages = new MessageStore(capacity, byteBudget);
+        this.snapshot = new Snapshot(Collections.<ChatMessage>emptyList(), messages.getStats());
     }
 
     public void setListener(MessageListener listener) {
@@ -34,81 +216,248 @@ public class MessageManager {
     }
 
     /**
-     * Start the TTL cleanup scheduler.
-     * Checks every 5 seconds for expired messages.
+     * Start expiring messages. Wakes up only when the earliest message is due.
      */
     public void startTTLCleanup() {
-        scheduler.scheduleAtFixedRate(() -> {
-            synchronized (messages) {
-                boolean changed = false;
-                Iterator<ChatMessage> it = messages.iterator();
-                int index = 0;
-                while (it.hasNext()) {
-                    ChatMessage msg = it.next();
-                    if (msg.getType() == ChatMessage.TYPE_NORMAL && msg.isExpired()) {
-                        it.remove();
-                        if (listener != null) {
-                            final int pos = index;
-                            listener.onMessageRemoved(pos);
-                        }
-                        changed = true;
-                    } else {
-                        index++;
-                    }
-                }
-                if (changed && listener != null) {
-                    listener.onMessagesChanged();
-                }
-            }
-        }, Constants.TTL_CHECK_INTERVAL_MS, Constants.TTL_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        submit(changes -> {
+            started = true;
+            scheduleNextExpiry();
+        });
     }
 
     /**
      * Add a new message to the in-memory store.
      */
     public void addMessage(ChatMessage message) {
-        synchronized (messages) {
-            messages.add(message);
-            if (listener != null) {
-                listener.onMessageAdded(message, messages.size() - 1);
-            }
+        addMessages(Collections.singletonList(message));
+    }
+
+    /**
+     * Append several messages at once; listeners get a single range insert.
+     * Returns immediately; the messages are added on the writer thread.
+     */
+    public void addMessages(List<ChatMessage> batch) {
+        if (batch.isEmpty()) {
+            return;
         }
+        List<ChatMessage> copy = new ArrayList<>(batch);
+        submit(changes -> append(copy, changes));
+    }
+
+    /**
+     * Clear all messages.
+     */
+    public void clearAll() {
+        submit(changes -> {
+            changes.remove(0, messages.size());
+            messages.clear();
+            expiryQueue.clear();
+            transferMessages.clear();
+        });
     }
 
     /**
-     * Get all current messages (snapshot).
+     * Get all current messages, as of the writer's last pass.
      */
     public List<ChatMessage> getMessages() {
-        synchronized (messages) {
-            return new ArrayList<>(messages);
-        }
+        return snapshot.getMessages();
     }
 
     /**
      * Get message count.
      */
     public int getMessageCount() {
-        synchronized (messages) {
-            return messages.size();
+        return snapshot.getMessages().size();
+    }
+
+    /**
+     * Current memory use of the store (count, estimated bytes, evictions).
+     */
+    public MessageStore.Stats getMemoryStats() {
+        return snapshot.getStats();
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Stop expiring messages and ignore further changes.
+     */
+    public void shutdown() {
+        shutDown = true;
+        pending.clear();
+        expiryTimeout.cancel();
+        writer.shutdown();
+    }
+
+    // ========== WRITER THREAD ==========
+
+    /** Queue a command and make sure a drain pass is on its way. */
+    private void submit(Command command) {
+        if (shutDown) {
+            return;
+        }
+        pending.offer(command);
+        if (drainScheduled.compareAndSet(false, true)) {
+            execute(this::drain);
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            writer.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shut down meanwhile; the change is dropped like any after shutdown()
+        }
+    }
+
+    /** Apply every queued command in one pass and notify once. */
+    private void drain() {
+        // Cleared first: a command queued after this is either seen below or schedules a new pass
+        drainScheduled.set(false);
+        if (shutDown) {
+            return;
+        }
+        ChangeSet changes = new ChangeSet();
+        Command command;
+        while ((command = pending.poll()) != null) {
+            command.apply(changes);
+        }
+        publish(changes);
+        scheduleNextExpiry();
+    }
+
+    private void append(List<ChatMessage> batch, ChangeSet changes) {
+        for (ChatMessage message : batch) {
+            int evicted = 0;
+            while (!messages.hasRoomFor(MessageStore.estimateBytes(message))) {
+                forget(messages.removeFirst());
+                evicted++;
+            }
+            changes.remove(0, evicted);
+            changes.insert(messages.size(), message);
+            messages.append(message);
+            if (message.getType() == ChatMessage.TYPE_FILE) {
+                transferMessages.add(message);
+            } else if (message.getType() != ChatMessage.TYPE_SYSTEM) {
+                enqueueExpiry(message);
+            }
         }
     }
 
     /**
-     * Clear all messages.
+     * Add to the expiry queue in deadline order. New messages expire last and
+     * go straight to the tail; replayed history arriving after live chat has
+     * less time left and is walked back into place.
      */
-    public void clearAll() {
-        synchronized (messages) {
-            messages.clear();
-            if (listener != null) {
-                listener.onMessagesChanged();
+    private void enqueueExpiry(ChatMessage message) {
+        long deadline = message.getExpiryDeadline();
+        if (expiryQueue.isEmpty() || expiryQueue.peekLast().getExpiryDeadline() <= deadline) {
+            expiryQueue.addLast(message);
+            return;
+        }
+        ArrayDeque<ChatMessage> later = new ArrayDeque<>();
+        while (!expiryQueue.isEmpty() && expiryQueue.peekLast().getExpiryDeadline() > deadline) {
+            later.addFirst(expiryQueue.pollLast());
+        }
+        expiryQueue.addLast(message);
+        expiryQueue.addAll(later);
+    }
+
+    /** Drop an evicted message from the expiry bookkeeping. */
+    private void forget(ChatMessage message) {
+        if (message.getType() == ChatMessage.TYPE_FILE) {
+            transferMessages.remove(message);
+        } else if (expiryQueue.peekFirst() == message) {
+            // Both are usually in arrival order, so the oldest stored chat message heads the queue
+            expiryQueue.pollFirst();
+        } else if (message.getType() != ChatMessage.TYPE_SYSTEM) {
+            expiryQueue.remove(message);
+        }
+    }
+
+    /** Expiry timeout: drop everything that is due, then re-arm for the next deadline. */
+    private void expireDue() {
+        if (shutDown) {
+            return;
+        }
+        scheduledDeadline = Long.MAX_VALUE;
+        long now = SystemClock.elapsedRealtime();
+
+        Set<ChatMessage> expired = Collections.newSetFromMap(new IdentityHashMap<>());
+        while (!expiryQueue.isEmpty() && expiryQueue.peekFirst().getExpiryDeadline() <= now) {
+            expired.add(expiryQueue.pollFirst());
+        }
+        Iterator<ChatMessage> it = transferMessages.iterator();
+        while (it.hasNext()) {
+            ChatMessage msg = it.next();
+            if (msg.getExpiryDeadline() <= now) {
+                expired.add(msg);
+                it.remove();
             }
         }
+        if (!expired.isEmpty()) {
+            ChangeSet changes = new ChangeSet();
+            removeAll(expired, changes);
+            publish(changes);
+        }
+        scheduleNextExpiry();
     }
 
     /**
-     * Stop the TTL cleanup scheduler.
+     * Remove {@code expired} from the store as contiguous runs. Due messages are
+     * the oldest ones, so the walk stops near the front once all are found.
      */
-    public void shutdown() {
-        scheduler.shutdownNow();
+    private void removeAll(Set<ChatMessage> expired, ChangeSet changes) {
+        int remaining = expired.size();
+        int index = 0;
+        while (remaining > 0 && index < messages.size()) {
+            if (!expired.contains(messages.get(index))) {
+                index++;
+                continue;
+            }
+            int end = index + 1;
+            while (end < messages.size() && expired.contains(messages.get(end))) {
+                end++;
+            }
+            int count = end - index;
+            messages.removeRange(index, count);
+            remaining -= count;
+            changes.remove(index, count);
+        }
+    }
+
+    /** Publish a new snapshot and hand the pass's changes to the listener. */
+    private void publish(ChangeSet changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        published.apply(changes);
+        snapshot = new Snapshot(published.window(), messages.getStats());
+        MessageListener l = listener;
+        if (l != null) {
+            l.onMessagesChanged(changes);
+        }
+    }
+
+    /** Arm the timer for the earliest pending deadline, or leave it idle if there is none. */
+    private void scheduleNextExpiry() {
+        if (!started || shutDown) {
+            return;
+        }
+        long next = expiryQueue.isEmpty() ? Long.MAX_VALUE : expiryQueue.peekFirst().getExpiryDeadline();
+        for (ChatMessage msg : transferMessages) {
+            next = Math.min(next, msg.getExpiryDeadline());
+        }
+        if (next == scheduledDeadline) {
+            return;
+        }
+        scheduledDeadline = next;
+        if (next == Long.MAX_VALUE) {
+            expiryTimeout.cancel();
+        } else {
+            expiryTimeout.reschedule(Math.max(0, next - SystemClock.elapsedRealtime()));
+        }
     }
 }
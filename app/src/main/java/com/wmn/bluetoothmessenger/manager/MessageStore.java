@@ -0,0 +1,206 @@
+package com.wmn.bluetoothmessenger.manager;
+
+import com.wmn.bluetoothmessenger.model.ChatMessage;
+
+/**
+ * Fixed-capacity ring buffer of chat messages in arrival order, bounded by
+ * both a message count and an estimated heap byte budget.
+ *
+ * Fields read on every bind (ID, timestamp, type, "mine") live in primitive
+ * columns next to the message references, and rows are read in place by
+ * position, so the chat list never needs a copy of the store. The store does
+ * not evict on its own: the owner checks {@link #hasRoomFor} and drops the
+ * oldest rows with {@link #removeFirst} so it can report the removals.
+ *
+ * Not thread-safe; {@link MessageManager} only touches its store on its writer
+ * thread and the chat screen keeps its mirror on the UI thread.
+ */
+public class MessageStore {
+
+    private static final int TYPE_MASK = 0xFF;
+    private static final int FLAG_MINE = 1 << 8;
+
+    // Rough heap cost of a ChatMessage and its String (header, fields, array
+    // header); content is UTF-16. A transfer adds its own object and strings.
+    private static final int MESSAGE_OVERHEAD_BYTES = 96;
+    private static final int TRANSFER_OVERHEAD_BYTES = 160;
+
+    private final int capacity;
+    private final long byteBudget;
+
+    private final ChatMessage[] items;
+    private final long[] ids;
+    private final long[] timestamps;
+    private final int[] flags;        // type | FLAG_MINE
+    private final int[] sizes;        // estimated bytes per row
+
+    private int head = 0;             // physical index of row 0
+    private int size = 0;
+    private long bytesUsed = 0;
+    private long peakBytes = 0;
+    private long evictedCount = 0;
+
+    /** Point-in-time memory figures for diagnostics. */
+    public static final class Stats {
+        public final int messageCount;
+        public final int capacity;
+        public final long bytesUsed;
+        public final long byteBudget;
+        public final long peakBytes;
+        public final long evictedCount;
+
+        Stats(int messageCount, int capacity, long bytesUsed, long byteBudget, long peakBytes,
+                long evictedCount) {
+            this.messageCount = messageCount;
+            this.capacity = capacity;
+            this.bytesUsed = bytesUsed;
+            this.byteBudget = byteBudget;
+            this.peakBytes = peakBytes;
+            this.evictedCount = evictedCount;
+        }
+
+        @Override
+        public String toString() {
+            return messageCount + "/" + capacity + " messages, " + bytesUsed + "/" + byteBudget
+                    + " bytes (peak " + peakBytes + "), " + evictedCount + " evicted";
+        }
+    }
+
+    /**
+     * @param capacity   most messages held at once
+     * @param byteBudget most estimated heap bytes held at once; Long.MAX_VALUE for none
+     */
+    public MessageStore(int capacity, long byteBudget) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.byteBudget = byteBudget;
+        this.items = new ChatMessage[capacity];
+        this.ids = new long[capacity];
+        this.timestamps = new long[capacity];
+        this.flags = new int[capacity];
+        this.sizes = new int[capacity];
+    }
+
+    /** Estimated heap bytes held by {@code message}. */
+    public static int estimateBytes(ChatMessage message) {
+        int bytes = MESSAGE_OVERHEAD_BYTES + 2 * message.getContent().length();
+        if (message.getTransfer() != null) {
+            bytes += TRANSFER_OVERHEAD_BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * Whether a message of {@code bytes} fits without evicting. An empty store
+     * always has room, so a single oversized message is still kept.
+     */
+    public boolean hasRoomFor(int bytes) {
+        return size == 0 || (size < capacity && bytesUsed + bytes <= byteBudget);
+    }
+
+    /**
+     * Append at the end.
+     *
+     * @throws IllegalStateException if the store is at capacity
+     */
+    public void append(ChatMessage message) {
+        if (size == capacity) {
+            throw new IllegalStateException("Store full");
+        }
+        int slot = physical(size);
+        int bytes = estimateBytes(message);
+        items[slot] = message;
+        ids[slot] = message.getId();
+        timestamps[slot] = message.getTimestamp();
+        flags[slot] = (message.getType() & TYPE_MASK) | (message.isMine() ? FLAG_MINE : 0);
+        sizes[slot] = bytes;
+        size++;
+        bytesUsed += bytes;
+        peakBytes = Math.max(peakBytes, bytesUsed);
+    }
+
+    /** Drop the oldest message to make room and return it. */
+    public ChatMessage removeFirst() {
+        ChatMessage first = get(0);
+        removeRange(0, 1);
+        evictedCount++;
+        return first;
+    }
+
+    /**
+     * Remove {@code count} rows starting at {@code position}. Rows before the
+     * range are shifted up, so removals near the front (expiry) are cheap.
+     */
+    public void removeRange(int position, int count) {
+        if (position < 0 || count < 0 || position + count > size) {
+            throw new IndexOutOfBoundsException(position + "+" + count + " of " + size);
+        }
+        for (int i = 0; i < count; i++) {
+            int slot = physical(position + i);
+            bytesUsed -= sizes[slot];
+            items[slot] = null;
+        }
+        for (int i = position - 1; i >= 0; i--) {
+            int from = physical(i);
+            int to = physical(i + count);
+            items[to] = items[from];
+            ids[to] = ids[from];
+            timestamps[to] = timestamps[from];
+            flags[to] = flags[from];
+            sizes[to] = sizes[from];
+            items[from] = null;
+        }
+        head = (head + count) % capacity;
+        size -= count;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            items[physical(i)] = null;
+        }
+        head = 0;
+        size = 0;
+        bytesUsed = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public ChatMessage get(int position) {
+        return items[physical(checkIndex(position))];
+    }
+
+    public long getId(int position) {
+        return ids[physical(checkIndex(position))];
+    }
+
+    public long getTimestamp(int position) {
+        return timestamps[physical(checkIndex(position))];
+    }
+
+    public int getType(int position) {
+        return flags[physical(checkIndex(position))] & TYPE_MASK;
+    }
+
+    public boolean isMine(int position) {
+        return (flags[physical(checkIndex(position))] & FLAG_MINE) != 0;
+    }
+
+    public Stats getStats() {
+        return new Stats(size, capacity, bytesUsed, byteBudget, peakBytes, evictedCount);
+    }
+
+    private int checkIndex(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException(position + " of " + size);
+        }
+        return position;
+    }
+
+    private int physical(int position) {
+        return (head + position) % capacity;
+    }
+}
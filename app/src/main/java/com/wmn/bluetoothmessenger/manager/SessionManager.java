@@ -1,12 +1,11 @@
 package com.wmn.bluetoothmessenger.manager;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.wmn.bluetoothmessenger.util.Constants;
+import com.wmn.bluetoothmessenger.util.TimerService;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -14,15 +13,20 @@ import java.util.concurrent.atomic.AtomicLong;
  * Inactivity is defined as: no message exchange and no user join.
  * When the timeout is reached, the session is terminated and all users are
  * disconnected.
+ *
+ * Event-driven rather than polled: every {@link #resetActivity()} moves one
+ * {@link TimerService} timeout to the next point of interest (the first
+ * warning, the next warning, or the timeout itself), so nothing runs while
+ * the group is active.
  */
 public class SessionManager {
 
     private static final String TAG = "SessionManager";
 
-    private final AtomicLong lastActivityTime = new AtomicLong(System.currentTimeMillis());
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-    private SessionListener listener;
-    private boolean running = false;
+    private final AtomicLong lastActivityTime = new AtomicLong(SystemClock.elapsedRealtime());
+    private final TimerService.Timeout deadline = TimerService.get().newTimeout(this::onDeadline);
+    private volatile SessionListener listener;
+    private volatile boolean running = false;
 
     public interface SessionListener {
         void onSessionTimeout();
@@ -40,42 +44,50 @@ public class SessionManager {
     public void startMonitoring() {
         running = true;
         resetActivity();
-
-        scheduler.scheduleAtFixedRate(() -> {
-            if (!running)
-                return;
-
-            long elapsed = System.currentTimeMillis() - lastActivityTime.get();
-            long remaining = Constants.SESSION_TIMEOUT_MS - elapsed;
-
-            if (remaining <= 0) {
-                // Session timed out!
-                Log.d(TAG, "Session timeout reached - no activity for 30 minutes");
-                running = false;
-                if (listener != null) {
-                    listener.onSessionTimeout();
-                }
-            } else if (remaining <= 5 * 60 * 1000) {
-                // Warning: less than 5 minutes remaining
-                if (listener != null) {
-                    listener.onSessionWarning(remaining);
-                }
-            }
-        }, Constants.SESSION_CHECK_INTERVAL_MS, Constants.SESSION_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
     /**
      * Reset the activity timer. Called on every message send/receive or user join.
      */
     public void resetActivity() {
-        lastActivityTime.set(System.currentTimeMillis());
+        lastActivityTime.set(SystemClock.elapsedRealtime());
+        if (running) {
+            deadline.reschedule(Constants.SESSION_TIMEOUT_MS - Constants.SESSION_WARNING_MS);
+        }
+    }
+
+    /** Timer callback: warn, re-arm for the next warning or the timeout, or end the session. */
+    private void onDeadline() {
+        if (!running)
+            return;
+
+        long remaining = getRemainingTimeMs();
+        SessionListener l = listener;
+
+        if (remaining <= 0) {
+            // Session timed out!
+            Log.d(TAG, "Session timeout reached - no activity for 30 minutes");
+            running = false;
+            if (l != null) {
+                l.onSessionTimeout();
+            }
+        } else if (remaining <= Constants.SESSION_WARNING_MS) {
+            // Warning: less than 5 minutes remaining
+            if (l != null) {
+                l.onSessionWarning(remaining);
+            }
+            deadline.reschedule(Math.min(remaining, Constants.SESSION_WARNING_INTERVAL_MS));
+        } else {
+            // Activity since this was armed; wait for the first warning again
+            deadline.reschedule(remaining - Constants.SESSION_WARNING_MS);
+        }
     }
 
     /**
      * Get remaining time until session timeout.
      */
     public long getRemainingTimeMs() {
-        long elapsed = System.currentTimeMillis() - lastActivityTime.get();
+        long elapsed = SystemClock.elapsedRealtime() - lastActivityTime.get();
         return Math.max(0, Constants.SESSION_TIMEOUT_MS - elapsed);
     }
 
@@ -91,6 +103,6 @@ public class SessionManager {
      */
     public void shutdown() {
         running = false;
-        scheduler.shutdownNow();
+        deadline.cancel();
     }
 }
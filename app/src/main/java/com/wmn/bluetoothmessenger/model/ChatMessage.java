@@ -1,5 +1,11 @@
 package com.wmn.bluetoothmessenger.model;
 
+import android.os.SystemClock;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Represents a chat message with TTL support.
  * Messages are held in-memory only — no persistent storage.
@@ -8,33 +14,83 @@ public class ChatMessage {
 
     public static final int TYPE_NORMAL = 0;
     public static final int TYPE_SYSTEM = 1;
+    public static final int TYPE_FILE = 2;
 
-    private final String senderName;
+    /** Sender ID of system messages; never assigned to a member. */
+    public static final int SENDER_SYSTEM = -1;
+
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    private final long id;        // unique within the process; the chat list's stable ID
+    private final int senderId;   // resolved to a name via SenderTable when displayed
+    private final long sequence;  // sender's chat sequence; -1 for local-only messages
     private final String content;
     private final long timestamp;
+    private final long expiryDeadline;   // SystemClock.elapsedRealtime() based, immune to clock changes
     private final boolean isMine;
     private final int type;
+    private final FileTransfer transfer;  // TYPE_FILE only
+
+    public ChatMessage(int senderId, String content, long timestamp, boolean isMine, int type) {
+        this(senderId, -1, content, timestamp, Constants.MESSAGE_TTL_MS, isMine, type, null);
+    }
 
-    public ChatMessage(String senderName, String content, long timestamp, boolean isMine, int type) {
-        this.senderName = senderName;
+    private ChatMessage(int senderId, long sequence, String content, long timestamp, long ttlMs,
+            boolean isMine, int type, FileTransfer transfer) {
+        this.id = NEXT_ID.incrementAndGet();
+        this.senderId = senderId;
+        this.sequence = sequence;
         this.content = content;
         this.timestamp = timestamp;
+        this.expiryDeadline = SystemClock.elapsedRealtime() + ttlMs;
         this.isMine = isMine;
         this.type = type;
+        this.transfer = transfer;
     }
 
     /** Creates a normal user message. */
-    public static ChatMessage createMessage(String sender, String content, boolean isMine) {
-        return new ChatMessage(sender, content, System.currentTimeMillis(), isMine, TYPE_NORMAL);
+    public static ChatMessage createMessage(int senderId, String content, boolean isMine) {
+        return createMessage(senderId, -1, content, isMine);
+    }
+
+    /** Creates a normal user message stamped with its sender's chat sequence. */
+    public static ChatMessage createMessage(int senderId, long sequence, String content, boolean isMine) {
+        return new ChatMessage(senderId, sequence, content, System.currentTimeMillis(),
+                Constants.MESSAGE_TTL_MS, isMine, TYPE_NORMAL, null);
+    }
+
+    /**
+     * Recreates a message sent before this device joined: original timestamp,
+     * and only the TTL it had left on the host.
+     */
+    public static ChatMessage restoreMessage(int senderId, long sequence, String content,
+            long timestamp, long remainingTtlMs) {
+        return new ChatMessage(senderId, sequence, content, timestamp, remainingTtlMs, false,
+                TYPE_NORMAL, null);
     }
 
     /** Creates a system notification message (join/leave/timeout). */
     public static ChatMessage createSystemMessage(String content) {
-        return new ChatMessage("System", content, System.currentTimeMillis(), false, TYPE_SYSTEM);
+        return new ChatMessage(SENDER_SYSTEM, content, System.currentTimeMillis(), false, TYPE_SYSTEM);
     }
 
-    public String getSenderName() {
-        return senderName;
+    public long getId() {
+        return id;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    /** The sender's chat sequence number, or -1 if the message never went over the wire. */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /** Creates a file / image message; the content is the file name. */
+    public static ChatMessage createFileMessage(FileTransfer transfer, boolean isMine) {
+        return new ChatMessage(transfer.getSenderId(), -1, transfer.getFileName(),
+                System.currentTimeMillis(), Constants.MESSAGE_TTL_MS, isMine, TYPE_FILE, transfer);
     }
 
     public String getContent() {
@@ -53,8 +109,27 @@ public class ChatMessage {
         return type;
     }
 
-    /** Checks if this message has exceeded its TTL (1 minute). */
+    /** The transfer behind a {@link #TYPE_FILE} message; null otherwise. */
+    public FileTransfer getTransfer() {
+        return transfer;
+    }
+
+    /**
+     * When this message expires on the {@link SystemClock#elapsedRealtime()}
+     * clock: 1 minute after it was created. File messages follow their
+     * transfer, so the deadline moves while it is still making progress.
+     */
+    public long getExpiryDeadline() {
+        return transfer != null ? transfer.getExpiryDeadline() : expiryDeadline;
+    }
+
+    /** Time left before this message expires; 0 once it has. */
+    public long getRemainingTtlMs() {
+        return Math.max(0, getExpiryDeadline() - SystemClock.elapsedRealtime());
+    }
+
+    /** Checks if this message has exceeded its TTL (see {@link #getExpiryDeadline}). */
     public boolean isExpired() {
-        return (System.currentTimeMillis() - timestamp) > com.wmn.bluetoothmessenger.util.Constants.MESSAGE_TTL_MS;
+        return SystemClock.elapsedRealtime() >= getExpiryDeadline();
     }
 }
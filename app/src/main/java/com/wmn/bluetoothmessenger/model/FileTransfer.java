@@ -0,0 +1,125 @@
+package com.wmn.bluetoothmessenger.model;
+
+import android.os.SystemClock;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.io.File;
+
+/**
+ * UI-facing state of one file / image transfer, sent or received.
+ * Updated by the transfer worker and read by the chat list, so the mutable
+ * fields are volatile; each one is written by a single thread.
+ *
+ * Follows the same TTL as chat messages: a finished transfer expires
+ * {@link Constants#MESSAGE_TTL_MS} after it completed, one that is still
+ * running expires once it has made no progress for that long.
+ */
+public class FileTransfer {
+
+    public static final int STATE_ACTIVE = 0;
+    public static final int STATE_COMPLETE = 1;
+    public static final int STATE_FAILED = 2;
+
+    private final long transferId;
+    private final int senderId;
+    private final String fileName;
+    private final String mimeType;
+    private final long size;
+    private final int chunkCount;
+    private final boolean outgoing;
+
+    private volatile int chunksDone = 0;
+    private volatile int state = STATE_ACTIVE;
+    private volatile long lastActivity;   // SystemClock.elapsedRealtime()
+    private volatile File file;   // local copy (received) or null (sent from the source)
+
+    public FileTransfer(long transferId, int senderId, String fileName, String mimeType,
+            long size, int chunkSize, boolean outgoing) {
+        this.transferId = transferId;
+        this.senderId = senderId;
+        this.fileName = fileName;
+        this.mimeType = mimeType;
+        this.size = size;
+        this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+        this.outgoing = outgoing;
+        this.lastActivity = SystemClock.elapsedRealtime();
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public boolean isOutgoing() {
+        return outgoing;
+    }
+
+    public boolean isImage() {
+        return mimeType != null && mimeType.startsWith("image/");
+    }
+
+    public int getChunksDone() {
+        return chunksDone;
+    }
+
+    /** Progress in percent (0-100). */
+    public int getProgress() {
+        return chunkCount == 0 ? 100 : (int) (100L * chunksDone / chunkCount);
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    /** Record progress (chunks acknowledged or received in order). */
+    public void setChunksDone(int chunksDone) {
+        this.chunksDone = chunksDone;
+        this.lastActivity = SystemClock.elapsedRealtime();
+    }
+
+    public void setState(int state) {
+        this.state = state;
+        this.lastActivity = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * When this transfer expires on the {@link SystemClock#elapsedRealtime()}
+     * clock; moves later every time it makes progress.
+     */
+    public long getExpiryDeadline() {
+        return lastActivity + Constants.MESSAGE_TTL_MS;
+    }
+
+    /** Checks if this transfer has exceeded its TTL (see class comment). */
+    public boolean isExpired() {
+        return SystemClock.elapsedRealtime() >= getExpiryDeadline();
+    }
+}
@@ -0,0 +1,104 @@
+package com.wmn.bluetoothmessenger.model;
+
+import java.util.List;
+
+/**
+ * A decoded protocol message, produced off the UI thread by the Bluetooth
+ * reader and delivered to the Activity in batches.
+ */
+public final class ProtocolEvent {
+
+    public static final int TYPE_CHAT = 0;
+    public static final int TYPE_JOIN = 1;
+    public static final int TYPE_LEAVE = 2;
+    public static final int TYPE_SESSION_END = 3;
+    public static final int TYPE_FILE_OFFER = 4;
+    public static final int TYPE_FILE_PROGRESS = 5;
+    public static final int TYPE_HISTORY = 6;
+
+    private final int type;
+    private final int senderId;
+    private final String deviceName;
+    private final ChatMessage message;
+    private final FileTransfer transfer;
+    private final List<ChatMessage> history;
+
+    private ProtocolEvent(int type, int senderId, String deviceName, ChatMessage message) {
+        this(type, senderId, deviceName, message, null, null);
+    }
+
+    private ProtocolEvent(int type, int senderId, String deviceName, ChatMessage message,
+            FileTransfer transfer, List<ChatMessage> history) {
+        this.type = type;
+        this.senderId = senderId;
+        this.deviceName = deviceName;
+        this.message = message;
+        this.transfer = transfer;
+        this.history = history;
+    }
+
+    /** A chat message from another member (already built, ready to display). */
+    public static ProtocolEvent chat(ChatMessage message, String senderName) {
+        return new ProtocolEvent(TYPE_CHAT, message.getSenderId(), senderName, message);
+    }
+
+    /** A member joined the group. */
+    public static ProtocolEvent join(int senderId, String deviceName) {
+        return new ProtocolEvent(TYPE_JOIN, senderId, deviceName, null);
+    }
+
+    /** A member left the group. */
+    public static ProtocolEvent leave(int senderId, String deviceName) {
+        return new ProtocolEvent(TYPE_LEAVE, senderId, deviceName, null);
+    }
+
+    /** The host ended the session. */
+    public static ProtocolEvent sessionEnd() {
+        return new ProtocolEvent(TYPE_SESSION_END, ChatMessage.SENDER_SYSTEM, null, null);
+    }
+
+    /** A file transfer started: one of ours, or offered by another member. */
+    public static ProtocolEvent fileOffer(FileTransfer transfer, String senderName) {
+        return new ProtocolEvent(TYPE_FILE_OFFER, transfer.getSenderId(), senderName,
+                ChatMessage.createFileMessage(transfer, transfer.isOutgoing()), transfer, null);
+    }
+
+    /** A transfer (sent or received) progressed, completed or failed. */
+    public static ProtocolEvent fileProgress(FileTransfer transfer) {
+        return new ProtocolEvent(TYPE_FILE_PROGRESS, transfer.getSenderId(), null, null, transfer, null);
+    }
+
+    /** Chat sent before this device joined, oldest first, as replayed by the host. */
+    public static ProtocolEvent history(List<ChatMessage> messages) {
+        return new ProtocolEvent(TYPE_HISTORY, ChatMessage.SENDER_SYSTEM, null, null, null, messages);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /** Session sender ID of the member concerned; {@link ChatMessage#SENDER_SYSTEM} for session end. */
+    public int getSenderId() {
+        return senderId;
+    }
+
+    /** Sender (chat) or member (join / leave) name; null for session end. */
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    /** The transfer for file events; null otherwise. */
+    public FileTransfer getTransfer() {
+        return transfer;
+    }
+
+    /** The replayed messages for {@link #TYPE_HISTORY}; null otherwise. */
+    public List<ChatMessage> getHistory() {
+        return history;
+    }
+
+    /** The chat message for {@link #TYPE_CHAT} / {@link #TYPE_FILE_OFFER}; null otherwise. */
+    public ChatMessage getMessage() {
+        return message;
+    }
+}
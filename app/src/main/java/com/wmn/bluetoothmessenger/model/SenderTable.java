@@ -0,0 +1,65 @@
+package com.wmn.bluetoothmessenger.model;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Session-wide mapping from numeric sender IDs to member names.
+ * The host assigns IDs at join time ({@link Constants#HOST_SENDER_ID} for
+ * itself, then 1, 2, ... up to {@link Constants#MESH_ID_STRIDE} - 1, so every
+ * ID it hands out reads as depth 1 to {@code MeshRouter.depthOf}); clients
+ * learn them from JOIN / SENDER messages.
+ * IDs are never reused within a session and names are kept after a member
+ * leaves, so messages still on screen keep resolving.
+ * Thread-safe: written by connection readers, read by the UI.
+ */
+public class SenderTable {
+
+    private final Map<Integer, String> names = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(Constants.HOST_SENDER_ID + 1);
+
+    /**
+     * Host only: allocate a fresh ID for {@code name}. IDs already announced
+     * are skipped, so a member that took over hosting never hands out one of
+     * the previous host's.
+     *
+     * @return -1 once every ID below {@link Constants#MESH_ID_STRIDE} is taken
+     */
+    public int assign(String name) {
+        int id;
+        do {
+            id = nextId.getAndIncrement();
+            if (id >= Constants.MESH_ID_STRIDE) {
+                // Keep the counter from wrapping on later calls
+                nextId.set(Constants.MESH_ID_STRIDE);
+                return -1;
+            }
+        } while (names.putIfAbsent(id, name) != null);
+        return id;
+    }
+
+    /** Record a mapping announced by the host (or our own host entry). */
+    public void put(int id, String name) {
+        names.put(id, name);
+    }
+
+    /** Name for {@code id}, or null if it was never announced. */
+    public String get(int id) {
+        return names.get(id);
+    }
+
+    /** Name for {@code id}, falling back to a readable placeholder. */
+    public String nameOf(int id) {
+        String name = names.get(id);
+        return name != null ? name : "Member " + id;
+    }
+
+    /** Copy of all known mappings in ascending ID order. */
+    public Map<Integer, String> snapshot() {
+        return new TreeMap<>(names);
+    }
+}
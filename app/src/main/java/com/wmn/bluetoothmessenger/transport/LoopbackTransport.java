@@ -0,0 +1,183 @@
+package com.wmn.bluetoothmessenger.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-process backend: connections are pairs of {@link Pipe}s, so a host and
+ * dozens of clients can run in one JVM with no radio or network stack.
+ * Members find each other by name on a shared {@link Network}:
+ * <pre>
+ * LoopbackTransport.Network net = new LoopbackTransport.Network();
+ * Transport host = net.transport("host");
+ * Transport client = net.transport("client-1");   // client.connect("host")
+ * </pre>
+ */
+public class LoopbackTransport implements Transport {
+
+    /** Default per-direction buffer, about what an RFCOMM socket buffers. */
+    public static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+    /** Registry of listening members, shared by all transports in a test. */
+    public static final class Network {
+
+        private final ConcurrentHashMap<String, LoopbackListener> listeners = new ConcurrentHashMap<>();
+        private final int pipeCapacity;
+
+        public Network() {
+            this(DEFAULT_PIPE_CAPACITY);
+        }
+
+        public Network(int pipeCapacity) {
+            this.pipeCapacity = pipeCapacity;
+        }
+
+        public LoopbackTransport transport(String localName) {
+            return new LoopbackTransport(this, localName);
+        }
+    }
+
+    private final Network network;
+    private final String localName;
+
+    private LoopbackTransport(Network network, String localName) {
+        this.network = network;
+        this.localName = localName;
+    }
+
+    @Override
+    public Listener listen() throws IOException {
+        LoopbackListener listener = new LoopbackListener(network, localName);
+        if (network.listeners.putIfAbsent(localName, listener) != null) {
+            throw new IOException(localName + " is already listening");
+        }
+        return listener;
+    }
+
+    @Override
+    public Connection connect(String address) throws IOException {
+        LoopbackListener listener = network.listeners.get(address);
+        if (listener == null) {
+            throw new IOException("Connection refused: " + address);
+        }
+        Pipe toServer = new Pipe(network.pipeCapacity);
+        Pipe toClient = new Pipe(network.pipeCapacity);
+        LoopbackConnection serverSide = new LoopbackConnection(toServer, toClient, localName);
+        LoopbackConnection clientSide = new LoopbackConnection(toClient, toServer, address);
+        if (!listener.offer(serverSide)) {
+            throw new IOException("Connection refused: " + address);
+        }
+        return clientSide;
+    }
+
+    @Override
+    public String getLocalName() {
+        return localName;
+    }
+
+    private static final class LoopbackListener implements Listener {
+
+        private static final LoopbackConnection CLOSED = new LoopbackConnection(null, null, null);
+
+        private final Network network;
+        private final String address;
+        private final BlockingQueue<LoopbackConnection> pending = new LinkedBlockingQueue<>();
+        private volatile boolean closed = false;
+
+        LoopbackListener(Network network, String address) {
+            this.network = network;
+            this.address = address;
+        }
+
+        boolean offer(LoopbackConnection connection) {
+            return !closed && pending.offer(connection);
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            LoopbackConnection connection;
+            try {
+                connection = pending.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted");
+            }
+            if (connection == CLOSED) {
+                pending.offer(CLOSED); // Keep waking any other acceptor
+                throw new IOException("Listener closed");
+            }
+            return connection;
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                network.listeners.remove(address, this);
+                pending.offer(CLOSED);
+            }
+        }
+    }
+
+    private static final class LoopbackConnection implements Connection {
+
+        private final Pipe in;
+        private final Pipe out;
+        private final String remoteName;
+        private volatile boolean closed = false;
+
+        LoopbackConnection(Pipe in, Pipe out, String remoteName) {
+            this.in = in;
+            this.out = out;
+            this.remoteName = remoteName;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in.source();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out.sink();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return remoteName;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteName; // Like a device address: the same on every reconnect
+        }
+
+        @Override
+        public String getHostingAddress() {
+            return remoteName; // Members listen under their own name
+        }
+
+        @Override
+        public boolean isConnected() {
+            return !closed;
+        }
+
+        /** Like a socket: both directions go down and the peer sees EOF. */
+        @Override
+        public void close() {
+            closed = true;
+            in.closeReader();
+            out.closeWriter();
+        }
+    }
+}
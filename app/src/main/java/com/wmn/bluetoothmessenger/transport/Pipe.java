@@ -0,0 +1,136 @@
+package com.wmn.bluetoothmessenger.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Bounded in-memory byte pipe: one writer, one reader, a ring buffer between.
+ * Unlike java.io.PipedInputStream it has no one-second polling and doesn't
+ * care which threads use it, so it can stand in for a socket in load tests.
+ *
+ * Writes block while the buffer is full; reads block while it is empty.
+ * Closing the write end lets the reader drain what is left and then see EOF;
+ * closing the read end makes further writes fail.
+ */
+final class Pipe {
+
+    private final byte[] buffer;
+    private int readPos = 0;
+    private int size = 0;
+    private boolean writerClosed = false;
+    private boolean readerClosed = false;
+
+    private final InputStream source = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return Pipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (Pipe.this) {
+                return size;
+            }
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    };
+
+    private final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Pipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+        }
+    };
+
+    Pipe(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    InputStream source() {
+        return source;
+    }
+
+    OutputStream sink() {
+        return sink;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (size == 0) {
+            if (writerClosed || readerClosed) {
+                return -1;
+            }
+            await();
+        }
+        int n = Math.min(len, size);
+        int first = Math.min(n, buffer.length - readPos);
+        System.arraycopy(buffer, readPos, b, off, first);
+        System.arraycopy(buffer, 0, b, off + first, n - first);
+        readPos = (readPos + n) % buffer.length;
+        size -= n;
+        notifyAll();
+        return n;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (readerClosed || writerClosed) {
+                throw new IOException("Pipe closed");
+            }
+            if (size == buffer.length) {
+                await();
+                continue;
+            }
+            int writePos = (readPos + size) % buffer.length;
+            int n = Math.min(len, Math.min(buffer.length - size, buffer.length - writePos));
+            System.arraycopy(b, off, buffer, writePos, n);
+            size += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+    }
+
+    synchronized void closeWriter() {
+        writerClosed = true;
+        notifyAll();
+    }
+
+    synchronized void closeReader() {
+        readerClosed = true;
+        notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        }
+    }
+}
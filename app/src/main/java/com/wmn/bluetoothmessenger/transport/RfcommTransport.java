@@ -0,0 +1,133 @@
+package com.wmn.bluetoothmessenger.transport;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Bluetooth Classic RFCOMM backend: the app's production transport.
+ * Listens on {@link Constants#BT_UUID} under {@link Constants#BT_SERVICE_NAME}.
+ * Methods may throw SecurityException when Bluetooth permissions are missing.
+ */
+public class RfcommTransport implements Transport {
+
+    private final BluetoothAdapter adapter;
+
+    public RfcommTransport(BluetoothAdapter adapter) {
+        this.adapter = adapter;
+    }
+
+    @Override
+    @SuppressWarnings("MissingPermission")
+    public Listener listen() throws IOException {
+        BluetoothServerSocket serverSocket = adapter.listenUsingRfcommWithServiceRecord(
+                Constants.BT_SERVICE_NAME, Constants.BT_UUID);
+        return new Listener() {
+            @Override
+            public Connection accept() throws IOException {
+                BluetoothSocket socket = serverSocket.accept();
+                if (socket == null) {
+                    throw new IOException("Server socket closed");
+                }
+                return new RfcommConnection(socket);
+            }
+
+            @Override
+            public String getAddress() {
+                return adapter.getAddress();
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("MissingPermission")
+    public Connection connect(String address) throws IOException {
+        BluetoothDevice device = adapter.getRemoteDevice(address);
+        BluetoothSocket socket = device.createRfcommSocketToServiceRecord(Constants.BT_UUID);
+        adapter.cancelDiscovery();
+        try {
+            socket.connect();
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+        return new RfcommConnection(socket);
+    }
+
+    @Override
+    @SuppressWarnings("MissingPermission")
+    public String getLocalName() {
+        try {
+            String name = adapter.getName();
+            return name != null ? name : "Me";
+        } catch (SecurityException e) {
+            return "Me";
+        }
+    }
+
+    /** A connected BluetoothSocket. */
+    private static final class RfcommConnection implements Connection {
+
+        private final BluetoothSocket socket;
+
+        RfcommConnection(BluetoothSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        @SuppressWarnings("MissingPermission")
+        public String getRemoteName() {
+            try {
+                String name = socket.getRemoteDevice().getName();
+                return name != null ? name : getRemoteAddress();
+            } catch (SecurityException e) {
+                return getRemoteAddress();
+            }
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return socket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public String getHostingAddress() {
+            return getRemoteAddress(); // Every member listens on the same service UUID
+        }
+
+        @Override
+        public boolean isConnected() {
+            return socket.isConnected();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.wmn.bluetoothmessenger.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Localhost TCP backend: real kernel sockets (buffering, partial reads,
+ * backpressure) without radios, for throughput and latency runs on a CI box.
+ * Binds to the loopback interface only. Addresses are "host:port"; a listener
+ * created with port 0 picks a free port, see {@link Listener#getAddress()}.
+ */
+public class TcpTransport implements Transport {
+
+    private static final int BACKLOG = 64;
+
+    private final String localName;
+    private final int listenPort;
+
+    public TcpTransport(String localName) {
+        this(localName, 0);
+    }
+
+    public TcpTransport(String localName, int listenPort) {
+        this.localName = localName;
+        this.listenPort = listenPort;
+    }
+
+    @Override
+    public Listener listen() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(listenPort, BACKLOG, InetAddress.getLoopbackAddress());
+        return new Listener() {
+            @Override
+            public Connection accept() throws IOException {
+                return new TcpConnection(serverSocket.accept());
+            }
+
+            @Override
+            public String getAddress() {
+                return serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getLocalPort();
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection connect(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IOException("Expected host:port, got " + address);
+        }
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad port in " + address, e);
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address.substring(0, colon), port));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new TcpConnection(socket);
+    }
+
+    @Override
+    public String getLocalName() {
+        return localName;
+    }
+
+    private static final class TcpConnection implements Connection {
+
+        private final Socket socket;
+
+        TcpConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            // Frames are already coalesced by PeerWriter; don't add Nagle delay on top
+            socket.setTcpNoDelay(true);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return getRemoteAddress();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        }
+
+        @Override
+        public String getHostingAddress() {
+            return null; // The peer's listening port is not the one it connected from
+        }
+
+        @Override
+        public boolean isConnected() {
+            return socket.isConnected() && !socket.isClosed();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.wmn.bluetoothmessenger.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A way for members to reach each other: RFCOMM on real devices
+ * ({@link RfcommTransport}), or in-memory pipes ({@link LoopbackTransport}) and
+ * localhost TCP ({@link TcpTransport}) to run a host and many clients in one
+ * JVM. Everything above this interface (framing, handshake, writers, relay)
+ * only sees byte streams, so it behaves the same on every backend.
+ */
+public interface Transport {
+
+    /** Start accepting incoming connections (host side). */
+    Listener listen() throws IOException;
+
+    /**
+     * Open a connection to a listening peer (client side). Blocks until the
+     * connection is established.
+     *
+     * @param address backend-specific: MAC address, loopback name or host:port
+     */
+    Connection connect(String address) throws IOException;
+
+    /** Name this device is announced under to other members. */
+    String getLocalName();
+
+    /** Server side of a transport. Closing it unblocks a pending {@link #accept()}. */
+    interface Listener extends Closeable {
+
+        /** Block until a peer connects. */
+        Connection accept() throws IOException;
+
+        /** Address clients pass to {@link Transport#connect}. */
+        String getAddress();
+    }
+
+    /** One established, bidirectional byte stream. Closing it unblocks pending reads. */
+    interface Connection extends Closeable {
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        /** Human-readable name of the remote peer (falls back to its address). */
+        String getRemoteName();
+
+        String getRemoteAddress();
+
+        /**
+         * Where the remote peer can be reached once it accepts connections
+         * itself (a member taking over as host), or null if this backend
+         * cannot tell from the connection.
+         */
+        String getHostingAddress();
+
+        boolean isConnected();
+    }
+}
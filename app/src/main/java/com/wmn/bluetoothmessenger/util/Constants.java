@@ -15,20 +15,135 @@ public final class Constants {
     public static final String BT_SERVICE_NAME = "BluetoothMessenger";
     public static final UUID BT_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
 
-    // Protocol message prefixes
-    public static final String PROTO_AUTH = "AUTH:";
-    public static final String PROTO_AUTH_OK = "AUTH_OK";
-    public static final String PROTO_AUTH_FAIL = "AUTH_FAIL";
-    public static final String PROTO_MSG = "MSG:";
-    public static final String PROTO_JOIN = "JOIN:";
-    public static final String PROTO_LEAVE = "LEAVE:";
-    public static final String PROTO_SESSION_END = "SESSION_END";
+    // Protocol: binary payloads [1-byte opcode][fields...], see ProtocolCodec
+    public static final int PROTOCOL_VERSION = 1; // Sent in AUTH / AUTH_OK; bump on incompatible changes
+    public static final int OP_AUTH = 0x01;
+    public static final int OP_AUTH_OK = 0x02;
+    public static final int OP_AUTH_FAIL = 0x03;
+    public static final int OP_RESUME = 0x04;    // Member back after a dropout: its ID and token instead of the password
+    public static final int OP_RESUME_OK = 0x05;
+    public static final int OP_CHAT = 0x10;
+    public static final int OP_JOIN = 0x11;   // New member: announced with a system message
+    public static final int OP_SENDER = 0x12; // Existing member: ID -> name mapping only
+    public static final int OP_LEAVE = 0x13;
+    public static final int OP_SESSION_END = 0x14;
+    public static final int OP_HISTORY = 0x15; // Host -> joiner: unexpired chat sent before they joined
+    public static final int OP_SUCCESSOR = 0x16; // Host -> members: who takes over hosting if the host goes
+    public static final int OP_FILE_OFFER = 0x20;
+    public static final int OP_FILE_CHUNK = 0x21;
+    public static final int OP_FILE_ACK = 0x22;    // Cumulative: every chunk below nextIndex received
+    public static final int OP_FILE_RESUME = 0x23; // Receiver (re)connected: resend from nextIndex
+    public static final int OP_FILE_CANCEL = 0x24;
+    public static final int OP_DATA = 0x30;     // Link envelope: [seq][session frame], see ReliableLink
+    public static final int OP_LINK_ACK = 0x31; // Link ack: [cumulative][selective ranges]
+    public static final int OP_PING = 0x32;     // Link liveness probe: [nonce], answered at once
+    public static final int OP_PONG = 0x33;     // ...echoing the nonce, see Heartbeat
+    public static final int OP_DATA_DEFLATE = 0x34; // DATA with the session frame compressed, to peers with CAP_DEFLATE
+
+    // Sender IDs: assigned by the host at join time, never reused within a session
+    public static final int HOST_SENDER_ID = 0;
+    public static final int DEDUP_WINDOW = 256; // Chat sequences remembered per sender (multiple of 64)
+    public static final int HISTORY_FRAME_BYTES = 16 * 1024; // History snapshot is split into frames of at most this size (one larger entry goes alone); the first rides in AUTH_OK
+
+    // Capability bits exchanged in AUTH / AUTH_OK
+    public static final int CAP_DEFLATE = 1;
+    public static final int CAP_MESH = 2; // Joiner may relay for members out of the host's range
+
+    // Mesh mode (see MeshRouter): members relay for others, forming a tree rooted at the host
+    public static final int MESH_ID_STRIDE = 256; // A relay's children get IDs relay * stride + 1..255
+    public static final int MESH_MAX_DEPTH = 2; // Host's members relay, theirs don't: at most 4 hops end to end
+    public static final int MESH_MAX_CHILDREN = 4; // Members per relay; 7 + 7 x 4 = 35 per group
+
+    // Host failover: when the host goes, members reconnect to the successor it named
+    public static final int FAILOVER_CONNECT_ATTEMPTS = 10; // The successor may still be opening its listener
+    public static final long FAILOVER_RETRY_MS = 1000;
+    public static final int SUCCESSOR_REJOIN_ATTEMPTS = 3; // A successor tries the silent host this often before taking over
+
+    // Session resume: a member whose link dropped reconnects with the token from AUTH_OK
+    public static final int RESUME_TOKEN_BYTES = 16;
+    public static final long RESUME_GRACE_MS = 15 * 1000; // The host holds a dropped member's place this long
+    public static final int RESUME_HOLD_FRAMES = 256; // Session frames held for a dropped member; more lets its place go
+    public static final long RECONNECT_BASE_DELAY_MS = 250; // Doubled per attempt, with jitter
+    public static final long RECONNECT_MAX_DELAY_MS = 4000;
+
+    // Framing: every protocol message travels as [4-byte big-endian length][payload]
+    public static final int FRAME_HEADER_SIZE = 4;
+    public static final int MAX_FRAME_SIZE = 64 * 1024; // Reject anything larger as corrupt
+    public static final int FRAME_FLAG_COMPRESSED = 0x80000000; // Top bit of the length word
+    public static final int FRAME_LENGTH_MASK = 0x7FFFFFFF;
+    public static final int COMPRESSION_THRESHOLD_BYTES = 128; // Smaller payloads are never compressed
+
+    // Connection engine (shared worker pool for accept / read / write / handshake tasks)
+    public static final int MAX_PEERS = 7; // Bluetooth Classic piconet limit
+    public static final int ENGINE_MAX_THREADS = 2 * MAX_PEERS + 1 + Constants.HANDSHAKE_MAX_CONCURRENT + 1; // reader+writer per peer, accept, handshake steps, one spare
+    public static final long ENGINE_KEEP_ALIVE_MS = 30 * 1000; // Idle workers are kept this long for reuse
+
+    // Host admission (see AdmissionControl): incoming connections until they become members
+    public static final int HANDSHAKE_MAX_CONCURRENT = 4; // Joiners read and checked at once, and handshake steps on workers; more wait their turn
+    public static final int HANDSHAKE_BACKLOG = 16; // Connections waiting for a turn; more are refused
+    public static final long HANDSHAKE_POLL_MS = 50; // A joiner's socket is checked this often for its first frame
+    public static final long HANDSHAKE_AUTH_TIMEOUT_MS = 5 * 1000; // From accept to a complete AUTH / RESUME
+    public static final long HANDSHAKE_CHECK_TIMEOUT_MS = 10 * 1000; // Authorising and admitting, on a worker
+    public static final long HANDSHAKE_REJECT_LINGER_MS = 500; // Socket stays open this long so AUTH_FAIL gets out
+    public static final int HANDSHAKE_MAX_FAILURES = 5; // Failed attempts per address within the window...
+    public static final long HANDSHAKE_FAILURE_WINDOW_MS = 60 * 1000;
+    public static final long HANDSHAKE_LOCKOUT_MS = 60 * 1000; // ...before it is refused outright this long
+    public static final int ADMISSION_QUEUE_CAPACITY = 8; // Authorised joiners waiting for a member to leave
+    public static final long ADMISSION_WAIT_MS = 8 * 1000; // Within the joiner's own HANDSHAKE_TIMEOUT_MS
+
+    // Per-peer outbound queues
+    public static final int WRITE_QUEUE_CAPACITY = 256; // Frames buffered per peer before the overflow policy applies
+    public static final long WRITE_DRAIN_TIMEOUT_MS = 500; // Max wait for queued frames (e.g. SESSION_END) on disconnect
+    public static final long WRITE_BATCH_WINDOW_MS = 2; // How long a writer waits for more frames to coalesce
+    public static final int WRITE_BATCH_MAX_BYTES = 8 * 1024; // Flush a batch early once it reaches this size
+    public static final long WRITE_BLOCK_RECHECK_MS = 100; // A sender blocked on a full queue checks the writer still runs
+
+    // Link reliability (session frames are acknowledged per link, see ReliableLink)
+    public static final int RELIABLE_WINDOW = 128; // Unacknowledged frames per link, half the write queue; later ones wait in the backlog
+    public static final int RELIABLE_BACKLOG = 1024; // Frames waiting for window room; a full backlog fails the link
+    public static final int RELIABLE_MAX_RETRANSMITS = 6; // A frame resent this often without an ack fails the link
+    public static final int RETRANSMIT_BURST = 16; // Most frames resent per timeout
+    public static final long RTO_INITIAL_MS = 1000; // Retransmit timeout before the first RTT sample
+    public static final long RTO_MIN_MS = 200;
+    public static final long RTO_MAX_MS = 10 * 1000;
+    public static final long ACK_DELAY_MS = 40; // Acks wait this long to cover several frames
+    public static final int ACK_EVERY_FRAMES = 8; // ...or go out at once after this many
+    public static final int SACK_MAX_RANGES = 4; // Selective ranges per ack
+
+    // Heartbeat (see Heartbeat): a silent peer is dropped after interval x misses, 6 s by default
+    public static final long HEARTBEAT_INTERVAL_MS = 2000; // One ping per link this often; 0 turns it off
+    public static final int HEARTBEAT_MISS_LIMIT = 3; // Silent intervals before the link is dropped
+
+    // File transfer
+    public static final int FILE_CHUNK_SIZE = 16 * 1024; // One chunk per frame, well under MAX_FRAME_SIZE
+    public static final int FILE_WINDOW_CHUNKS = 8; // Unacknowledged chunks in flight per transfer
+    public static final long FILE_MAX_SIZE = 32L * 1024 * 1024; // Larger offers are refused
+    public static final String FILE_CACHE_DIR = "transfers"; // Under the app cache dir; wiped on disconnect
+
+    // Chat input
+    public static final int CHAT_MAX_LENGTH = 4000; // Characters per message (at most 12 KB of UTF-8); matches et_message's maxLength
+
+    // Message store
+    public static final int MESSAGE_STORE_CAPACITY = 1000; // Most chat messages kept at once
+    public static final long MESSAGE_STORE_BYTE_BUDGET = 1024 * 1024; // ~1 MB of message heap; oldest dropped beyond
+
+    // Chat list rendering
+    public static final int CHAT_POOL_SIZE_BUBBLE = 15; // Spare sent / received rows kept for reuse
+    public static final int CHAT_POOL_SIZE_SYSTEM = 5; // Spare system rows
+    public static final int CHAT_VIEW_CACHE_SIZE = 10; // Off-screen rows kept bound for quick scroll-back
+    public static final int CHAT_TIME_CACHE_SIZE = 32; // Formatted times kept, one per minute
 
     // Timeouts
     public static final long MESSAGE_TTL_MS = 60 * 1000; // 1 minute
     public static final long SESSION_TIMEOUT_MS = 30 * 60 * 1000; // 30 minutes
-    public static final long TTL_CHECK_INTERVAL_MS = 5 * 1000; // Check TTL every 5 seconds
-    public static final long SESSION_CHECK_INTERVAL_MS = 30 * 1000; // Check session every 30 seconds
+    public static final long TTL_CHECK_INTERVAL_MS = 5 * 1000; // File transfer TTL sweep; chat messages expire on their own deadline
+    public static final long SESSION_WARNING_MS = 5 * 60 * 1000; // Start warning 5 minutes before timeout
+    public static final long SESSION_WARNING_INTERVAL_MS = 60 * 1000; // Then repeat the warning every minute
+    public static final long HANDSHAKE_TIMEOUT_MS = 15 * 1000; // Joiner: give up on a host that hasn't answered auth
+
+    // Timer wheel (see TimerService): 2048 x 50 ms, about 100 s per turn
+    public static final long TIMER_TICK_MS = 50;
+    public static final int TIMER_WHEEL_SLOTS = 2048;
 
     // Handler message types
     public static final int MSG_READ = 1;
@@ -37,6 +152,11 @@ public final class Constants {
     public static final int MSG_DISCONNECTED = 4;
     public static final int MSG_CONNECTION_FAILED = 5;
     public static final int MSG_TOAST = 6;
+    public static final int MSG_EVENTS = 7; // obj = List<ProtocolEvent>, batched per frame interval
+    public static final int MSG_HOST_CHANGED = 8; // obj = name of the member now hosting, after a failover
+
+    // UI delivery
+    public static final long UI_DISPATCH_INTERVAL_MS = 16; // At most one event batch per frame
 
     // Intent extras
     public static final String EXTRA_GROUP_NAME = "group_name";
@@ -51,4 +171,5 @@ public final class Constants {
     public static final int REQUEST_ENABLE_BT = 1001;
     public static final int REQUEST_DISCOVERABLE = 1002;
     public static final int REQUEST_PERMISSIONS = 1003;
+    public static final int REQUEST_PICK_FILE = 1004;
 }
@@ -0,0 +1,254 @@
+package com.wmn.bluetoothmessenger.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * App-wide timer: one daemon thread and a hashed timing wheel serve message
+ * TTLs, session inactivity deadlines and connection timeouts, instead of each
+ * manager keeping its own scheduler thread.
+ *
+ * Timeouts hash by deadline tick into {@link Constants#TIMER_WHEEL_SLOTS}
+ * buckets of {@link Constants#TIMER_TICK_MS}; each bucket is a doubly linked
+ * list, so scheduling, cancelling and rescheduling are O(1). The thread does
+ * not tick while idle: it sleeps until the next non-empty bucket, or
+ * indefinitely when nothing is pending. Deadlines use
+ * {@link SystemClock#elapsedRealtime()} and never fire early.
+ *
+ * Tasks run on the timer thread, one at a time, in tick order; they must
+ * be short and never block. Anything that does I/O, takes an owner's lock or
+ * walks a store is handed to the owner's executor by the task, e.g.
+ * {@code newTimeout(() -> worker.execute(this::sweep))}, so one slow peer never
+ * delays every other deadline.
+ */
+public final class TimerService {
+
+    private static final String TAG = "TimerService";
+
+    private static volatile TimerService instance;
+
+    /** The shared instance; its thread starts on first use. */
+    public static TimerService get() {
+        TimerService timer = instance;
+        if (timer == null) {
+            synchronized (TimerService.class) {
+                timer = instance;
+                if (timer == null) {
+                    timer = new TimerService(Constants.TIMER_TICK_MS, Constants.TIMER_WHEEL_SLOTS);
+                    instance = timer;
+                }
+            }
+        }
+        return timer;
+    }
+
+    /** A scheduled task; cancel or move it at any time from any thread. */
+    public final class Timeout {
+
+        private final Runnable task;
+        private long deadlineTick;
+        private Timeout prev, next;
+        private int slot = -1;         // -1 when not in the wheel
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /** Stop the task from running; no-op if it already ran or was cancelled. */
+        public void cancel() {
+            synchronized (lock) {
+                unlink(this);
+            }
+        }
+
+        /** Run the task {@code delayMs} from now instead, whether or not it is still pending. */
+        public void reschedule(long delayMs) {
+            synchronized (lock) {
+                unlink(this);
+                long now = SystemClock.elapsedRealtime();
+                checkClock(now);
+                link(this, now + delayMs);
+            }
+        }
+
+        public boolean isPending() {
+            synchronized (lock) {
+                return slot >= 0;
+            }
+        }
+    }
+
+    private final long tickMs;
+    private final int mask;
+    private final Timeout[] wheel;
+    private final Object lock = new Object();
+    private int pendingCount = 0;
+    private long cursor;               // next tick to process
+
+    private TimerService(long tickMs, int slots) {
+        if (Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("slots must be a power of two");
+        }
+        this.tickMs = tickMs;
+        this.mask = slots - 1;
+        this.wheel = new Timeout[slots];
+        this.cursor = SystemClock.elapsedRealtime() / tickMs;
+        Thread thread = new Thread(this::loop, "app-timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Run {@code task} once, {@code delayMs} from now. */
+    public Timeout schedule(Runnable task, long delayMs) {
+        Timeout timeout = new Timeout(task);
+        synchronized (lock) {
+            long now = SystemClock.elapsedRealtime();
+            checkClock(now);
+            link(timeout, now + delayMs);
+        }
+        return timeout;
+    }
+
+    /** A timeout that does nothing until {@link Timeout#reschedule} is called. */
+    public Timeout newTimeout(Runnable task) {
+        return new Timeout(task);
+    }
+
+    // ========== WHEEL ==========
+
+    private void link(Timeout timeout, long deadlineMs) {
+        // Round up so a timeout never fires before its deadline
+        long tick = Math.max((deadlineMs + tickMs - 1) / tickMs, cursor);
+        int slot = (int) (tick & mask);
+        timeout.deadlineTick = tick;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = wheel[slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        wheel[slot] = timeout;
+        pendingCount++;
+        lock.notifyAll();
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.slot < 0) {
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            wheel[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+        timeout.slot = -1;
+        pendingCount--;
+    }
+
+    /**
+     * Re-anchor the wheel if the clock is behind the cursor, keeping each
+     * timeout's remaining delay. A device clock never goes back, but
+     * Robolectric resets its clock for every test while this instance lives
+     * on, and the wheel would otherwise stall until the clock caught up.
+     * Caller holds the lock.
+     */
+    private void checkClock(long nowMs) {
+        long nowTick = nowMs / tickMs;
+        if (nowTick >= cursor - 1) {
+            return;
+        }
+        long shift = cursor - nowTick;
+        List<Timeout> pending = new ArrayList<>(pendingCount);
+        for (Timeout head : wheel) {
+            for (Timeout timeout = head; timeout != null; timeout = timeout.next) {
+                pending.add(timeout);
+            }
+        }
+        for (Timeout timeout : pending) {
+            unlink(timeout);
+        }
+        cursor = nowTick;
+        for (Timeout timeout : pending) {
+            link(timeout, (timeout.deadlineTick - shift) * tickMs);
+        }
+    }
+
+    private void loop() {
+        List<Runnable> due = new ArrayList<>();
+        while (true) {
+            synchronized (lock) {
+                try {
+                    waitForWork();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                collectDue(due);
+            }
+            for (Runnable task : due) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Timer task failed", e);
+                }
+            }
+            due.clear();
+        }
+    }
+
+    /** Sleep until the next non-empty bucket comes up. Caller holds the lock. */
+    private void waitForWork() throws InterruptedException {
+        while (true) {
+            long now = SystemClock.elapsedRealtime();
+            checkClock(now);
+            if (pendingCount == 0) {
+                lock.wait();
+                continue;
+            }
+            long wakeTick = nextOccupiedTick();
+            long waitMs = wakeTick * tickMs - now;
+            if (waitMs <= 0) {
+                return;
+            }
+            lock.wait(waitMs);
+        }
+    }
+
+    /** First tick at or after the cursor whose bucket has entries (possibly for a later round). */
+    private long nextOccupiedTick() {
+        for (int i = 0; i <= mask; i++) {
+            if (wheel[(int) ((cursor + i) & mask)] != null) {
+                return cursor + i;
+            }
+        }
+        return cursor + mask + 1;
+    }
+
+    /** Move the cursor up to now, taking every timeout whose deadline has passed. Caller holds the lock. */
+    private void collectDue(List<Runnable> due) {
+        long nowTick = SystemClock.elapsedRealtime() / tickMs;
+        if (nowTick < cursor) {
+            return;
+        }
+        // A full turn visits every bucket once; further ticks would only repeat them
+        long last = Math.min(nowTick, cursor + mask);
+        for (long tick = cursor; tick <= last; tick++) {
+            Timeout timeout = wheel[(int) (tick & mask)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadlineTick <= nowTick) {
+                    unlink(timeout);
+                    due.add(timeout.task);
+                }
+                timeout = next;
+            }
+        }
+        cursor = nowTick + 1;
+    }
+}
@@ -0,0 +1,87 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** The per-sender sliding window, including bit slots reused as it wraps. */
+public class DuplicateFilterTest {
+
+    private static final int WINDOW = Constants.DEDUP_WINDOW;
+
+    private final DuplicateFilter filter = new DuplicateFilter();
+
+    @Test
+    public void secondCopyIsDropped() {
+        assertTrue(filter.accept(1, 0));
+        assertFalse(filter.accept(1, 0));
+    }
+
+    @Test
+    public void sendersAreIndependent() {
+        assertTrue(filter.accept(1, 7));
+        assertTrue(filter.accept(2, 7));
+        assertFalse(filter.accept(2, 7));
+    }
+
+    @Test
+    public void lateArrivalInsideTheWindowIsAccepted() {
+        assertTrue(filter.accept(1, 10));
+        assertTrue(filter.accept(1, 3));
+        assertFalse(filter.accept(1, 3));
+    }
+
+    @Test
+    public void sequenceOlderThanTheWindowIsDropped() {
+        assertTrue(filter.accept(1, WINDOW + 10));
+        assertFalse(filter.accept(1, 10));
+        assertTrue(filter.accept(1, 11));
+    }
+
+    @Test
+    public void slidingClearsTheSlotsItReuses() {
+        // 0 and WINDOW share a bit; sliding to WINDOW must not read it as seen
+        assertTrue(filter.accept(1, 0));
+        assertTrue(filter.accept(1, WINDOW));
+        assertFalse(filter.accept(1, WINDOW));
+        assertFalse(filter.accept(1, 0));
+    }
+
+    @Test
+    public void unseenSlotsSurviveAWrap() {
+        long highest = 3 * WINDOW + 5;
+        assertTrue(filter.accept(1, highest - WINDOW + 1));
+        assertTrue(filter.accept(1, highest));
+        // Same slot as highest + 1, which has not been seen
+        assertTrue(filter.accept(1, highest - WINDOW + 2));
+        assertTrue(filter.accept(1, highest + 1));
+        assertFalse(filter.accept(1, highest - WINDOW + 1));
+    }
+
+    @Test
+    public void jumpPastAWholeWindowForgetsEverything() {
+        for (int seq = 0; seq < WINDOW; seq++) {
+            assertTrue(filter.accept(1, seq));
+        }
+        long far = 5L * WINDOW;
+        assertTrue(filter.accept(1, far));
+        for (long seq = far - WINDOW + 1; seq < far; seq++) {
+            assertTrue(filter.accept(1, seq));
+        }
+    }
+
+    @Test
+    public void negativeSequenceIsNeverAccepted() {
+        assertFalse(filter.accept(1, -1));
+    }
+
+    @Test
+    public void clearForgetsEverySender() {
+        assertTrue(filter.accept(1, 4));
+        filter.clear();
+        assertTrue(filter.accept(1, 4));
+    }
+}
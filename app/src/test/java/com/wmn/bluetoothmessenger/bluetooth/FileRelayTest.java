@@ -0,0 +1,171 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import android.net.Uri;
+
+import com.wmn.bluetoothmessenger.model.FileTransfer;
+import com.wmn.bluetoothmessenger.model.ProtocolEvent;
+import com.wmn.bluetoothmessenger.transport.Transport;
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * A file sent by one member and relayed by the host to a member that reads
+ * far slower than the sender writes. The host must pace the sender by that
+ * member's acks rather than its own disk, or the member's write queue
+ * overflows and the host drops it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class FileRelayTest {
+
+    /** Enough chunks to overflow a write queue that is never drained in time. */
+    private static final int CHUNKS = 3 * Constants.WRITE_QUEUE_CAPACITY;
+    private static final int SLOW_READ_BYTES = 2 * 1024;  // per millisecond
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SessionHarness session;
+
+    @Before
+    public void setUp() {
+        session = new SessionHarness();
+    }
+
+    @After
+    public void tearDown() {
+        session.shutdown();
+    }
+
+    @Test
+    public void relayedFileKeepsPaceWithSlowestMember() throws Exception {
+        BluetoothService host = session.host("host");
+        host.setOverflowPolicy(PeerWriter.OverflowPolicy.DISCONNECT);
+        BluetoothService sender = session.join("sender", "host");
+        BluetoothService slow = session.join(slowReader(session.network.transport("slow")), "host");
+        host.getFileTransfers().setStorageDir(folder.newFolder("host"));
+        sender.getFileTransfers().setStorageDir(folder.newFolder("sender"));
+        slow.getFileTransfers().setStorageDir(folder.newFolder("slow"));
+        session.awaitJoined(sender, slow);
+
+        byte[] content = new byte[CHUNKS * Constants.FILE_CHUNK_SIZE];
+        new Random(42).nextBytes(content);
+        File source = folder.newFile("source.bin");
+        try (OutputStream out = new FileOutputStream(source)) {
+            out.write(content);
+        }
+        sender.getFileTransfers().sendFile(RuntimeEnvironment.getApplication().getContentResolver(),
+                Uri.fromFile(source), "source.bin", "application/octet-stream", content.length);
+
+        SessionHarness.Recorder slowScreen = session.recorder(slow);
+        session.runUntil("the slow member to get the file", 60_000,
+                () -> completed(slowScreen) != null || host.getConnectedCount() < 2);
+
+        assertEquals("slow member was dropped", 2, host.getConnectedCount());
+        assertFalse(session.recorder(host).messages.contains(Constants.MSG_DISCONNECTED));
+        assertArrayEquals(content, Files.readAllBytes(completed(slowScreen).getFile().toPath()));
+    }
+
+    /** The first transfer the member saw complete, or null. */
+    private static FileTransfer completed(SessionHarness.Recorder screen) {
+        synchronized (screen.events) {
+            for (ProtocolEvent event : screen.events) {
+                FileTransfer transfer = event.getTransfer();
+                if (transfer != null && transfer.getState() == FileTransfer.STATE_COMPLETE) {
+                    return transfer;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Connections whose reads take a millisecond per {@link #SLOW_READ_BYTES}. */
+    private static Transport slowReader(Transport transport) {
+        return new Transport() {
+            @Override
+            public Listener listen() throws IOException {
+                return transport.listen();
+            }
+
+            @Override
+            public Connection connect(String address) throws IOException {
+                Connection connection = transport.connect(address);
+                InputStream in = new FilterInputStream(connection.getInputStream()) {
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                        return super.read(b, off, Math.min(len, SLOW_READ_BYTES));
+                    }
+                };
+                return new Connection() {
+                    @Override
+                    public InputStream getInputStream() {
+                        return in;
+                    }
+
+                    @Override
+                    public OutputStream getOutputStream() throws IOException {
+                        return connection.getOutputStream();
+                    }
+
+                    @Override
+                    public String getRemoteName() {
+                        return connection.getRemoteName();
+                    }
+
+                    @Override
+                    public String getRemoteAddress() {
+                        return connection.getRemoteAddress();
+                    }
+
+                    @Override
+                    public String getHostingAddress() {
+                        return connection.getHostingAddress();
+                    }
+
+                    @Override
+                    public boolean isConnected() {
+                        return connection.isConnected();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        connection.close();
+                    }
+                };
+            }
+
+            @Override
+            public String getLocalName() {
+                return transport.getLocalName();
+            }
+        };
+    }
+}
@@ -0,0 +1,156 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/** Reassembly of length-prefixed frames from reads of any size. */
+public class FrameDecoderTest {
+
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final List<byte[]> frames = new ArrayList<>();
+    private final FrameDecoder.FrameListener collect =
+            (buffer, offset, length) -> frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+
+    @Test
+    public void frameSplitAcrossReadsIsDeliveredOnceComplete() throws Exception {
+        byte[] payload = text("split across many reads");
+        InputStream in = new TrickleInputStream(FrameEncoder.encode(payload), 1);
+
+        while (frames.isEmpty()) {
+            decoder.readFrom(in, collect);
+        }
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(payload, frames.get(0));
+    }
+
+    @Test
+    public void framesInOneReadAreAllDelivered() throws Exception {
+        byte[] stream = concat(FrameEncoder.encode(text("one")), FrameEncoder.encode(text("two")),
+                FrameEncoder.encode(new byte[0]), FrameEncoder.encode(text("three")));
+
+        int bytes = decoder.readFrom(new ByteArrayInputStream(stream), collect);
+
+        assertEquals(stream.length, bytes);
+        assertEquals(4, frames.size());
+        assertArrayEquals(text("one"), frames.get(0));
+        assertEquals(0, frames.get(2).length);
+        assertArrayEquals(text("three"), frames.get(3));
+    }
+
+    @Test
+    public void frameLargerThanTheInitialBufferIsReassembled() throws Exception {
+        byte[] payload = new byte[Constants.MAX_FRAME_SIZE];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        InputStream in = new TrickleInputStream(FrameEncoder.encode(payload), 1000);
+
+        while (frames.isEmpty()) {
+            decoder.readFrom(in, collect);
+        }
+
+        assertArrayEquals(payload, frames.get(0));
+    }
+
+    @Test
+    public void compressedFrameIsInflated() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 4 * Constants.COMPRESSION_THRESHOLD_BYTES) {
+            text.append("the same words again and again ");
+        }
+        byte[] payload = text(text.toString());
+        byte[] frame = FrameEncoder.encodeCompressed(payload);
+        assertNotNull(frame);
+        assertTrue(frame.length < payload.length);
+
+        decoder.readFrom(new ByteArrayInputStream(frame), collect);
+
+        assertTrue(decoder.isCurrentFrameCompressed());
+        assertArrayEquals(payload, frames.get(0));
+    }
+
+    @Test
+    public void oversizeHeaderIsRejected() {
+        int length = Constants.MAX_FRAME_SIZE + 1;
+        byte[] header = {(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length};
+
+        assertThrows(ProtocolException.class,
+                () -> decoder.readFrom(new ByteArrayInputStream(header), collect));
+    }
+
+    @Test
+    public void closedStreamIsReported() {
+        assertThrows(EOFException.class,
+                () -> decoder.readFrom(new ByteArrayInputStream(new byte[0]), collect));
+    }
+
+    @Test
+    public void bytesPastPolledFrameStayBuffered() throws Exception {
+        InputStream in = new ByteArrayInputStream(
+                concat(FrameEncoder.encode(text("handshake")), FrameEncoder.encode(text("first"))));
+
+        assertArrayEquals(text("handshake"), decoder.pollFrame(in));
+        assertEquals(0, decoder.readFrom(in, collect));
+        assertArrayEquals(text("first"), frames.get(0));
+    }
+
+    @Test
+    public void pollReturnsNullUntilFrameIsComplete() throws Exception {
+        byte[] frame = FrameEncoder.encode(text("partial"));
+        InputStream in = new ByteArrayInputStream(frame, 0, frame.length - 1);
+
+        assertNull(decoder.pollFrame(in));
+    }
+
+    private static byte[] text(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    /** Hands out at most {@code step} bytes per read, as RFCOMM may. */
+    private static final class TrickleInputStream extends ByteArrayInputStream {
+
+        private final int step;
+
+        TrickleInputStream(byte[] data, int step) {
+            super(data);
+            this.step = step;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, step));
+        }
+
+        @Override
+        public synchronized int available() {
+            return Math.min(super.available(), step);
+        }
+    }
+}
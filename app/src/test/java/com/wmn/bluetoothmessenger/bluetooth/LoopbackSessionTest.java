@@ -0,0 +1,112 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A host and several members on one loopback network, exercising the whole
+ * stack from {@link BluetoothService#sendChatMessage} to the other members'
+ * screens: admission, the link layer, framing and the relay.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class LoopbackSessionTest {
+
+    private static final int MEMBERS = 4;
+
+    private SessionHarness session;
+    private BluetoothService host;
+    private final List<BluetoothService> members = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        session = new SessionHarness();
+        host = session.host("host");
+        for (int i = 0; i < MEMBERS; i++) {
+            members.add(session.join("member-" + i, "host"));
+        }
+        session.awaitJoined(members.toArray(new BluetoothService[0]));
+        session.runUntil("every member to be admitted", 5000,
+                () -> host.getConnectedCount() == MEMBERS);
+    }
+
+    @After
+    public void tearDown() {
+        session.shutdown();
+    }
+
+    @Test
+    public void membersGetDistinctSenderIds() {
+        List<Integer> ids = new ArrayList<>();
+        ids.add(host.getLocalSenderId());
+        for (BluetoothService member : members) {
+            assertNotEquals(0, member.getLocalSenderId());
+            assertFalse("duplicate sender ID", ids.contains(member.getLocalSenderId()));
+            ids.add(member.getLocalSenderId());
+        }
+    }
+
+    @Test
+    public void chatReachesEveryOtherMember() throws Exception {
+        host.sendChatMessage("from host");
+        for (int i = 0; i < MEMBERS; i++) {
+            members.get(i).sendChatMessage("from member-" + i);
+        }
+
+        session.runUntil("every chat line to arrive", 10_000, () -> {
+            for (BluetoothService member : members) {
+                if (session.recorder(member).chat().size() < MEMBERS) {
+                    return false;
+                }
+            }
+            return session.recorder(host).chat().size() == MEMBERS;
+        });
+
+        assertTrue(session.recorder(host).chat().containsAll(expectedChat("from host")));
+        for (int i = 0; i < MEMBERS; i++) {
+            List<String> seen = session.recorder(members.get(i)).chat();
+            assertEquals(MEMBERS, seen.size());
+            assertTrue(seen.containsAll(expectedChat("from member-" + i)));
+        }
+    }
+
+    @Test
+    public void chatFromOneMemberArrivesInOrder() throws Exception {
+        BluetoothService sender = members.get(0);
+        List<String> sent = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            sent.add("line " + i);
+            sender.sendChatMessage("line " + i);
+        }
+
+        BluetoothService last = members.get(MEMBERS - 1);
+        session.runUntil("the last member to see every line", 10_000,
+                () -> session.recorder(last).chat().size() == sent.size());
+
+        assertEquals(sent, session.recorder(last).chat());
+        assertEquals(sent, session.recorder(host).chat());
+    }
+
+    /** Every line sent in {@link #chatReachesEveryOtherMember} except {@code own}. */
+    private static List<String> expectedChat(String own) {
+        List<String> lines = new ArrayList<>();
+        lines.add("from host");
+        for (int i = 0; i < MEMBERS; i++) {
+            lines.add("from member-" + i);
+        }
+        lines.remove(own);
+        return lines;
+    }
+}
@@ -0,0 +1,86 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/** Varint limits and field bounds of {@link ProtocolCodec.Reader}. */
+public class ProtocolCodecTest {
+
+    @Test
+    public void largestSequenceFitsTheDataOverhead() throws Exception {
+        byte[] payload = {1, 2, 3};
+        byte[] data = ProtocolCodec.encodeData(Long.MAX_VALUE, payload, false);
+
+        assertTrue(data.length <= payload.length + ProtocolCodec.DATA_OVERHEAD);
+        ProtocolCodec.Reader reader = new ProtocolCodec.Reader(data, 0, data.length);
+        assertEquals(Long.MAX_VALUE, reader.readVarlong());
+        assertEquals(payload.length, reader.readRemaining().length);
+    }
+
+    @Test
+    public void varintRoundTripsAtByteBoundaries() throws Exception {
+        long[] values = {0, 127, 128, 16_383, 16_384, Integer.MAX_VALUE};
+        for (long value : values) {
+            byte[] ack = ProtocolCodec.encodeLinkAck(value, Collections.<long[]>emptyList());
+            ProtocolCodec.Reader reader = new ProtocolCodec.Reader(ack, 0, ack.length);
+            assertEquals(value, reader.readVarlong());
+            assertEquals(0, reader.readVarint());
+            assertFalse(reader.hasRemaining());
+        }
+    }
+
+    @Test
+    public void varintLongerThanFiveBytesIsMalformed() {
+        byte[] payload = {0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01};
+
+        assertThrows(ProtocolException.class,
+                () -> new ProtocolCodec.Reader(payload, 0, payload.length).readVarint());
+    }
+
+    @Test
+    public void varlongLongerThanTenBytesIsMalformed() {
+        byte[] payload = new byte[12];
+        for (int i = 1; i < 11; i++) {
+            payload[i] = (byte) 0x80;
+        }
+        payload[11] = 0x01;
+
+        assertThrows(ProtocolException.class,
+                () -> new ProtocolCodec.Reader(payload, 0, payload.length).readVarlong());
+    }
+
+    @Test
+    public void truncatedVarintIsRejected() {
+        byte[] payload = {0, (byte) 0x80};
+
+        assertThrows(ProtocolException.class,
+                () -> new ProtocolCodec.Reader(payload, 0, payload.length).readVarint());
+    }
+
+    @Test
+    public void fieldLongerThanThePayloadIsRejected() {
+        byte[] payload = {0, 5, 'a', 'b'};
+
+        assertThrows(ProtocolException.class,
+                () -> new ProtocolCodec.Reader(payload, 0, payload.length).readString());
+    }
+
+    @Test
+    public void readerStaysInsideItsSlice() throws Exception {
+        byte[] buffer = {9, 9, Constants.OP_LINK_ACK, 3, 42, 9};
+        ProtocolCodec.Reader reader = new ProtocolCodec.Reader(buffer, 2, 2);
+
+        assertEquals(3, reader.readVarint());
+        assertFalse(reader.hasRemaining());
+        assertThrows(ProtocolException.class, reader::readByte);
+    }
+}
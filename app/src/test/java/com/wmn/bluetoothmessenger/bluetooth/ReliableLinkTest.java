@@ -0,0 +1,282 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import android.os.Looper;
+
+import com.wmn.bluetoothmessenger.util.Constants;
+import com.wmn.bluetoothmessenger.util.TimerService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * {@link ReliableLink} driven by hand: the test plays the peer, feeding DATA
+ * and LINK_ACK frames in and reading what the link offers to its connection.
+ * Retransmits are timed by the shared {@link TimerService} on Robolectric's
+ * clock, which only moves when {@link #advanceUntil} moves it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class ReliableLinkTest {
+
+    /** Fake clock needed for the last retransmit to give up, with room to spare. */
+    private static final long GIVE_UP_MS = 60_000;
+
+    /** Everything the link offered, in order, and whether the queue takes more. */
+    private final List<byte[]> offered = Collections.synchronizedList(new ArrayList<byte[]>());
+    private volatile boolean accepting = true;
+    private volatile IOException failure;
+
+    private ReliableLink link;
+
+    @Before
+    public void setUp() {
+        link = new ReliableLink(new ReliableLink.Output() {
+            @Override
+            public boolean offerRaw(byte[] payload) {
+                offered.add(payload);
+                return accepting;
+            }
+
+            @Override
+            public void onLinkFailed(IOException e) {
+                failure = e;
+            }
+        }, "peer", Runnable::run);
+    }
+
+    @After
+    public void tearDown() {
+        link.close();
+    }
+
+    // ========== RECEIVING ==========
+
+    @Test
+    public void framesPastAGapAreHeldUntilItFills() {
+        List<Integer> delivered = new ArrayList<>();
+        receive(0, delivered);
+        receive(2, delivered);
+        receive(3, delivered);
+        assertEquals(Collections.singletonList(0), delivered);
+
+        receive(1, delivered);
+        assertEquals(Arrays.asList(0, 1, 2, 3), delivered);
+        assertEquals(4, link.getReceivedCount());
+    }
+
+    @Test
+    public void gapIsAcknowledgedSelectivelyAtOnce() throws Exception {
+        receive(0, new ArrayList<Integer>());
+        receive(2, new ArrayList<Integer>());
+        receive(3, new ArrayList<Integer>());
+
+        long[] ack = lastAck();
+        assertEquals(1, ack[0]);
+        assertEquals(1, ack.length / 2);
+        assertEquals(2, ack[1]);
+        assertEquals(4, ack[2]);
+    }
+
+    @Test
+    public void duplicateIsAcknowledgedButNotDeliveredAgain() throws Exception {
+        List<Integer> delivered = new ArrayList<>();
+        receive(0, delivered);
+        offered.clear();
+        receive(0, delivered);
+
+        assertEquals(Collections.singletonList(0), delivered);
+        assertEquals(1, lastAck()[0]);
+    }
+
+    // ========== SENDING ==========
+
+    @Test
+    public void framesBeyondTheWindowWaitForAcks() throws Exception {
+        for (int i = 0; i < Constants.RELIABLE_WINDOW + 5; i++) {
+            assertTrue(link.send(payload(i), null));
+        }
+        assertEquals(Constants.RELIABLE_WINDOW, sentData().size());
+        assertEquals(Constants.RELIABLE_WINDOW, link.getUnacknowledgedCount());
+
+        ack(5);
+        List<Long> sent = sentData();
+        assertEquals(Constants.RELIABLE_WINDOW + 5, sent.size());
+        assertEquals(Constants.RELIABLE_WINDOW + 4, (long) sent.get(sent.size() - 1));
+        assertEquals(Constants.RELIABLE_WINDOW, link.getUnacknowledgedCount());
+    }
+
+    @Test
+    public void fullBacklogFailsTheLink() {
+        int capacity = Constants.RELIABLE_WINDOW + Constants.RELIABLE_BACKLOG;
+        for (int i = 0; i < capacity; i++) {
+            assertTrue(link.send(payload(i), null));
+        }
+        assertNull(failure);
+
+        assertFalse(link.send(payload(capacity), null));
+        assertTrue(failure.getMessage().contains("backlog"));
+        List<byte[]> left = link.takeUnacknowledged(0);
+        assertEquals(capacity, left.size());
+        for (int i = 0; i < capacity; i++) {
+            assertEquals(i, index(left.get(i)));
+        }
+    }
+
+    @Test
+    public void takeUnacknowledgedKeepsSelectivelyAckedFrames() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            link.send(payload(i), null);
+        }
+        ack(1, 2, 4);
+
+        List<byte[]> left = link.takeUnacknowledged(1);
+        assertEquals(3, left.size());
+        assertEquals(1, index(left.get(0)));
+        assertEquals(3, index(left.get(2)));
+        assertFalse(link.send(payload(4), null));
+    }
+
+    @Test
+    public void oversizedFrameIsRefused() {
+        assertFalse(link.send(new byte[Constants.MAX_FRAME_SIZE], null));
+        assertEquals(0, link.getUnacknowledgedCount());
+        assertNull(failure);
+    }
+
+    // ========== RETRANSMITS ==========
+
+    @Test
+    public void retransmitResendsOnlyFramesStillMissing() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            link.send(payload(i), null);
+        }
+        ack(1, 2, 4);
+        offered.clear();
+
+        assertTrue(advanceUntil(() -> !sentData().isEmpty(), Constants.RTO_INITIAL_MS * 2));
+        assertEquals(Collections.singletonList(1L), sentData());
+        assertEquals(1, link.getRetransmittedCount());
+    }
+
+    @Test
+    public void frameTheQueueTurnsAwayGoesOutAtTheTimeout() throws Exception {
+        accepting = false;
+        assertTrue(link.send(payload(0), null));
+        accepting = true;
+
+        assertTrue(advanceUntil(() -> sentData().size() == 2, Constants.RTO_INITIAL_MS * 2));
+        assertEquals(Arrays.asList(0L, 0L), sentData());
+    }
+
+    @Test
+    public void peerThatNeverAcksFailsTheLink() throws Exception {
+        link.send(payload(0), null);
+
+        assertTrue(advanceUntil(() -> failure != null, GIVE_UP_MS));
+        assertTrue(failure.getMessage().contains("stopped acknowledging"));
+        assertEquals(Constants.RELIABLE_MAX_RETRANSMITS, link.getRetransmittedCount());
+        assertEquals(1, link.takeUnacknowledged(0).size());
+    }
+
+    // ========== HELPERS ==========
+
+    private static byte[] payload(int index) {
+        return ByteBuffer.allocate(4).putInt(index).array();
+    }
+
+    private static int index(byte[] payload) {
+        return ByteBuffer.wrap(payload).getInt();
+    }
+
+    /** Hand the link DATA {@code seq}, recording the index of every frame it delivers. */
+    private void receive(long seq, List<Integer> delivered) {
+        byte[] payload = payload((int) seq);
+        link.onData(seq, payload, 0, payload.length,
+                (buffer, offset, length) -> delivered.add(ByteBuffer.wrap(buffer, offset, length).getInt()));
+    }
+
+    /** Acknowledge everything below {@code cumulative}, plus [start, end) pairs. */
+    private void ack(long cumulative, long... ranges) throws Exception {
+        List<long[]> pairs = new ArrayList<>();
+        for (int i = 0; i < ranges.length; i += 2) {
+            pairs.add(new long[]{ranges[i], ranges[i + 1]});
+        }
+        byte[] ack = ProtocolCodec.encodeLinkAck(cumulative, pairs);
+        link.onAck(ack, 0, ack.length);
+    }
+
+    /** The last LINK_ACK offered, flattened: cumulative, then each range's start and end. */
+    private long[] lastAck() throws Exception {
+        synchronized (offered) {
+            for (int i = offered.size() - 1; i >= 0; i--) {
+                byte[] frame = offered.get(i);
+                if ((frame[0] & 0xFF) != Constants.OP_LINK_ACK) {
+                    continue;
+                }
+                ProtocolCodec.Reader reader = new ProtocolCodec.Reader(frame, 0, frame.length);
+                long cumulative = reader.readVarlong();
+                long[] ack = new long[1 + 2 * reader.readVarint()];
+                ack[0] = cumulative;
+                for (int j = 1; j < ack.length; j++) {
+                    ack[j] = reader.readVarlong();
+                }
+                return ack;
+            }
+        }
+        throw new AssertionError("No LINK_ACK offered");
+    }
+
+    /** Sequence numbers of the DATA frames offered so far, in order. */
+    private List<Long> sentData() {
+        List<Long> seqs = new ArrayList<>();
+        synchronized (offered) {
+            for (byte[] frame : offered) {
+                if ((frame[0] & 0xFF) == Constants.OP_DATA) {
+                    try {
+                        seqs.add(new ProtocolCodec.Reader(frame, 0, frame.length).readVarlong());
+                    } catch (ProtocolException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            }
+        }
+        return seqs;
+    }
+
+    /**
+     * Move the clock on a timer tick at a time until {@code done} holds, for
+     * at most {@code limitMs}. The timer thread sleeps by the real clock, so
+     * each step schedules an empty task to wake it to the new time.
+     */
+    private static boolean advanceUntil(BooleanSupplier done, long limitMs) throws InterruptedException {
+        for (long elapsed = 0; elapsed < limitMs; elapsed += Constants.TIMER_TICK_MS) {
+            if (done.getAsBoolean()) {
+                return true;
+            }
+            shadowOf(Looper.getMainLooper()).idleFor(Constants.TIMER_TICK_MS, TimeUnit.MILLISECONDS);
+            TimerService.get().schedule(() -> { }, 0);
+            Thread.sleep(1);
+        }
+        return done.getAsBoolean();
+    }
+}
@@ -0,0 +1,147 @@
+package com.wmn.bluetoothmessenger.bluetooth;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import com.wmn.bluetoothmessenger.model.GroupInfo;
+import com.wmn.bluetoothmessenger.model.ProtocolEvent;
+import com.wmn.bluetoothmessenger.transport.LoopbackTransport;
+import com.wmn.bluetoothmessenger.transport.Transport;
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * A group of {@link BluetoothService}s on one loopback network, for
+ * Robolectric tests.
+ *
+ * Under Robolectric the clock only moves when a test moves it, and timers,
+ * retransmits and heartbeats all read {@link android.os.SystemClock}. So
+ * {@link #runUntil} advances it in small steps, runs what the members posted
+ * to the main looper, and gives their worker threads the same time in real
+ * life to catch up.
+ */
+final class SessionHarness {
+
+    static final String PASSWORD = "secret";
+
+    private static final long STEP_MS = 10;
+
+    /** Collects what a member's screen would be told, in order. */
+    static final class Recorder extends Handler {
+
+        final List<ProtocolEvent> events = Collections.synchronizedList(new ArrayList<ProtocolEvent>());
+        final List<Integer> messages = Collections.synchronizedList(new ArrayList<Integer>());
+
+        Recorder() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void handleMessage(Message msg) {
+            if (msg.what == Constants.MSG_EVENTS) {
+                events.addAll((List<ProtocolEvent>) msg.obj);
+            } else {
+                messages.add(msg.what);
+            }
+        }
+
+        /** Chat lines received so far, oldest first. */
+        List<String> chat() {
+            List<String> lines = new ArrayList<>();
+            synchronized (events) {
+                for (ProtocolEvent event : events) {
+                    if (event.getType() == ProtocolEvent.TYPE_CHAT) {
+                        lines.add(event.getMessage().getContent());
+                    }
+                }
+            }
+            return lines;
+        }
+    }
+
+    final LoopbackTransport.Network network = new LoopbackTransport.Network();
+    private final Map<BluetoothService, Recorder> recorders = new HashMap<>();
+
+    /** Start hosting as {@code name}. */
+    BluetoothService host(String name) {
+        BluetoothService host = start(network.transport(name));
+        host.setPasswordHash(GroupInfo.hashPassword(PASSWORD));
+        host.startHosting();
+        return host;
+    }
+
+    /** Join the group hosted as {@code hostName} as {@code name}. */
+    BluetoothService join(String name, String hostName) {
+        return join(network.transport(name), hostName);
+    }
+
+    /** Join over a transport of the test's own, e.g. one that reads slowly. */
+    BluetoothService join(Transport transport, String hostName) {
+        BluetoothService member = start(transport);
+        member.connectToHost(hostName, PASSWORD);
+        return member;
+    }
+
+    /**
+     * Wait until every member is connected and open its chat screen, which is
+     * when a member's events start to be delivered.
+     */
+    void awaitJoined(BluetoothService... members) throws InterruptedException {
+        for (BluetoothService member : members) {
+            runUntil("a member to connect", 5000, () -> member.getConnectedCount() > 0);
+            member.setHandler(recorders.get(member));
+        }
+    }
+
+    private BluetoothService start(Transport transport) {
+        Recorder recorder = new Recorder();
+        BluetoothService service = BluetoothService.init(transport, recorder);
+        recorders.put(service, recorder);
+        return service;
+    }
+
+    Recorder recorder(BluetoothService member) {
+        return recorders.get(member);
+    }
+
+    /** Let time pass until {@code done} holds; fails the test after {@code timeoutMs}. */
+    void runUntil(String what, long timeoutMs, BooleanSupplier done) throws InterruptedException {
+        for (long waited = 0; waited < timeoutMs; waited += STEP_MS) {
+            if (done.getAsBoolean()) {
+                return;
+            }
+            runFor(STEP_MS);
+        }
+        if (!done.getAsBoolean()) {
+            fail("Timed out after " + timeoutMs + " ms waiting for " + what);
+        }
+    }
+
+    /** Let {@code ms} pass on the clock, the main looper and the worker threads. */
+    void runFor(long ms) throws InterruptedException {
+        for (long step = 0; step < ms; step += STEP_MS) {
+            shadowOf(Looper.getMainLooper()).idleFor(STEP_MS, TimeUnit.MILLISECONDS);
+            Thread.sleep(STEP_MS);
+        }
+    }
+
+    /** Disconnect every member. */
+    void shutdown() {
+        for (BluetoothService member : recorders.keySet()) {
+            member.disconnect();
+        }
+        recorders.clear();
+    }
+}
@@ -0,0 +1,250 @@
+package com.wmn.bluetoothmessenger.manager;
+
+import com.wmn.bluetoothmessenger.model.ChatMessage;
+import com.wmn.bluetoothmessenger.util.Constants;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Contention benchmark: several producer threads (the Bluetooth readers) add
+ * messages while a reader thread (the chat screen) keeps reading the list and
+ * the listener does a little work per change set, as posting to the UI does.
+ *
+ * Runs the single-writer {@link MessageManager} against the design it
+ * replaced, where adds, reads and listener calls all took the store's monitor
+ * ({@link LockedMessageManager} below). Asserts that every message arrived and
+ * that producers spend less time inside {@code addMessage} with the single
+ * writer; the failure message carries both throughputs.
+ *
+ * Timings depend on the machine, so this only runs when asked for:
+ * {@code ./gradlew test -Dbenchmark=true}.
+ */
+public class MessageManagerBenchmark {
+
+    private static final int PRODUCERS = 4;
+    private static final int MESSAGES_PER_PRODUCER = 5_000;
+    private static final int ROUNDS = 2;                  // The first one warms up
+    private static final long LISTENER_WORK_NANOS = 2_000;
+    private static final long TIMEOUT_MS = 60_000;
+    private static final String BENCHMARK_PROPERTY = "benchmark";
+
+    /** Keeps the reader's work from being optimised away. */
+    private static volatile long sink;
+
+    /** What the benchmark drives; both managers behind one face. */
+    private interface Subject {
+        void setListener(MessageManager.MessageListener listener);
+
+        void addMessage(ChatMessage message);
+
+        List<ChatMessage> getMessages();
+
+        void shutdown();
+    }
+
+    private static final class Result {
+        final long elapsedNanos;
+        final long addNanos;
+
+        Result(long elapsedNanos, long addNanos) {
+            this.elapsedNanos = elapsedNanos;
+            this.addNanos = addNanos;
+        }
+
+        @Override
+        public String toString() {
+            int total = PRODUCERS * MESSAGES_PER_PRODUCER;
+            return String.format("%,d msgs in %d ms (%,.0f msgs/s), %.0f ns per addMessage",
+                    total, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                    total * 1e9 / elapsedNanos, (double) addNanos / total);
+        }
+    }
+
+    @Before
+    public void requireOptIn() {
+        assumeTrue("benchmark not requested", Boolean.getBoolean(BENCHMARK_PROPERTY));
+    }
+
+    @Test
+    public void singleWriterAgainstLockedManager() throws Exception {
+        Result locked = null;
+        Result singleWriter = null;
+        for (int round = 0; round < ROUNDS; round++) {
+            locked = run(new LockedMessageManager(Constants.MESSAGE_STORE_CAPACITY,
+                    Constants.MESSAGE_STORE_BYTE_BUDGET));
+            singleWriter = run(singleWriter());
+        }
+        assertTrue("locked: " + locked + "; single writer: " + singleWriter,
+                singleWriter.addNanos < locked.addNanos);
+    }
+
+    private static Subject singleWriter() {
+        MessageManager manager = new MessageManager();
+        manager.startTTLCleanup();
+        return new Subject() {
+            @Override
+            public void setListener(MessageManager.MessageListener listener) {
+                manager.setListener(listener);
+            }
+
+            @Override
+            public void addMessage(ChatMessage message) {
+                manager.addMessage(message);
+            }
+
+            @Override
+            public List<ChatMessage> getMessages() {
+                return manager.getMessages();
+            }
+
+            @Override
+            public void shutdown() {
+                manager.shutdown();
+            }
+        };
+    }
+
+    private static Result run(Subject subject) throws InterruptedException {
+        int total = PRODUCERS * MESSAGES_PER_PRODUCER;
+        AtomicLong inserted = new AtomicLong();
+        CountDownLatch allInserted = new CountDownLatch(1);
+        subject.setListener(changes -> {
+            for (ChangeSet.Op op : changes.getOps()) {
+                if (op.getType() == ChangeSet.INSERT && inserted.addAndGet(op.getCount()) == total) {
+                    allInserted.countDown();
+                }
+            }
+            spin(LISTENER_WORK_NANOS);
+        });
+
+        AtomicBoolean reading = new AtomicBoolean(true);
+        Thread reader = new Thread(() -> {
+            long newest = 0;
+            while (reading.get()) {
+                List<ChatMessage> messages = subject.getMessages();
+                newest += messages.isEmpty() ? 0 : messages.get(messages.size() - 1).getId();
+            }
+            sink = newest;
+        }, "bench-reader");
+
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicLong addNanos = new AtomicLong();
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            int senderId = p + 1;
+            Thread producer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long spent = 0;
+                for (int i = 0; i < MESSAGES_PER_PRODUCER; i++) {
+                    ChatMessage message = ChatMessage.createMessage(senderId, i, "message " + i, false);
+                    long before = System.nanoTime();
+                    subject.addMessage(message);
+                    spent += System.nanoTime() - before;
+                }
+                addNanos.addAndGet(spent);
+            }, "bench-producer-" + senderId);
+            producer.start();
+            producers.add(producer);
+        }
+
+        reader.start();
+        long began = System.nanoTime();
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        boolean done = allInserted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        long elapsed = System.nanoTime() - began;
+        reading.set(false);
+        reader.join();
+        subject.shutdown();
+
+        assertTrue("timed out with " + inserted.get() + " of " + total + " messages", done);
+        assertEquals(total, inserted.get());
+        return new Result(elapsed, addNanos.get());
+    }
+
+    private static void spin(long nanos) {
+        long until = System.nanoTime() + nanos;
+        while (System.nanoTime() < until) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * The former MessageManager, reduced to what the benchmark exercises: one
+     * monitor around the store for adds, reads and listener calls.
+     */
+    private static final class LockedMessageManager implements Subject {
+
+        private final MessageStore messages;
+        private MessageManager.MessageListener listener;
+
+        LockedMessageManager(int capacity, long byteBudget) {
+            this.messages = new MessageStore(capacity, byteBudget);
+        }
+
+        @Override
+        public void setListener(MessageManager.MessageListener listener) {
+            synchronized (messages) {
+                this.listener = listener;
+            }
+        }
+
+        @Override
+        public void addMessage(ChatMessage message) {
+            addMessages(Collections.singletonList(message));
+        }
+
+        void addMessages(List<ChatMessage> batch) {
+            synchronized (messages) {
+                ChangeSet changes = new ChangeSet();
+                for (ChatMessage message : batch) {
+                    int evicted = 0;
+                    while (!messages.hasRoomFor(MessageStore.estimateBytes(message))) {
+                        messages.removeFirst();
+                        evicted++;
+                    }
+                    changes.remove(0, evicted);
+                    changes.insert(messages.size(), message);
+                    messages.append(message);
+                }
+                if (listener != null) {
+                    listener.onMessagesChanged(changes);
+                }
+            }
+        }
+
+        @Override
+        public List<ChatMessage> getMessages() {
+            synchronized (messages) {
+                List<ChatMessage> copy = new ArrayList<>(messages.size());
+                for (int i = 0; i < messages.size(); i++) {
+                    copy.add(messages.get(i));
+                }
+                return copy;
+            }
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+}
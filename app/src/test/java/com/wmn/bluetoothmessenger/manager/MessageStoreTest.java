@@ -0,0 +1,123 @@
+package com.wmn.bluetoothmessenger.manager;
+
+import com.wmn.bluetoothmessenger.model.ChatMessage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/** Ring buffer bounds and the eviction the owner drives through {@link MessageStore#hasRoomFor}. */
+public class MessageStoreTest {
+
+    @Test
+    public void evictsOldestWhenCountIsReached() {
+        MessageStore store = new MessageStore(3, Long.MAX_VALUE);
+        for (int i = 0; i < 5; i++) {
+            add(store, message(i));
+        }
+
+        assertEquals(3, store.size());
+        assertEquals("message 2", store.get(0).getContent());
+        assertEquals("message 4", store.get(2).getContent());
+        assertEquals(2, store.getStats().evictedCount);
+    }
+
+    @Test
+    public void evictsOldestWhenBytesRunOut() {
+        ChatMessage first = message(0);
+        long budget = 3L * MessageStore.estimateBytes(first);
+        MessageStore store = new MessageStore(100, budget);
+        for (int i = 0; i < 10; i++) {
+            add(store, message(i));
+        }
+
+        assertEquals(3, store.size());
+        assertTrue(store.getStats().bytesUsed <= budget);
+        assertEquals("message 7", store.get(0).getContent());
+    }
+
+    @Test
+    public void oversizedMessageIsKeptAlone() {
+        MessageStore store = new MessageStore(10, 200);
+        add(store, message(0));
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            text.append('x');
+        }
+        ChatMessage big = ChatMessage.createMessage(1, 1, text.toString(), false);
+
+        add(store, big);
+
+        assertEquals(1, store.size());
+        assertSame(big, store.get(0));
+        assertFalse(store.hasRoomFor(MessageStore.estimateBytes(message(2))));
+    }
+
+    @Test
+    public void rowsSurviveWrappingAroundTheRing() {
+        MessageStore store = new MessageStore(4, Long.MAX_VALUE);
+        for (int i = 0; i < 11; i++) {
+            add(store, message(i));
+        }
+
+        for (int position = 0; position < 4; position++) {
+            ChatMessage message = store.get(position);
+            assertEquals("message " + (7 + position), message.getContent());
+            assertEquals(message.getId(), store.getId(position));
+            assertEquals(message.getTimestamp(), store.getTimestamp(position));
+        }
+    }
+
+    @Test
+    public void removeRangeShiftsEarlierRows() {
+        MessageStore store = new MessageStore(8, Long.MAX_VALUE);
+        for (int i = 0; i < 6; i++) {
+            add(store, message(i));
+        }
+        long bytes = store.getStats().bytesUsed;
+
+        store.removeRange(2, 2);
+
+        assertEquals(4, store.size());
+        assertEquals("message 1", store.get(1).getContent());
+        assertEquals("message 4", store.get(2).getContent());
+        assertEquals(bytes - 2 * MessageStore.estimateBytes(message(0)), store.getStats().bytesUsed);
+    }
+
+    @Test
+    public void appendToFullStoreFails() {
+        MessageStore store = new MessageStore(1, Long.MAX_VALUE);
+        store.append(message(0));
+
+        assertThrows(IllegalStateException.class, () -> store.append(message(1)));
+        assertThrows(IndexOutOfBoundsException.class, () -> store.get(1));
+    }
+
+    @Test
+    public void clearReleasesEveryByte() {
+        MessageStore store = new MessageStore(4, Long.MAX_VALUE);
+        add(store, message(0));
+        add(store, message(1));
+
+        store.clear();
+
+        assertEquals(0, store.size());
+        assertEquals(0, store.getStats().bytesUsed);
+    }
+
+    /** Append the way MessageManager does: evict the oldest until it fits. */
+    private static void add(MessageStore store, ChatMessage message) {
+        while (!store.hasRoomFor(MessageStore.estimateBytes(message))) {
+            store.removeFirst();
+        }
+        store.append(message);
+    }
+
+    private static ChatMessage message(int index) {
+        return ChatMessage.createMessage(1, index, "message " + index, false);
+    }
+}
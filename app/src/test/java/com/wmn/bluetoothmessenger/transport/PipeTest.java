@@ -0,0 +1,99 @@
+package com.wmn.bluetoothmessenger.transport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+/** The bounded byte pipe the loopback transport uses as a socket. */
+public class PipeTest {
+
+    @Test(timeout = 10_000)
+    public void writerBlocksUntilTheReaderMakesRoom() throws Exception {
+        Pipe pipe = new Pipe(64);
+        byte[] data = new byte[10_000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        AtomicReference<IOException> writeError = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try (OutputStream out = pipe.sink()) {
+                out.write(data);
+            } catch (IOException e) {
+                writeError.set(e);
+            }
+        });
+        writer.start();
+
+        byte[] received = readAll(pipe.source(), data.length);
+        writer.join();
+
+        assertNull(writeError.get());
+        assertArrayEquals(data, received);
+        assertEquals(-1, pipe.source().read());
+    }
+
+    @Test
+    public void readerDrainsWhatIsLeftBeforeEndOfStream() throws Exception {
+        Pipe pipe = new Pipe(16);
+        pipe.sink().write(new byte[]{1, 2, 3});
+        pipe.closeWriter();
+
+        byte[] buffer = new byte[8];
+        assertEquals(3, pipe.source().available());
+        assertEquals(3, pipe.source().read(buffer, 0, buffer.length));
+        assertArrayEquals(new byte[]{1, 2, 3}, Arrays.copyOf(buffer, 3));
+        assertEquals(-1, pipe.source().read(buffer, 0, buffer.length));
+    }
+
+    @Test
+    public void writeAfterTheReaderClosedFails() {
+        Pipe pipe = new Pipe(16);
+        pipe.closeReader();
+
+        assertThrows(IOException.class, () -> pipe.sink().write(1));
+    }
+
+    @Test(timeout = 10_000)
+    public void closingTheReaderWakesABlockedWriter() throws Exception {
+        Pipe pipe = new Pipe(4);
+        AtomicReference<IOException> writeError = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                pipe.sink().write(new byte[16]);
+            } catch (IOException e) {
+                writeError.set(e);
+            }
+        });
+        writer.start();
+        while (pipe.source().available() < 4) {
+            Thread.sleep(1);
+        }
+
+        pipe.closeReader();
+        writer.join();
+
+        assertEquals("Pipe closed", writeError.get().getMessage());
+    }
+
+    private static byte[] readAll(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(data, read, Math.min(100, length - read));
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        return Arrays.copyOf(data, read);
+    }
+}
@@ -0,0 +1,98 @@
+package com.wmn.bluetoothmessenger.util;
+
+import android.os.Looper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Deadlines on the shared wheel, timed on Robolectric's clock. After each
+ * step {@link #advance} waits for a marker task due now, so everything due
+ * before it has run too.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TimerServiceTest {
+
+    private static final long TURN_MS = Constants.TIMER_TICK_MS * Constants.TIMER_WHEEL_SLOTS;
+
+    private final TimerService timer = TimerService.get();
+    private final AtomicInteger runs = new AtomicInteger();
+
+    @Test
+    public void timeoutNeverFiresEarly() throws Exception {
+        timer.schedule(runs::incrementAndGet, 500);
+
+        advance(450);
+        assertEquals(0, runs.get());
+        advance(100);
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void timeoutBeyondOneTurnWaitsForItsRound() throws Exception {
+        timer.schedule(runs::incrementAndGet, TURN_MS + TURN_MS / 2);
+
+        advance(TURN_MS);
+        assertEquals(0, runs.get());
+        advance(TURN_MS);
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void cancelledTimeoutDoesNotRun() throws Exception {
+        TimerService.Timeout timeout = timer.schedule(runs::incrementAndGet, 100);
+        timeout.cancel();
+
+        advance(200);
+        assertEquals(0, runs.get());
+        assertFalse(timeout.isPending());
+    }
+
+    @Test
+    public void rescheduleMovesThePendingDeadline() throws Exception {
+        TimerService.Timeout timeout = timer.newTimeout(runs::incrementAndGet);
+        assertFalse(timeout.isPending());
+        timeout.reschedule(100);
+        timeout.reschedule(1000);
+        assertTrue(timeout.isPending());
+
+        advance(500);
+        assertEquals(0, runs.get());
+        advance(600);
+        assertEquals(1, runs.get());
+        assertFalse(timeout.isPending());
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheTimer() throws Exception {
+        timer.schedule(() -> {
+            throw new IllegalStateException("task failed");
+        }, 100);
+        timer.schedule(runs::incrementAndGet, 200);
+
+        advance(300);
+        assertEquals(1, runs.get());
+    }
+
+    /** Move the clock on by {@code ms}, a second at most at a time, and let the timer catch up. */
+    private void advance(long ms) throws InterruptedException {
+        for (long moved = 0; moved < ms; moved += 1000) {
+            shadowOf(Looper.getMainLooper()).idleFor(Math.min(1000, ms - moved), TimeUnit.MILLISECONDS);
+            CountDownLatch caughtUp = new CountDownLatch(1);
+            timer.schedule(caughtUp::countDown, 0);
+            assertTrue("timer thread stalled", caughtUp.await(5, TimeUnit.SECONDS));
+        }
+    }
+}